@@ -0,0 +1,60 @@
+package org.netpreserve.outbackproxy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureBenchmark {
+    private final String cdxLine = "org,example)/about/index.html?lang=en 20100101000000 " +
+            "http://www.example.org/about/index.html?lang=en text/html 200 AVP55TIKLOGESLNKMH4IQJSKZOPCKVDU - - " +
+            "2318 1048576 crawl-20100101000000-00042.warc.gz";
+    private final String cdxjLine = "org,example)/about/index.html?lang=en 20100101000000 " +
+            "{\"url\": \"http://www.example.org/about/index.html?lang=en\", \"mime\": \"text/html\", " +
+            "\"status\": \"200\", \"digest\": \"AVP55TIKLOGESLNKMH4IQJSKZOPCKVDU\", \"length\": \"2318\", " +
+            "\"offset\": \"1048576\", \"filename\": \"crawl-20100101000000-00042.warc.gz\"}";
+
+    private byte[] timelineResponse;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append(cdxLine.replace(" 20100101000000 ", " " + (1900 + i) + "0101000000 ")).append('\n');
+        }
+        timelineResponse = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Capture parseCdx() {
+        return Capture.parse(cdxLine);
+    }
+
+    @Benchmark
+    public Capture parseCdxj() {
+        return Capture.parse(cdxjLine);
+    }
+
+    /**
+     * Streams a 100 capture CDX server response into a timeline, as on a timeline cache miss.
+     */
+    @Benchmark
+    public Timeline parseTimeline() throws IOException {
+        Timeline.Builder builder = new Timeline.Builder();
+        try (CdxParser parser = new CdxParser(new ByteArrayInputStream(timelineResponse))) {
+            while (parser.next()) {
+                builder.add(parser.epochSecond(), parser.compressedLength(), parser.offset(), parser.filename(),
+                        parser.digestFingerprint(), parser.isRevisit());
+            }
+        }
+        return builder.build();
+    }
+}
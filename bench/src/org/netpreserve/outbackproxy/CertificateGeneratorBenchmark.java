@@ -0,0 +1,67 @@
+package org.netpreserve.outbackproxy;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.SSLContext;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Creating an SSL context for a host the proxy hasn't seen since it started, the cost of an SSL context cache miss.
+ * With store=cold the certificate is signed; with store=warm it's read from a certificate store filled by an earlier
+ * run, as after a restart.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CertificateGeneratorBenchmark {
+    private static final int WARM_HOSTS = 10000;
+
+    @Param({"cold", "warm"})
+    public String store;
+
+    private Path dir;
+    private CertificateGenerator certificateGenerator;
+    private long counter;
+
+    @Setup
+    public void setup() throws Exception {
+        if (store.equals("cold")) {
+            certificateGenerator = new CertificateGenerator(null, null);
+            return;
+        }
+        dir = Files.createTempDirectory("certstore");
+        Path key = dir.resolve("ca.key");
+        Path cert = dir.resolve("ca.crt");
+        Path storeFile = dir.resolve("certs");
+        CertificateGenerator previousRun = new CertificateGenerator(key, cert, storeFile, false);
+        for (int i = 0; i < WARM_HOSTS; i++) {
+            previousRun.contextForHost(hostname(i));
+        }
+        certificateGenerator = new CertificateGenerator(key, cert, storeFile, true);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static String hostname(long i) {
+        return "host" + i + ".example.org";
+    }
+
+    @Benchmark
+    public SSLContext contextForHost() throws Exception {
+        return certificateGenerator.contextForHost(hostname(counter++ % WARM_HOSTS));
+    }
+}
@@ -0,0 +1,135 @@
+package org.netpreserve.outbackproxy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many clients replaying at once against slow upstream servers, comparing the thread models: a fixed pool of XNIO
+ * workers (blocking), async handling with an upstream pool, and a virtual thread per request. Each operation is a
+ * burst of one request from every client so the score is the time to serve the whole burst.
+ *
+ * The virtual mode needs Java 21, on older JVMs run with -p handlerMode=blocking,async.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrencyBenchmark {
+    private static final int URLS = 100;
+
+    @Param({"blocking", "async", "virtual"})
+    public String handlerMode;
+
+    @Param({"128"})
+    public int clients;
+
+    @Param({"50"})
+    public long upstreamLatency;
+
+    @Param({"8192"})
+    public int bodySize;
+
+    private StandInServer standIn;
+    private HttpPool httpPool;
+    private ExecutorService upstreamExecutor;
+    private ExecutorService replayExecutor;
+    private OutbackProxy outbackProxy;
+    private Proxy proxy;
+    private ExecutorService clientExecutor;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        standIn = new StandInServer();
+        for (int i = 0; i < URLS; i++) {
+            standIn.addCapture("http://example.org/page" + i, Instant.parse("2010-01-01T00:00:00Z"),
+                    Records.body(bodySize, i));
+        }
+        standIn.latency(upstreamLatency, upstreamLatency, 0);
+        // enough upstream connections that the pool isn't what limits concurrency
+        httpPool = new HttpPool(clients, 30000, 5000, 30000);
+        Metrics metrics = new Metrics();
+        UpstreamLimits limits = new UpstreamLimits(Integer.MAX_VALUE, 0, 0, false);
+        CaptureIndex captureIndex = CaptureIndex.open(standIn.cdxUrl(), httpPool, null, limits);
+        ResourceStore resourceStore = new ResourceStore(Replicas.single(standIn.warcUrl()), httpPool, null,
+                new FileChannelCache(256, 60000), null, limits, metrics);
+        if (handlerMode.equals("async")) {
+            upstreamExecutor = AsyncReplayHandler.newUpstreamExecutor(64);
+        } else if (handlerMode.equals("virtual")) {
+            replayExecutor = VirtualThreadHandler.newVirtualThreadExecutor();
+        }
+        int port = freePort();
+        outbackProxy = new OutbackProxy("127.0.0.1", port, captureIndex, resourceStore,
+                new RevisitResolver(captureIndex, resourceStore, 100000), new CertificateGenerator(null, null), 1000,
+                86400, upstreamExecutor, replayExecutor, metrics, null, 0, 16);
+        outbackProxy.run();
+        proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", port));
+        clientExecutor = Executors.newFixedThreadPool(clients);
+    }
+
+    @TearDown
+    public void tearDown() {
+        clientExecutor.shutdownNow();
+        outbackProxy.stop();
+        if (upstreamExecutor != null) {
+            upstreamExecutor.shutdownNow();
+        }
+        if (replayExecutor != null) {
+            replayExecutor.shutdownNow();
+        }
+        httpPool.close();
+        standIn.close();
+    }
+
+    @Benchmark
+    public long burst() throws Exception {
+        List<Future<Long>> futures = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            URL url = new URL("http://example.org/page" + (next++ % URLS));
+            futures.add(clientExecutor.submit(() -> replay(url)));
+        }
+        long total = 0;
+        for (Future<Long> future : futures) {
+            total += future.get();
+        }
+        return total;
+    }
+
+    private long replay(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy);
+        connection.setRequestProperty("Accept-Datetime", "Fri, 01 Jan 2010 00:00:00 GMT");
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("proxy returned " + connection.getResponseCode() + " for " + url);
+        }
+        byte[] buffer = new byte[16384];
+        long total = 0;
+        try (InputStream in = connection.getInputStream()) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes a synthetic archive for load testing: WARC and ARC files holding a mix of record sizes, compressed and
+ * uncompressed records and response, resource and revisit records, plus a sorted CDX index of them.
+ *
+ * Each URL is captured several times. Later captures are revisits of the first with the configured probability.
+ * Sizes are log-normally distributed around the median so there's a long tail of large records as in a real crawl.
+ */
+class CorpusGenerator {
+    static final String INDEX_FILE = "index.cdx";
+    private static final long MAX_FILE_SIZE = 1024L * 1024 * 1024;
+    private static final long START_TIME = Instant.parse("2005-01-01T00:00:00Z").getEpochSecond();
+    private static final long END_TIME = Instant.parse("2020-01-01T00:00:00Z").getEpochSecond();
+
+    int urls = 1000;
+    int capturesPerUrl = 3;
+    int medianSize = 16 * 1024;
+    int maxSize = 8 * 1024 * 1024;
+    double gzipFraction = 0.8;
+    double arcFraction = 0.1;
+    double resourceFraction = 0.1;
+    double revisitFraction = 0.2;
+    double httpsFraction = 0.5;
+    long seed = 0;
+
+    private final Path dir;
+    private final List<String> cdxLines = new ArrayList<>();
+
+    CorpusGenerator(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Generates the corpus and returns the number of records written.
+     */
+    int generate() throws IOException {
+        Files.createDirectories(dir);
+        Random random = new Random(seed);
+        try (Output warcGz = new Output("corpus", ".warc.gz", true);
+             Output warc = new Output("corpus", ".warc", false);
+             Output arcGz = new Output("corpus", ".arc.gz", true);
+             Output arc = new Output("corpus", ".arc", false)) {
+            for (int i = 0; i < urls; i++) {
+                String scheme = random.nextDouble() < httpsFraction ? "https" : "http";
+                boolean binary = random.nextDouble() < resourceFraction;
+                String url = scheme + "://site" + (i / 50) + ".example.org/" + i + (binary ? ".png" : ".html");
+                String contentType = binary ? "image/png" : "text/html; charset=UTF-8";
+                int size = (int) Math.min(maxSize, medianSize * Math.exp(random.nextGaussian()));
+                long seconds = START_TIME + (long) (random.nextDouble() * (END_TIME - START_TIME) / 2);
+                int captures = 1 + random.nextInt(2 * capturesPerUrl - 1);
+                Instant first = null;
+                String digest = null;
+                for (int j = 0; j < captures; j++) {
+                    Instant date = Instant.ofEpochSecond(seconds);
+                    seconds += 1 + (long) (random.nextDouble() * (END_TIME - seconds) / captures);
+                    boolean gzip = random.nextDouble() < gzipFraction;
+                    if (first != null && random.nextDouble() < revisitFraction) {
+                        byte[] record = Records.warcRevisit(url, date, contentType, size, digest, first);
+                        (gzip ? warcGz : warc).write(url, date, "warc/revisit", "-", digest, record);
+                        continue;
+                    }
+                    long bodySeed = random.nextLong();
+                    byte[] body = binary ? Records.binaryBody(size, bodySeed) : Records.body(size, bodySeed);
+                    String bodyDigest = Records.digest(body);
+                    String mime = contentType.replaceFirst(";.*", "");
+                    if (random.nextDouble() < arcFraction) {
+                        (gzip ? arcGz : arc).write(url, date, mime, "200", bodyDigest,
+                                Records.arcRecord(url, date, contentType, body));
+                    } else if (binary) {
+                        (gzip ? warcGz : warc).write(url, date, mime, "-", bodyDigest,
+                                Records.warcResource(url, date, contentType, body));
+                    } else {
+                        (gzip ? warcGz : warc).write(url, date, mime, "200", bodyDigest,
+                                Records.warcResponse(url, date, contentType, body));
+                    }
+                    first = date;
+                    digest = bodyDigest;
+                }
+            }
+        }
+        cdxLines.sort(null);
+        try (BufferedWriter writer = Files.newBufferedWriter(dir.resolve(INDEX_FILE), UTF_8)) {
+            for (String line : cdxLines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        return cdxLines.size();
+    }
+
+    /**
+     * A series of archive files of one type, rolled over at {@link #MAX_FILE_SIZE} like a crawler's.
+     */
+    private class Output implements AutoCloseable {
+        private final String prefix;
+        private final String suffix;
+        private final boolean gzip;
+        private int sequence = -1;
+        private String filename;
+        private OutputStream stream;
+        private long position;
+
+        Output(String prefix, String suffix, boolean gzip) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.gzip = gzip;
+        }
+
+        void write(String url, Instant date, String mime, String status, String digest, byte[] record)
+                throws IOException {
+            if (gzip) {
+                record = Records.gzip(record);
+            }
+            if (stream == null || position + record.length > MAX_FILE_SIZE) {
+                close();
+                sequence++;
+                filename = String.format("%s-%05d%s", prefix, sequence, suffix);
+                stream = new BufferedOutputStream(Files.newOutputStream(dir.resolve(filename)), 65536);
+                position = 0;
+            }
+            stream.write(record);
+            cdxLines.add(Surt.fromUrl(url) + " " + Capture.ARC_TIME.format(date) + " " + url + " " + mime + " " +
+                    status + " " + digest + " - - " + record.length + " " + position + " " + filename);
+            position += record.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (stream != null) {
+                stream.close();
+                stream = null;
+            }
+        }
+    }
+}
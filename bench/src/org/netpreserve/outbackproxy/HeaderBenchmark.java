@@ -0,0 +1,35 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.util.HeaderMap;
+import org.jwat.common.ByteCountingPushBackInputStream;
+import org.jwat.common.HttpHeader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying a parsed archived HTTP header into Undertow's representation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+    private HttpHeader httpHeader;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] response = Records.httpResponse(Records.body(16, 42));
+        httpHeader = HttpHeader.processPayload(HttpHeader.HT_RESPONSE,
+                new ByteCountingPushBackInputStream(new ByteArrayInputStream(response), 32), response.length, null);
+    }
+
+    @Benchmark
+    public HeaderMap convertHeader() {
+        return Resource.convertHeader(httpHeader);
+    }
+}
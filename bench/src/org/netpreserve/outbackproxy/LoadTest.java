@@ -0,0 +1,309 @@
+package org.netpreserve.outbackproxy;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Drives a proxy with a synthetic workload for capacity planning.
+ *
+ * Generates a corpus (unless one already exists in CORPUS_DIR), serves it from a {@link StandInServer} with the
+ * configured latency, starts a proxy in-process or targets an external one, replays a URL and datetime workload
+ * through it over plain HTTP and HTTPS CONNECT, and reports throughput, latency percentiles and errors. See the
+ * README for the environment variables it reads.
+ */
+public class LoadTest {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private final Proxy proxy;
+    private final List<Request> workload;
+    private final SSLSocketFactory sslSocketFactory;
+    private final Stats http = new Stats();
+    private final Stats https = new Stats();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private volatile boolean recording;
+
+    private static class Request {
+        final String url;
+        final Instant time;
+
+        Request(String url, Instant time) {
+            this.url = url;
+            this.time = time;
+        }
+    }
+
+    private static class Stats {
+        final Metrics.Histogram latency = new Metrics.Histogram("latency", "");
+        final LongAdder bytes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    LoadTest(Proxy proxy, List<Request> workload) throws GeneralSecurityException {
+        this.proxy = proxy;
+        this.workload = workload;
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new TrustAllManager()}, null);
+        sslSocketFactory = context.getSocketFactory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> env = System.getenv();
+        Path corpusDir = Paths.get(env.getOrDefault("CORPUS_DIR", "corpus"));
+        if (!Files.exists(corpusDir.resolve(CorpusGenerator.INDEX_FILE))) {
+            CorpusGenerator generator = new CorpusGenerator(corpusDir);
+            generator.urls = Integer.parseInt(env.getOrDefault("CORPUS_URLS", "1000"));
+            generator.capturesPerUrl = Integer.parseInt(env.getOrDefault("CORPUS_CAPTURES", "3"));
+            generator.medianSize = Integer.parseInt(env.getOrDefault("CORPUS_MEDIAN_SIZE", "16384"));
+            generator.maxSize = Integer.parseInt(env.getOrDefault("CORPUS_MAX_SIZE", "8388608"));
+            generator.gzipFraction = Double.parseDouble(env.getOrDefault("CORPUS_GZIP", "0.8"));
+            generator.arcFraction = Double.parseDouble(env.getOrDefault("CORPUS_ARC", "0.1"));
+            generator.resourceFraction = Double.parseDouble(env.getOrDefault("CORPUS_RESOURCE", "0.1"));
+            generator.revisitFraction = Double.parseDouble(env.getOrDefault("CORPUS_REVISIT", "0.2"));
+            generator.httpsFraction = Double.parseDouble(env.getOrDefault("CORPUS_HTTPS", "0.5"));
+            generator.seed = Long.parseLong(env.getOrDefault("CORPUS_SEED", "0"));
+            System.out.println("Generated " + generator.generate() + " records in " + corpusDir);
+        }
+
+        StandInServer standIn = new StandInServer(Integer.parseInt(env.getOrDefault("STANDIN_PORT", "0")));
+        standIn.load(corpusDir);
+        standIn.latency(Long.parseLong(env.getOrDefault("CDX_LATENCY", "0")),
+                Long.parseLong(env.getOrDefault("WARC_LATENCY", "0")),
+                Long.parseLong(env.getOrDefault("LATENCY_JITTER", "0")));
+        System.out.println("Stand-in CDX server " + standIn.cdxUrl() + " and WARC server " + standIn.warcUrl());
+
+        String proxyAddress = env.getOrDefault("PROXY", "");
+        if (proxyAddress.isEmpty()) {
+            Map<String, String> proxyEnv = new HashMap<>(env);
+            proxyEnv.put("HOST", "127.0.0.1");
+            proxyEnv.putIfAbsent("PORT", "3128");
+            proxyEnv.put("CDX_URL", standIn.cdxUrl());
+            proxyEnv.put("WARC_URL", standIn.warcUrl());
+            OutbackProxy.fromEnvironment(proxyEnv).run();
+            proxyAddress = "127.0.0.1:" + proxyEnv.get("PORT");
+        }
+        int colon = proxyAddress.lastIndexOf(':');
+        Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyAddress.substring(0, colon),
+                Integer.parseInt(proxyAddress.substring(colon + 1))));
+
+        String workloadFile = env.getOrDefault("WORKLOAD", "");
+        List<Request> workload = workloadFile.isEmpty()
+                ? generateWorkload(corpusDir.resolve(CorpusGenerator.INDEX_FILE),
+                        Integer.parseInt(env.getOrDefault("WORKLOAD_SIZE", "100000")),
+                        Double.parseDouble(env.getOrDefault("WORKLOAD_SKEW", "1.0")),
+                        Long.parseLong(env.getOrDefault("CORPUS_SEED", "0")))
+                : readWorkload(Paths.get(workloadFile));
+
+        int concurrency = Integer.parseInt(env.getOrDefault("CONCURRENCY", "16"));
+        System.setProperty("http.maxConnections", Integer.toString(concurrency));
+        LoadTest loadTest = new LoadTest(proxy, workload);
+        loadTest.run(concurrency, Double.parseDouble(env.getOrDefault("RATE", "0")),
+                Long.parseLong(env.getOrDefault("WARMUP", "5")), Long.parseLong(env.getOrDefault("DURATION", "30")));
+        System.exit(0);
+    }
+
+    /**
+     * Picks captures from the CDX index with Zipf-distributed popularity and asks for a datetime near each.
+     */
+    static List<Request> generateWorkload(Path cdxFile, int size, double skew, long seed) throws IOException {
+        List<String> urls = new ArrayList<>();
+        List<Instant> times = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(cdxFile, UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split(" ");
+                urls.add(fields[2]);
+                times.add(Instant.ofEpochSecond(Capture.parseTimestamp(fields[1])));
+            }
+        }
+        Random random = new Random(seed);
+        int[] ranks = new int[urls.size()];
+        for (int i = 0; i < ranks.length; i++) {
+            int j = random.nextInt(i + 1);
+            ranks[i] = ranks[j];
+            ranks[j] = i;
+        }
+        double[] cumulative = new double[ranks.length];
+        double total = 0;
+        for (int i = 0; i < ranks.length; i++) {
+            total += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        List<Request> workload = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            int capture = ranks[rank < 0 ? -rank - 1 : rank];
+            Instant time = times.get(capture).plusSeconds(random.nextInt(7200) - 3600);
+            workload.add(new Request(urls.get(capture), time));
+        }
+        return workload;
+    }
+
+    /**
+     * Reads a workload of "timestamp url" lines, where timestamp is a 14 digit CDX timestamp.
+     */
+    static List<Request> readWorkload(Path file) throws IOException {
+        List<Request> workload = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                workload.add(new Request(line.substring(space + 1),
+                        Instant.ofEpochSecond(Capture.parseTimestamp(line.substring(0, space)))));
+            }
+        }
+        return workload;
+    }
+
+    /**
+     * Replays the workload from the given number of client threads. With a rate of 0 each client sends its next
+     * request as soon as the last completes. Otherwise requests are scheduled at the given total rate and latency is
+     * measured from the scheduled time, so a stalled proxy isn't flattered by clients backing off.
+     */
+    void run(int concurrency, double rate, long warmupSeconds, long durationSeconds) throws InterruptedException {
+        AtomicLong counter = new AtomicLong();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(warmupSeconds + durationSeconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[16384];
+                while (true) {
+                    long n = counter.getAndIncrement();
+                    long scheduled = rate > 0 ? start + (long) (n * 1e9 / rate) : System.nanoTime();
+                    if (scheduled >= deadline) {
+                        break;
+                    }
+                    long wait = scheduled - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    send(workload.get((int) (n % workload.size())), scheduled, buffer);
+                }
+            }, "client-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        recording = true;
+        long recordingStart = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report((System.nanoTime() - recordingStart) / 1e9);
+    }
+
+    private void send(Request request, long startNanos, byte[] buffer) {
+        Stats stats = request.url.startsWith("https:") ? https : http;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(request.url).openConnection(proxy);
+            if (connection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+                ((HttpsURLConnection) connection).setHostnameVerifier((hostname, session) -> true);
+            }
+            connection.setRequestProperty("Accept-Datetime", HTTP_DATE.format(request.time));
+            int status = connection.getResponseCode();
+            long bytes = 0;
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) {
+                    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                        bytes += n;
+                    }
+                }
+            }
+            if (recording) {
+                stats.latency.recordSince(startNanos);
+                stats.bytes.add(bytes);
+                if (status >= 400) {
+                    error(stats, "status " + status);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (recording) {
+                stats.latency.recordSince(startNanos);
+                error(stats, e.getClass().getSimpleName());
+            }
+        }
+    }
+
+    private void error(Stats stats, String kind) {
+        stats.errors.increment();
+        errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+    }
+
+    private void report(double seconds) {
+        long requests = http.latency.count() + https.latency.count();
+        long bytes = http.bytes.sum() + https.bytes.sum();
+        System.out.printf("%nDuration    %.1f s%n", seconds);
+        System.out.printf("Requests    %d (%.1f/s)%n", requests, requests / seconds);
+        System.out.printf("Received    %.1f MB (%.1f MB/s)%n", bytes / 1e6, bytes / 1e6 / seconds);
+        System.out.printf("%nLatency ms  %8s %8s %8s %8s %8s %8s %8s%n",
+                "requests", "errors", "p50", "p90", "p99", "p99.9", "max");
+        printLatency("http", http);
+        printLatency("https", https);
+        if (!errors.isEmpty()) {
+            System.out.println("\nErrors");
+            new TreeMap<>(errors).forEach((kind, count) -> System.out.printf("  %-30s %d%n", kind, count.sum()));
+        }
+    }
+
+    private static void printLatency(String name, Stats stats) {
+        Metrics.Histogram latency = stats.latency;
+        System.out.printf("%-11s %8d %8d %8.1f %8.1f %8.1f %8.1f %8.1f%n", name, latency.count(), stats.errors.sum(),
+                latency.quantile(0.5) / 1e6, latency.quantile(0.9) / 1e6, latency.quantile(0.99) / 1e6,
+                latency.quantile(0.999) / 1e6, latency.quantile(1.0) / 1e6);
+    }
+
+    /**
+     * The proxy generates certificates on the fly so the client trusts whatever it's given.
+     */
+    private static class TrustAllManager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
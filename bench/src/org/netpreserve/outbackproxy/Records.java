@@ -0,0 +1,163 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Builds WARC and ARC records for benchmarks and load tests.
+ */
+class Records {
+    static byte[] httpResponse(byte[] body) {
+        return httpResponse("text/html; charset=UTF-8", body);
+    }
+
+    static byte[] httpResponse(String contentType, byte[] body) {
+        return concat(httpHeader(contentType, body.length), body);
+    }
+
+    private static byte[] httpHeader(String contentType, int contentLength) {
+        String header = "HTTP/1.1 200 OK\r\n" +
+                "Date: Fri, 01 Jan 2010 00:00:00 GMT\r\n" +
+                "Server: Apache/2.2.14 (Ubuntu)\r\n" +
+                "Last-Modified: Thu, 31 Dec 2009 12:00:00 GMT\r\n" +
+                "ETag: \"1a2b3c-" + contentLength + "\"\r\n" +
+                "Accept-Ranges: bytes\r\n" +
+                "Cache-Control: max-age=3600\r\n" +
+                "Vary: Accept-Encoding\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + contentLength + "\r\n" +
+                "Connection: close\r\n" +
+                "\r\n";
+        return header.getBytes(ISO_8859_1);
+    }
+
+    static byte[] warcResponse(String url, Instant date, byte[] body) {
+        return warcResponse(url, date, "text/html; charset=UTF-8", body);
+    }
+
+    static byte[] warcResponse(String url, Instant date, String contentType, byte[] body) {
+        return warcRecord("response", url, date, "application/http; msgtype=response",
+                "WARC-Payload-Digest: sha1:" + digest(body) + "\r\n", httpResponse(contentType, body));
+    }
+
+    static byte[] warcResource(String url, Instant date, String contentType, byte[] body) {
+        return warcRecord("resource", url, date, contentType,
+                "WARC-Payload-Digest: sha1:" + digest(body) + "\r\n", body);
+    }
+
+    /**
+     * A revisit record noting that the payload was identical to that of an earlier capture.
+     */
+    static byte[] warcRevisit(String url, Instant date, String contentType, int contentLength, String digest,
+                              Instant refersToDate) {
+        return warcRecord("revisit", url, date, "application/http; msgtype=response",
+                "WARC-Payload-Digest: sha1:" + digest + "\r\n" +
+                "WARC-Profile: http://netpreserve.org/warc/1.0/revisit/identical-payload-digest\r\n" +
+                "WARC-Refers-To-Target-URI: " + url + "\r\n" +
+                "WARC-Refers-To-Date: " + DateTimeFormatter.ISO_INSTANT.format(refersToDate) + "\r\n",
+                httpHeader(contentType, contentLength));
+    }
+
+    private static byte[] warcRecord(String type, String url, Instant date, String contentType, String extraHeaders,
+                                     byte[] block) {
+        String header = "WARC/1.0\r\n" +
+                "WARC-Type: " + type + "\r\n" +
+                "WARC-Target-URI: " + url + "\r\n" +
+                "WARC-Date: " + DateTimeFormatter.ISO_INSTANT.format(date) + "\r\n" +
+                "WARC-Record-ID: <urn:uuid:" + UUID.randomUUID() + ">\r\n" +
+                "WARC-IP-Address: 93.184.216.34\r\n" +
+                extraHeaders +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + block.length + "\r\n" +
+                "\r\n";
+        return concat(header.getBytes(ISO_8859_1), block, "\r\n\r\n".getBytes(ISO_8859_1));
+    }
+
+    static byte[] arcRecord(String url, Instant date, byte[] body) {
+        return arcRecord(url, date, "text/html; charset=UTF-8", body);
+    }
+
+    static byte[] arcRecord(String url, Instant date, String contentType, byte[] body) {
+        byte[] http = httpResponse(contentType, body);
+        String mime = contentType.replaceFirst(";.*", "");
+        String header = url + " 93.184.216.34 " + Capture.ARC_TIME.format(date) + " " + mime + " " + http.length +
+                "\n";
+        return concat(header.getBytes(ISO_8859_1), http, "\n".getBytes(ISO_8859_1));
+    }
+
+    /**
+     * Returns the base32 SHA-1 of data as used in WARC digest headers and CDX files.
+     */
+    static String digest(byte[] data) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+        StringBuilder sb = new StringBuilder(32);
+        int buffer = 0;
+        int bits = 0;
+        for (byte b : hash) {
+            buffer = (buffer << 8) | (b & 0xff);
+            bits += 8;
+            while (bits >= 5) {
+                sb.append(alphabet.charAt((buffer >> (bits - 5)) & 31));
+                bits -= 5;
+            }
+        }
+        return sb.toString();
+    }
+
+    static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns size bytes of HTML-ish text, which compresses about as well as real pages do.
+     */
+    static byte[] body(int size, long seed) {
+        StringBuilder sb = new StringBuilder(size + 64);
+        sb.append("<html><body>");
+        Random random = new Random(seed);
+        while (sb.length() < size) {
+            sb.append("<p>").append(Long.toString(random.nextLong(), 36)).append(" lorem ipsum dolor sit amet</p>\n");
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes(ISO_8859_1);
+    }
+
+    /**
+     * Returns size random bytes, which like real images and video don't compress.
+     */
+    static byte[] binaryBody(int size, long seed) {
+        byte[] body = new byte[size];
+        new Random(seed).nextBytes(body);
+        return body;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
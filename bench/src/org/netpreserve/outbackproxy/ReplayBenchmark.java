@@ -0,0 +1,112 @@
+package org.netpreserve.outbackproxy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A replay request through the proxy end to end: CDX query, WARC range request, record parsing and streaming the
+ * payload to the client, against an in-memory stand-in CDX and WARC server.
+ *
+ * The virtual mode needs Java 21, on older JVMs run with -p handlerMode=blocking,async.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ReplayBenchmark {
+    private static final int URLS = 100;
+
+    @Param({"blocking", "async", "virtual"})
+    public String handlerMode;
+
+    @Param({"8192"})
+    public int bodySize;
+
+    private StandInServer standIn;
+    private HttpPool httpPool;
+    private ExecutorService upstreamExecutor;
+    private ExecutorService replayExecutor;
+    private OutbackProxy outbackProxy;
+    private Proxy proxy;
+
+    @State(Scope.Thread)
+    public static class Client {
+        final byte[] buffer = new byte[16384];
+        int next;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        standIn = new StandInServer();
+        for (int i = 0; i < URLS; i++) {
+            standIn.addCapture("http://example.org/page" + i, Instant.parse("2010-01-01T00:00:00Z"),
+                    Records.body(bodySize, i));
+        }
+        httpPool = new HttpPool(64, 30000, 5000, 30000);
+        Metrics metrics = new Metrics();
+        UpstreamLimits limits = new UpstreamLimits(Integer.MAX_VALUE, 0, 0, false);
+        CaptureIndex captureIndex = CaptureIndex.open(standIn.cdxUrl(), httpPool, null, limits);
+        ResourceStore resourceStore = new ResourceStore(Replicas.single(standIn.warcUrl()), httpPool, null,
+                new FileChannelCache(256, 60000), null, limits, metrics);
+        if (handlerMode.equals("async")) {
+            upstreamExecutor = AsyncReplayHandler.newUpstreamExecutor(64);
+        } else if (handlerMode.equals("virtual")) {
+            replayExecutor = VirtualThreadHandler.newVirtualThreadExecutor();
+        }
+        int port = freePort();
+        outbackProxy = new OutbackProxy("127.0.0.1", port, captureIndex, resourceStore,
+                new RevisitResolver(captureIndex, resourceStore, 100000), new CertificateGenerator(null, null), 1000,
+                86400, upstreamExecutor, replayExecutor, metrics, null, 0, 16);
+        outbackProxy.run();
+        proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", port));
+    }
+
+    @TearDown
+    public void tearDown() {
+        outbackProxy.stop();
+        if (upstreamExecutor != null) {
+            upstreamExecutor.shutdownNow();
+        }
+        if (replayExecutor != null) {
+            replayExecutor.shutdownNow();
+        }
+        httpPool.close();
+        standIn.close();
+    }
+
+    @Benchmark
+    public long replay(Client client) throws IOException {
+        URL url = new URL("http://example.org/page" + (client.next++ % URLS));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy);
+        connection.setRequestProperty("Accept-Datetime", "Fri, 01 Jan 2010 00:00:00 GMT");
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("proxy returned " + connection.getResponseCode() + " for " + url);
+        }
+        long total = 0;
+        try (InputStream in = connection.getInputStream()) {
+            for (int n = in.read(client.buffer); n >= 0; n = in.read(client.buffer)) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.netpreserve.outbackproxy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a record's WARC/ARC and HTTP headers, the work done for every request that misses the resource cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceBenchmark {
+    @Param({"warc", "warc.gz", "arc", "arc.gz"})
+    public String format;
+
+    @Param({"2048"})
+    public int bodySize;
+
+    private final RecordDecoder decoder = new RecordDecoder(4);
+    private byte[] record;
+
+    @Setup
+    public void setup() throws IOException {
+        Instant date = Instant.parse("2010-01-01T00:00:00Z");
+        byte[] body = Records.body(bodySize, 42);
+        record = format.startsWith("warc") ? Records.warcResponse("http://example.org/", date, body)
+                : Records.arcRecord("http://example.org/", date, body);
+        if (format.endsWith(".gz")) {
+            record = Records.gzip(record);
+        }
+    }
+
+    @Benchmark
+    public Instant fromStream() throws IOException {
+        try (Resource resource = Resource.fromStream(decoder.decode(new ByteArrayInputStream(record), record.length))) {
+            return resource.instant();
+        }
+    }
+}
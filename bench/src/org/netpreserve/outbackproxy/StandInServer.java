@@ -0,0 +1,212 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.SameThreadExecutor;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static io.undertow.util.Headers.CONTENT_RANGE;
+import static io.undertow.util.Headers.CONTENT_TYPE;
+import static io.undertow.util.Headers.RANGE;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A stand-in CDX server and WARC server for exercising the proxy without real infrastructure.
+ *
+ * WARC and ARC files are served with byte ranges under /warc/ and indexed for pywb-style CDX queries under /cdx.
+ * Captures can be added one at a time, which appends them to an in-memory WARC file, or a corpus directory written
+ * by {@link CorpusGenerator} can be loaded. Latency can be injected into responses to simulate remote servers
+ * without tying up threads.
+ */
+class StandInServer implements AutoCloseable {
+    static final String FILENAME = "archive.warc.gz";
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final Map<String, List<Entry>> index = new ConcurrentHashMap<>();
+    private final Map<String, ByteBuffer> files = new ConcurrentHashMap<>();
+    private final ByteArrayOutputStream warcBuffer = new ByteArrayOutputStream();
+    private final Undertow server;
+    private final int port;
+    private volatile long cdxLatencyMillis;
+    private volatile long warcLatencyMillis;
+    private volatile long jitterMillis;
+
+    private static class Entry {
+        final long time;
+        final String cdxLine;
+
+        Entry(long time, String cdxLine) {
+            this.time = time;
+            this.cdxLine = cdxLine;
+        }
+    }
+
+    StandInServer() {
+        this(0);
+    }
+
+    StandInServer(int listenPort) {
+        server = Undertow.builder()
+                .addHttpListener(listenPort, "127.0.0.1")
+                .setHandler(this::handleRequest)
+                .build();
+        server.start();
+        port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+    }
+
+    /**
+     * Appends a capture of url with the given body to the archive.
+     */
+    synchronized void addCapture(String url, Instant date, byte[] body) {
+        byte[] record = Records.gzip(Records.warcResponse(url, date, body));
+        long offset = warcBuffer.size();
+        warcBuffer.write(record, 0, record.length);
+        files.put(FILENAME, ByteBuffer.wrap(warcBuffer.toByteArray()));
+        String cdxLine = Surt.fromUrl(url) + " " + Capture.ARC_TIME.format(date) + " " + url +
+                " text/html 200 - - - " + record.length + " " + offset + " " + FILENAME;
+        addCdxLine(cdxLine);
+    }
+
+    /**
+     * Serves the archive files in dir and the captures listed in its CDX index.
+     */
+    void load(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (!name.equals(CorpusGenerator.INDEX_FILE)) {
+                    try (FileChannel channel = FileChannel.open(file, READ)) {
+                        files.put(name, channel.map(READ_ONLY, 0, channel.size()));
+                    }
+                }
+            }
+        }
+        try (BufferedReader reader = Files.newBufferedReader(dir.resolve(CorpusGenerator.INDEX_FILE), UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                addCdxLine(line);
+            }
+        }
+    }
+
+    private void addCdxLine(String cdxLine) {
+        String[] fields = cdxLine.split(" ");
+        index.computeIfAbsent(canonicalize(fields[2]), k -> new ArrayList<>())
+                .add(new Entry(Capture.parseTimestamp(fields[1]), cdxLine));
+    }
+
+    /**
+     * Delays CDX and WARC responses by the given time plus up to jitterMillis more.
+     */
+    void latency(long cdxLatencyMillis, long warcLatencyMillis, long jitterMillis) {
+        this.cdxLatencyMillis = cdxLatencyMillis;
+        this.warcLatencyMillis = warcLatencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    String cdxUrl() {
+        return "http://127.0.0.1:" + port + "/cdx";
+    }
+
+    String warcUrl() {
+        return "http://127.0.0.1:" + port + "/warc/";
+    }
+
+    void handleRequest(HttpServerExchange exchange) {
+        long delay = exchange.getRequestPath().equals("/cdx") ? cdxLatencyMillis : warcLatencyMillis;
+        if (jitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+        }
+        if (delay > 0) {
+            long millis = delay;
+            exchange.dispatch(SameThreadExecutor.INSTANCE, () ->
+                    exchange.getIoThread().executeAfter(() -> respond(exchange), millis, TimeUnit.MILLISECONDS));
+        } else {
+            respond(exchange);
+        }
+    }
+
+    private void respond(HttpServerExchange exchange) {
+        String path = exchange.getRequestPath();
+        ByteBuffer file = path.startsWith("/warc/") ? files.get(path.substring("/warc/".length())) : null;
+        if (path.equals("/cdx")) {
+            exchange.getResponseHeaders().put(CONTENT_TYPE, "text/plain");
+            exchange.getResponseSender().send(query(exchange));
+        } else if (file != null) {
+            sendRange(exchange, file.duplicate());
+        } else {
+            exchange.setStatusCode(404);
+            exchange.endExchange();
+        }
+    }
+
+    private String query(HttpServerExchange exchange) {
+        Deque<String> url = exchange.getQueryParameters().get("url");
+        List<Entry> entries = url == null ? null : index.get(canonicalize(url.getFirst()));
+        if (entries == null) {
+            return "";
+        }
+        Deque<String> closest = exchange.getQueryParameters().get("closest");
+        List<Entry> results = new ArrayList<>(entries);
+        if (closest != null) {
+            long target = Capture.parseTimestamp(closest.getFirst());
+            results.sort(Comparator.comparingLong(e -> Math.abs(e.time - target)));
+            results = results.subList(0, 1);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : results) {
+            sb.append(entry.cdxLine).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Just enough canonicalization to match the URLs the proxy looks up, which may have an empty query string.
+     */
+    private static String canonicalize(String url) {
+        return url.endsWith("?") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    private static void sendRange(HttpServerExchange exchange, ByteBuffer file) {
+        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/warc");
+        String range = exchange.getRequestHeaders().getFirst(RANGE);
+        Matcher m = range == null ? null : RANGE_PATTERN.matcher(range);
+        if (m == null || !m.matches()) {
+            exchange.getResponseSender().send(file);
+            return;
+        }
+        int length = file.remaining();
+        int start = Integer.parseInt(m.group(1));
+        int end = m.group(2).isEmpty() ? length - 1 : (int) Math.min(Long.parseLong(m.group(2)), length - 1);
+        exchange.setStatusCode(206);
+        exchange.getResponseHeaders().put(CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        file.position(start).limit(end + 1);
+        exchange.getResponseSender().send(file);
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+}
@@ -0,0 +1,335 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.UndertowLogger;
+import io.undertow.io.IoCallback;
+import io.undertow.io.Sender;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
+import org.xnio.channels.StreamSinkChannel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handles replay requests without tying up an XNIO worker thread for the life of each request.
+ *
+ * The index lookup, record fetch and WARC header parsing use blocking I/O so they run on a separate upstream
+ * executor. The payload is then copied one buffer at a time: each buffer is filled from the record on the upstream
+ * executor and written to the response channel by the IO thread, which waits for write readiness instead of
+ * blocking when the client is slow. A slow client therefore holds a buffer but no thread.
+ *
+ * Uncompressed payloads in local files are instead sent from the IO thread with sendfile and payloads held in memory
+ * by the resource cache are written directly.
+ */
+class AsyncReplayHandler implements HttpHandler {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final OutbackProxy proxy;
+    private final Executor upstreamExecutor;
+
+    AsyncReplayHandler(OutbackProxy proxy, Executor upstreamExecutor) {
+        this.proxy = proxy;
+        this.upstreamExecutor = upstreamExecutor;
+    }
+
+    static ExecutorService newUpstreamExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "upstream-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) {
+        exchange.dispatch(upstreamExecutor, () -> {
+            Capture capture;
+            Resource resource = null;
+            try {
+                capture = proxy.findCapture(exchange);
+                if (capture != null && OutbackProxy.notModified(exchange, capture, null)) {
+                    onIoThread(exchange, () -> proxy.sendNotModified(exchange, capture));
+                    return;
+                }
+                if (capture != null) {
+                    resource = proxy.openResource(capture);
+                }
+            } catch (Throwable t) {
+                onIoThread(exchange, () -> proxy.sendError(exchange, t));
+                return;
+            }
+            Resource found = resource;
+            onIoThread(exchange, () -> {
+                if (found == null) {
+                    proxy.sendNotFound(exchange);
+                } else {
+                    new Transfer(exchange, capture, found).start();
+                }
+            });
+        });
+    }
+
+    /**
+     * Runs a task on the exchange's IO thread. Such tasks run outside Undertow's root handler, which would otherwise
+     * end the exchange if they threw, so a failure is reported here instead.
+     */
+    private void onIoThread(HttpServerExchange exchange, Runnable task) {
+        exchange.getIoThread().execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                fail(exchange, t);
+            }
+        });
+    }
+
+    /**
+     * Sends an error response or, if the response is already underway, drops the connection as the only way left to
+     * signal the error.
+     */
+    private void fail(HttpServerExchange exchange, Throwable t) {
+        if (!exchange.isResponseStarted()) {
+            try {
+                proxy.sendError(exchange, t);
+                return;
+            } catch (RuntimeException e) {
+                t.addSuppressed(e);
+            }
+        }
+        proxy.metrics().abortedResponses.increment();
+        if (t instanceof IOException) {
+            UndertowLogger.REQUEST_IO_LOGGER.ioException((IOException) t);
+        } else {
+            UndertowLogger.REQUEST_IO_LOGGER.handleUnexpectedFailure(t);
+        }
+        IoUtils.safeClose(exchange.getConnection());
+    }
+
+    /**
+     * Copies a resource's payload to the response channel.
+     */
+    private class Transfer implements ChannelListener<StreamSinkChannel> {
+        private final HttpServerExchange exchange;
+        private final Capture capture;
+        private final Resource resource;
+        private final InputStream payload;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private StreamSinkChannel channel;
+        private FileChannel file;
+        private long filePosition;
+        private long fileRemaining;
+        private boolean headersFlushed;
+        private boolean finishing;
+        private boolean resourceClosed;
+        private long startNanos;
+
+        Transfer(HttpServerExchange exchange, Capture capture, Resource resource) {
+            this.exchange = exchange;
+            this.capture = capture;
+            this.resource = resource;
+            this.payload = resource.payload();
+        }
+
+        void start() {
+            try {
+                if (!proxy.prepareResponse(exchange, capture, resource)) {
+                    exchange.endExchange();
+                    closeResource();
+                    return;
+                }
+                startNanos = System.nanoTime();
+                if (resource.payloadBuffer() != null) {
+                    proxy.metrics().bytesServed.add(resource.payloadBuffer().remaining());
+                    exchange.getResponseSender().send(resource.payloadBuffer(), new IoCallback() {
+                        @Override
+                        public void onComplete(HttpServerExchange exchange, Sender sender) {
+                            proxy.metrics().payloadStream.recordSince(startNanos);
+                            IoCallback.END_EXCHANGE.onComplete(exchange, sender);
+                        }
+
+                        @Override
+                        public void onException(HttpServerExchange exchange, Sender sender, IOException exception) {
+                            proxy.metrics().abortedResponses.increment();
+                            IoCallback.END_EXCHANGE.onException(exchange, sender, exception);
+                        }
+                    });
+                    closeResource();
+                    return;
+                }
+                if (OutbackProxy.canTransferFile(exchange, resource)) {
+                    file = resource.fileChannel();
+                    filePosition = resource.filePosition();
+                    fileRemaining = resource.payloadLength();
+                }
+                channel = exchange.getResponseChannel();
+                channel.getWriteSetter().set(this);
+            } catch (Throwable t) {
+                abort(t);
+                return;
+            }
+            if (file != null) {
+                transferFile();
+            } else {
+                fill();
+            }
+        }
+
+        /**
+         * Send the payload straight from the local file with sendfile until the channel is full.
+         */
+        private void transferFile() {
+            try {
+                // Undertow reads from the file's current position rather than the one given while headers are pending
+                if (!headersFlushed) {
+                    if (!channel.flush()) {
+                        channel.resumeWrites();
+                        return;
+                    }
+                    headersFlushed = true;
+                }
+                while (fileRemaining > 0) {
+                    long n = channel.transferFrom(file, filePosition, fileRemaining);
+                    if (n == 0) {
+                        if (filePosition >= file.size()) {
+                            throw new EOFException("payload truncated");
+                        }
+                        channel.resumeWrites();
+                        return;
+                    }
+                    filePosition += n;
+                    fileRemaining -= n;
+                    proxy.metrics().bytesServed.add(n);
+                }
+            } catch (IOException e) {
+                abort(e);
+                return;
+            }
+            finish();
+        }
+
+        /**
+         * Fill the buffer from the payload on the upstream executor and then write it from the IO thread.
+         */
+        private void fill() {
+            upstreamExecutor.execute(() -> {
+                int n;
+                try {
+                    n = payload.read(buffer.array(), 0, buffer.capacity());
+                } catch (Throwable t) {
+                    onIoThread(() -> abort(t));
+                    return;
+                }
+                if (n < 0) {
+                    onIoThread(this::finish);
+                } else {
+                    buffer.clear();
+                    buffer.limit(n);
+                    onIoThread(this::write);
+                }
+            });
+        }
+
+        /**
+         * Write as much of the buffer as the channel will take, waiting for write readiness if it fills up.
+         */
+        private void write() {
+            try {
+                while (buffer.hasRemaining()) {
+                    int n = channel.write(buffer);
+                    if (n == 0) {
+                        channel.resumeWrites();
+                        return;
+                    }
+                    proxy.metrics().bytesServed.add(n);
+                }
+            } catch (IOException e) {
+                abort(e);
+                return;
+            }
+            fill();
+        }
+
+        private void finish() {
+            finishing = true;
+            try {
+                channel.shutdownWrites();
+                if (!channel.flush()) {
+                    channel.resumeWrites();
+                    return;
+                }
+            } catch (IOException e) {
+                abort(e);
+                return;
+            }
+            complete();
+        }
+
+        @Override
+        public void handleEvent(StreamSinkChannel channel) {
+            channel.suspendWrites();
+            if (!finishing) {
+                if (file != null) {
+                    transferFile();
+                } else {
+                    write();
+                }
+                return;
+            }
+            try {
+                if (!channel.flush()) {
+                    channel.resumeWrites();
+                    return;
+                }
+            } catch (IOException e) {
+                abort(e);
+                return;
+            }
+            complete();
+        }
+
+        private void complete() {
+            proxy.metrics().payloadStream.recordSince(startNanos);
+            exchange.endExchange();
+            closeResource();
+        }
+
+        private void onIoThread(Runnable task) {
+            exchange.getIoThread().execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    abort(t);
+                }
+            });
+        }
+
+        private void abort(Throwable t) {
+            closeResource();
+            fail(exchange, t);
+        }
+
+        private void closeResource() {
+            if (resourceClosed) {
+                return;
+            }
+            resourceClosed = true;
+            upstreamExecutor.execute(() -> {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            });
+        }
+    }
+}
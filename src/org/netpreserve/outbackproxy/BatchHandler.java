@@ -0,0 +1,281 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Methods;
+import io.undertow.util.StatusCodes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.undertow.util.Headers.*;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Replays many captures in one request so tooling doesn't pay for a proxied round trip per resource.
+ *
+ * The request body is a list of URLs, one per line, each optionally preceded by a 4 to 14 digit CDX timestamp and a
+ * space. A URL without a timestamp gets the request's Accept-Datetime. Up to concurrency lines are looked up and
+ * their records opened at once, and as each finishes another line is read. Results are written in the order they
+ * finish as a multipart/mixed response with one message/http part per line, its Content-Location naming the URL.
+ * Each part is the response the proxy would have sent, or a 400, 404, 503 or 500 status. A line that fails doesn't
+ * affect the others.
+ */
+class BatchHandler implements HttpHandler {
+    private final OutbackProxy proxy;
+    private final ExecutorService executor;
+    private final int concurrency;
+
+    /**
+     * @param executor    runs the request and its lookups and record fetches
+     * @param concurrency maximum lines of one request in progress at once
+     */
+    BatchHandler(OutbackProxy proxy, ExecutorService executor, int concurrency) {
+        this.proxy = proxy;
+        this.executor = executor;
+        this.concurrency = concurrency;
+    }
+
+    static ExecutorService newExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "batch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(executor, this);
+            return;
+        }
+        if (!exchange.getRequestMethod().equals(Methods.POST)) {
+            exchange.setStatusCode(StatusCodes.METHOD_NOT_ALLOWED);
+            exchange.getResponseHeaders().put(ALLOW, "POST");
+            exchange.endExchange();
+            return;
+        }
+        Instant defaultTime;
+        try {
+            defaultTime = OutbackProxy.parseRequestedTime(exchange);
+        } catch (DateTimeParseException e) {
+            exchange.setStatusCode(StatusCodes.BAD_REQUEST);
+            exchange.getResponseHeaders().put(CONTENT_TYPE, "text/plain");
+            exchange.getResponseSender().send("Invalid Accept-Datetime: " + e.getParsedString());
+            return;
+        }
+        exchange.startBlocking();
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        exchange.getResponseHeaders().put(CONTENT_TYPE, "multipart/mixed; boundary=" + boundary);
+        BufferedReader lines = new BufferedReader(new InputStreamReader(exchange.getInputStream(), UTF_8));
+        CompletionService<Result> results = new ExecutorCompletionService<>(executor);
+        OutputStream output = exchange.getOutputStream();
+        int inFlight = 0;
+        try {
+            boolean more = true;
+            while (true) {
+                while (more && inFlight < concurrency) {
+                    String line = lines.readLine();
+                    if (line == null) {
+                        more = false;
+                    } else if (!line.trim().isEmpty()) {
+                        Item item = Item.parse(line.trim());
+                        results.submit(() -> fetch(item, defaultTime));
+                        inFlight++;
+                    }
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+                Result result = results.take().get();
+                inFlight--;
+                try {
+                    writePart(output, boundary, result);
+                } finally {
+                    if (result.resource != null) {
+                        result.resource.close();
+                    }
+                }
+                output.flush();
+            }
+            output.write(("--" + boundary + "--\r\n").getBytes(ISO_8859_1));
+            output.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            closeRemaining(results, inFlight);
+        }
+    }
+
+    /**
+     * Looks up and opens one capture, capturing any failure to report in its part.
+     */
+    private Result fetch(Item item, Instant defaultTime) {
+        Result result = new Result(item);
+        Instant time;
+        try {
+            time = item.time(defaultTime);
+        } catch (IllegalArgumentException e) {
+            result.badRequest = e.getMessage();
+            return result;
+        }
+        try {
+            result.capture = proxy.findCapture(item.url, time);
+            if (result.capture != null) {
+                result.resource = proxy.openResource(result.capture);
+            }
+        } catch (Exception e) {
+            result.failure = e;
+        }
+        return result;
+    }
+
+    /**
+     * Waits for lines still in progress after the client went away and closes their records.
+     */
+    private static void closeRemaining(CompletionService<Result> results, int inFlight) {
+        for (; inFlight > 0; inFlight--) {
+            try {
+                Resource resource = results.take().get().resource;
+                if (resource != null) {
+                    resource.close();
+                }
+            } catch (Exception e) {
+                // nothing more to do with it
+            }
+        }
+    }
+
+    private void writePart(OutputStream output, String boundary, Result result) throws IOException {
+        Metrics metrics = proxy.metrics();
+        metrics.batchItems.increment();
+        StringBuilder sb = new StringBuilder();
+        sb.append("--").append(boundary).append("\r\n");
+        sb.append("Content-Type: message/http; msgtype=response\r\n");
+        sb.append("Content-Location: ").append(result.item.url).append("\r\n\r\n");
+        HeaderMap headers = new HeaderMap();
+        String body;
+        if (result.badRequest != null) {
+            sb.append("HTTP/1.1 400 Bad Request\r\n");
+            body = result.badRequest;
+        } else if (result.resource != null) {
+            sb.append("HTTP/1.1 200 OK\r\n");
+            OutbackProxy.putArchivedHeaders(headers, result.capture, result.resource);
+            if (result.resource.payloadLength() >= 0) {
+                headers.put(CONTENT_LENGTH, result.resource.payloadLength());
+            }
+            body = null;
+        } else if (result.failure == null || result.failure instanceof RevisitResolver.OriginalNotFoundException) {
+            metrics.notFound.increment();
+            sb.append("HTTP/1.1 404 Not Found\r\n");
+            body = "Not in archive";
+        } else if (result.failure instanceof ConcurrencyLimiter.OverloadedException) {
+            sb.append("HTTP/1.1 503 Service Unavailable\r\n");
+            headers.put(RETRY_AFTER, ((ConcurrencyLimiter.OverloadedException) result.failure).retryAfterSeconds());
+            body = result.failure.getMessage();
+        } else {
+            metrics.serverErrors.increment();
+            sb.append("HTTP/1.1 500 Internal Server Error\r\n");
+            body = result.failure.toString();
+        }
+        if (body != null) {
+            headers.put(CONTENT_TYPE, "text/plain");
+            headers.put(CONTENT_LENGTH, body.getBytes(UTF_8).length);
+        }
+        for (HeaderValues values : headers) {
+            for (String value : values) {
+                sb.append(values.getHeaderName()).append(": ").append(value).append("\r\n");
+            }
+        }
+        sb.append("\r\n");
+        output.write(sb.toString().getBytes(UTF_8));
+        if (body != null) {
+            output.write(body.getBytes(UTF_8));
+        } else {
+            long start = System.nanoTime();
+            metrics.bytesServed.add(copyStream(result.resource.payload(), output));
+            metrics.payloadStream.recordSince(start);
+        }
+        output.write("\r\n".getBytes(ISO_8859_1));
+    }
+
+    private static long copyStream(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        for (int n = input.read(buffer); n >= 0; n = input.read(buffer)) {
+            output.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * A line of the request.
+     */
+    static class Item {
+        final String url;
+        final String timestamp;
+
+        /**
+         * @param timestamp CDX timestamp or null for the request's Accept-Datetime
+         */
+        Item(String url, String timestamp) {
+            this.url = url;
+            this.timestamp = timestamp;
+        }
+
+        static Item parse(String line) {
+            int space = line.indexOf(' ');
+            if (space >= 4 && space <= 14 && isDigits(line, space)) {
+                return new Item(line.substring(space + 1).trim(), line.substring(0, space));
+            }
+            return new Item(line, null);
+        }
+
+        /**
+         * @throws IllegalArgumentException if the timestamp isn't a valid date
+         */
+        Instant time(Instant defaultTime) {
+            return timestamp == null ? defaultTime : Instant.ofEpochSecond(Capture.parseTimestamp(timestamp));
+        }
+
+        private static boolean isDigits(String s, int end) {
+            for (int i = 0; i < end; i++) {
+                if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Result {
+        final Item item;
+        Capture capture;
+        Resource resource;
+        Exception failure;
+        String badRequest;
+
+        Result(Item item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A read-through cache of remote WARC files on local disk in fixed size, block aligned chunks.
+ *
+ * A record is read block by block. Cached blocks are read from disk and each run of missing blocks is fetched with a
+ * single range request in the background. Each block is handed to the readers waiting for it as soon as it arrives
+ * and then written to disk, so a reader needn't wait for the rest of the run. When a file is being read sequentially
+ * the request also fetches the next few blocks ahead. Only whole blocks are kept, so the short final block of a file
+ * is always fetched.
+ *
+ * Each block is a file named after a hash of its WARC's filename and its index, so replicas of a file share blocks.
+ * The journal file lists blocks as they are added and evicted so the cache's contents survive a restart; it is
+ * compacted on startup and whenever it grows much larger than the cache. Remote files are assumed never to change.
+ */
+class BlockCache implements Closeable {
+    private static final String HEADER_PREFIX = "#blocks ";
+    private static final String JOURNAL = "journal";
+    /**
+     * Limit on the blocks fetched by one request, which bounds how much of a large record is held in memory for a
+     * reader that hasn't got to it yet.
+     */
+    private static final int MAX_RUN = 64;
+    private static final int MAX_TRACKED_FILES = 4096;
+
+    private final Path dir;
+    private final long capacity;
+    private final int blockSize;
+    private final int readAhead;
+    private final HttpPool httpPool;
+    private final LinkedHashMap<String, Boolean> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> nextFetch = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACKED_FILES;
+        }
+    };
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    private final ExecutorService fetchExecutor;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder rangeRequests = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder fetchedBytes = new LongAdder();
+    private Writer journal;
+    private long journalLines;
+
+    /**
+     * @param capacity  bytes of blocks to keep
+     * @param blockSize size of each block, changing it empties an existing cache
+     * @param readAhead blocks to fetch beyond those requested when a file is read sequentially
+     */
+    BlockCache(Path dir, long capacity, int blockSize, int readAhead, HttpPool httpPool) throws IOException {
+        this.dir = dir;
+        this.capacity = capacity;
+        this.blockSize = blockSize;
+        this.readAhead = readAhead;
+        this.httpPool = httpPool;
+        AtomicInteger count = new AtomicInteger();
+        this.fetchExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "block-fetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Files.createDirectories(dir);
+        load();
+    }
+
+    /**
+     * Reads the journal, deletes block files it doesn't list and writes it back compacted.
+     */
+    private synchronized void load() throws IOException {
+        Path journalFile = dir.resolve(JOURNAL);
+        if (Files.exists(journalFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile, US_ASCII)) {
+                String line = reader.readLine();
+                if ((HEADER_PREFIX + blockSize).equals(line)) {
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("+")) {
+                            blocks.put(line.substring(1), Boolean.TRUE);
+                        } else if (line.startsWith("-")) {
+                            blocks.remove(line.substring(1));
+                        }
+                    }
+                }
+            }
+        }
+        try (Stream<Path> files = Files.walk(dir, 2)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file) && !file.getParent().equals(dir)
+                        && !blocks.containsKey(file.getFileName().toString())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        List<Path> evicted = new ArrayList<>();
+        evict(evicted);
+        compact();
+        delete(evicted);
+    }
+
+    private void compact() throws IOException {
+        Path journalFile = dir.resolve(JOURNAL);
+        Path tmp = dir.resolve(JOURNAL + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, US_ASCII)) {
+            writer.write(HEADER_PREFIX + blockSize + "\n");
+            for (String key : blocks.keySet()) {
+                writer.write("+" + key + "\n");
+            }
+        }
+        Files.move(tmp, journalFile, ATOMIC_MOVE, REPLACE_EXISTING);
+        if (journal != null) {
+            journal.close();
+        }
+        journal = Files.newBufferedWriter(journalFile, US_ASCII, WRITE, APPEND);
+        journalLines = blocks.size();
+    }
+
+    private void log(char op, String key) throws IOException {
+        journal.write(op + key + "\n");
+        journalLines++;
+    }
+
+    /**
+     * Opens a stream of length bytes (or to the end of the file if -1) of the file at url beginning at offset. Blocks
+     * are cached under the file's name so replicas of a file share them. The first block is read before returning so
+     * errors fetching it are thrown here.
+     */
+    InputStream open(String filename, URL url, long offset, long length) throws IOException {
+        BlockInputStream stream = new BlockInputStream(filename, url, offset,
+                length < 0 ? Long.MAX_VALUE : offset + length);
+        try {
+            stream.load();
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+        return stream;
+    }
+
+    private static String hash(String filename) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(filename.getBytes(UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String key(String hash, long index) {
+        return hash + "-" + index;
+    }
+
+    private Path path(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private synchronized boolean contains(String key) {
+        return blocks.containsKey(key);
+    }
+
+    /**
+     * Opens a cached block or returns null if it isn't cached.
+     */
+    private FileChannel openBlock(String key) throws IOException {
+        synchronized (this) {
+            if (blocks.get(key) == null) {
+                return null;
+            }
+        }
+        try {
+            return FileChannel.open(path(key), READ);
+        } catch (NoSuchFileException e) {
+            synchronized (this) {
+                if (blocks.remove(key) != null) {
+                    log('-', key);
+                    journal.flush();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes a whole block to disk and adds it to the cache, evicting the least recently used blocks if over
+     * capacity. A block that can't be written is left uncached.
+     */
+    private void store(String key, byte[] data) {
+        Path file = path(key);
+        Path tmp = null;
+        List<Path> evicted = new ArrayList<>();
+        try {
+            Files.createDirectories(file.getParent());
+            tmp = Files.createTempFile(file.getParent(), key, ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+            tmp = null;
+            synchronized (this) {
+                if (blocks.put(key, Boolean.TRUE) == null) {
+                    log('+', key);
+                }
+                evict(evicted);
+                if (journalLines > 2L * blocks.size() + 1000) {
+                    compact();
+                } else {
+                    journal.flush();
+                }
+            }
+        } catch (IOException e) {
+            // the readers already have it
+        } finally {
+            if (tmp != null) {
+                tmp.toFile().delete();
+            }
+            delete(evicted);
+        }
+    }
+
+    private void evict(List<Path> evicted) throws IOException {
+        Iterator<String> it = blocks.keySet().iterator();
+        while ((long) blocks.size() * blockSize > capacity && it.hasNext()) {
+            String key = it.next();
+            it.remove();
+            if (journal != null) {
+                log('-', key);
+            }
+            evicted.add(path(key));
+            evictions.increment();
+        }
+    }
+
+    private static void delete(List<Path> files) {
+        for (Path file : files) {
+            file.toFile().delete();
+        }
+    }
+
+    /**
+     * Starts fetching a run of missing blocks beginning with first and returns the future for first, or the future of a
+     * fetch of first already under way. The run extends to the last block needed, and beyond it by the read-ahead if
+     * the previous fetch from this file ended just before first, but stops at a block that is cached or already being
+     * fetched. The futures of the other needed blocks are added to needed, so the reader has them even if they can't
+     * be cached.
+     */
+    private CompletableFuture<byte[]> fetch(URL url, String hash, long first, long lastNeeded,
+                                            Map<Long, CompletableFuture<byte[]>> needed) {
+        CompletableFuture<byte[]> firstFuture = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = pending.putIfAbsent(key(hash, first), firstFuture);
+        if (existing != null) {
+            return existing;
+        }
+        boolean sequential;
+        synchronized (nextFetch) {
+            Long expected = nextFetch.get(hash);
+            sequential = expected != null && expected == first;
+        }
+        long limit = Math.min(first + MAX_RUN - 1, sequential ? lastNeeded + readAhead : lastNeeded);
+        List<CompletableFuture<byte[]>> run = new ArrayList<>();
+        run.add(firstFuture);
+        for (long i = first + 1; i <= limit && !contains(key(hash, i)); i++) {
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            if (pending.putIfAbsent(key(hash, i), future) != null) {
+                break;
+            }
+            run.add(future);
+            if (i <= lastNeeded) {
+                needed.put(i, future);
+            }
+        }
+        synchronized (nextFetch) {
+            nextFetch.put(hash, first + run.size());
+        }
+        rangeRequests.increment();
+        try {
+            fetchExecutor.execute(() -> download(url, hash, first, run));
+        } catch (RejectedExecutionException e) {
+            fail(hash, first, run, 0, new IOException("block cache closed", e));
+        }
+        return firstFuture;
+    }
+
+    /**
+     * Requests a run of blocks, completing each block's future as it arrives before writing it to disk.
+     */
+    private void download(URL url, String hash, long first, List<CompletableFuture<byte[]>> run) {
+        int done = 0;
+        String range = "bytes=" + first * blockSize + "-" + ((first + run.size()) * blockSize - 1);
+        try (HttpPool.Response response = httpPool.get(url, "Range", range)) {
+            if (response.status() != 416) { // 416 starts past the end of the file
+                InputStream body = response.body();
+                if (response.status() == 200) { // server ignored the range
+                    skipFully(body, first * blockSize);
+                } else if (response.status() != 206) {
+                    throw response.error("WARC server", url);
+                }
+                for (; done < run.size(); done++) {
+                    String key = key(hash, first + done);
+                    byte[] data = new byte[blockSize];
+                    int n = readFully(body, data);
+                    fetchedBytes.add(n);
+                    if (n < blockSize) {
+                        run.get(done).complete(Arrays.copyOf(data, n));
+                        pending.remove(key);
+                        done++;
+                        break;
+                    }
+                    run.get(done).complete(data);
+                    store(key, data);
+                    pending.remove(key);
+                }
+            }
+            for (; done < run.size(); done++) { // past the end of the file
+                run.get(done).complete(new byte[0]);
+                pending.remove(key(hash, first + done));
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(hash, first, run, done, e);
+        }
+    }
+
+    private void fail(String hash, long first, List<CompletableFuture<byte[]>> run, int from, Exception e) {
+        for (int i = from; i < run.size(); i++) {
+            run.get(i).completeExceptionally(e);
+            pending.remove(key(hash, first + i));
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = in.read(buffer, total, buffer.length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static void skipFully(InputStream stream, long n) throws IOException {
+        while (n > 0) {
+            long skipped = stream.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException("unexpected end of stream skipping to block");
+            }
+            n -= skipped;
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long rangeRequests() {
+        return rangeRequests.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long fetchedBytes() {
+        return fetchedBytes.sum();
+    }
+
+    synchronized long bytes() {
+        return (long) blocks.size() * blockSize;
+    }
+
+    /**
+     * Number of blocks being fetched or written to disk.
+     */
+    int pendingBlocks() {
+        return pending.size();
+    }
+
+    /**
+     * Waits for fetches under way to finish writing their blocks and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        fetchExecutor.shutdown();
+        try {
+            fetchExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Reads a range of a remote file through the cache.
+     */
+    private class BlockInputStream extends InputStream {
+        private final URL url;
+        private final String hash;
+        private final long end;
+        private final Map<Long, CompletableFuture<byte[]>> needed = new HashMap<>();
+        private final byte[] single = new byte[1];
+        private long position;
+        private long index = -1;
+        private FileChannel file;
+        private byte[] data;
+        private int length;
+
+        BlockInputStream(String filename, URL url, long offset, long end) {
+            this.url = url;
+            this.hash = hash(filename);
+            this.position = offset;
+            this.end = end;
+        }
+
+        /**
+         * Makes the block containing position the current one.
+         */
+        void load() throws IOException {
+            closeBlock();
+            index = position / blockSize;
+            CompletableFuture<byte[]> future = needed.remove(index);
+            if (future == null) {
+                String key = key(hash, index);
+                future = pending.get(key); // checked before the disk as blocks are written before leaving pending
+                if (future == null) {
+                    file = openBlock(key);
+                    if (file != null) {
+                        hits.increment();
+                        length = blockSize;
+                        return;
+                    }
+                    long lastNeeded = end == Long.MAX_VALUE ? index : (end - 1) / blockSize;
+                    future = fetch(url, hash, index, lastNeeded, needed);
+                }
+            }
+            try {
+                data = LruCache.<byte[], IOException>await(future);
+            } catch (IllegalStateException e) {
+                if (Thread.currentThread().isInterrupted()) { // not a bad record, so don't let the parser see it
+                    throw (InterruptedIOException) new InterruptedIOException("interrupted waiting for block")
+                            .initCause(e);
+                }
+                throw e;
+            }
+            length = data.length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            if (position / blockSize != index) {
+                load();
+            }
+            int within = (int) (position - index * blockSize);
+            int n = (int) Math.min(Math.min(len, length - within), end - position);
+            if (n <= 0) {
+                return -1; // a short final block
+            }
+            if (file != null) {
+                n = file.read(ByteBuffer.wrap(b, off, n), within);
+                if (n < 0) {
+                    throw new EOFException("cached block truncated");
+                }
+            } else {
+                System.arraycopy(data, within, b, off, n);
+            }
+            position += n;
+            return n;
+        }
+
+        private void closeBlock() throws IOException {
+            data = null;
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeBlock();
+        }
+    }
+}
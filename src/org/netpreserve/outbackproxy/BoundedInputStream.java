@@ -0,0 +1,82 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a fixed length window of an underlying stream, optionally after skipping some bytes. The skip is deferred
+ * until the first read so it happens on whichever thread consumes the stream.
+ */
+class BoundedInputStream extends FilterInputStream {
+    private long toSkip;
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long length) {
+        this(in, 0, length);
+    }
+
+    BoundedInputStream(InputStream in, long skip, long length) {
+        super(in);
+        this.toSkip = skip;
+        this.remaining = length;
+    }
+
+    private void skipToStart() throws IOException {
+        while (toSkip > 0) {
+            long n = in.skip(toSkip);
+            if (n <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("unexpected end of stream skipping to range");
+                }
+                n = 1;
+            }
+            toSkip -= n;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        skipToStart();
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b >= 0) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        skipToStart();
+        if (remaining <= 0) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0) {
+            remaining -= n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        skipToStart();
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return toSkip > 0 ? 0 : (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
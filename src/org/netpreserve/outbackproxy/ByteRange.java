@@ -0,0 +1,115 @@
+package org.netpreserve.outbackproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single satisfiable range of a payload selected by a HTTP Range request header (RFC 7233).
+ */
+class ByteRange {
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    /**
+     * Requests with more range specs than this are treated as abusive and served in full.
+     */
+    private static final int MAX_RANGES = 100;
+
+    private final long start;
+    private final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parses a Range header against a payload of the given length.
+     *
+     * Overlapping and adjacent ranges are coalesced. If more than one range remains we'd have to send a
+     * multipart/byteranges response so instead the header is ignored, as RFC 7233 allows.
+     *
+     * @return the range, {@link #UNSATISFIABLE} if none of the ranges overlap the payload or null if the header should
+     * be ignored and the whole payload sent
+     */
+    static ByteRange parse(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || length < 0) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) { // suffix range: the last n bytes
+                    long n = Long.parseLong(spec.substring(1));
+                    if (n == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - n);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < 0) {
+                return null;
+            }
+            if (start < length) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+        if (ranges.isEmpty()) {
+            return UNSATISFIABLE;
+        }
+        ranges.sort((a, b) -> Long.compare(a.start, b.start));
+        ByteRange merged = ranges.get(0);
+        for (ByteRange range : ranges.subList(1, ranges.size())) {
+            if (range.start > merged.end + 1) {
+                return null;
+            }
+            merged = new ByteRange(merged.start, Math.max(merged.end, range.end));
+        }
+        return merged;
+    }
+
+    long start() {
+        return start;
+    }
+
+    /**
+     * Last byte of the range (inclusive).
+     */
+    long end() {
+        return end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Formats a Content-Range header value.
+     */
+    String contentRange(long totalLength) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+}
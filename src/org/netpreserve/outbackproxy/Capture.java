@@ -4,31 +4,127 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 class Capture {
     static final DateTimeFormatter ARC_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneId.of("GMT"));
 
-    private final String[] fields;
+    private final long time;
+    private final long compressedLength;
+    private final long offset;
+    private final String filename;
+    private final long digest;
+    private final boolean revisit;
+
+    /**
+     * @param time capture time in seconds since the epoch
+     */
+    Capture(long time, long compressedLength, long offset, String filename) {
+        this(time, compressedLength, offset, filename, 0, false);
+    }
+
+    /**
+     * @param digest  {@link #digestFingerprint} of the payload digest or 0 if the index doesn't give one
+     * @param revisit whether the index says the record is a revisit of an earlier capture's payload
+     */
+    Capture(long time, long compressedLength, long offset, String filename, long digest, boolean revisit) {
+        this.time = time;
+        this.compressedLength = compressedLength;
+        this.offset = offset;
+        this.filename = filename;
+        this.digest = digest;
+        this.revisit = revisit;
+    }
+
+    /**
+     * Parses a CDX, CDXJ or pywb JSON index line.
+     */
+    static Capture parse(String line) {
+        byte[] bytes = line.getBytes(UTF_8);
+        return CdxParser.parse(bytes, 0, bytes.length);
+    }
 
-    Capture(String cdxLine) {
-        this.fields = cdxLine.split(" ");
+    /**
+     * Parses a CDX timestamp into seconds since the epoch.
+     */
+    static long parseTimestamp(String timestamp) {
+        return CdxParser.parseTimestamp(timestamp);
     }
 
     public Instant time() {
-        return ARC_TIME.parse(fields[1], Instant::from);
+        return Instant.ofEpochSecond(time);
+    }
+
+    long epochSecond() {
+        return time;
     }
 
     long compressedLength() {
-        if (fields.length < 11 || fields[8].equals("-")) {
-            return -1;
-        }
-        return Long.parseLong(fields[8]);
+        return compressedLength;
     }
 
     long offset() {
-        return Long.parseLong(fields[fields.length - 2]);
+        return offset;
     }
 
     String filename() {
-        return fields[fields.length - 1];
+        return filename;
+    }
+
+    long digest() {
+        return digest;
+    }
+
+    boolean revisit() {
+        return revisit;
+    }
+
+    /**
+     * A strong entity tag for the payload. Captures with the same payload digest share a tag so a client's copy of
+     * one revalidates against another; without a digest the record's location identifies the payload.
+     */
+    String etag() {
+        if (digest != 0) {
+            return String.format("\"%016x\"", digest);
+        }
+        byte[] bytes = filename.getBytes(UTF_8);
+        return String.format("\"%016x-%x\"", fingerprint(bytes, 0, bytes.length), offset);
+    }
+
+    /**
+     * {@link #fingerprint} of a payload digest such as "sha1:ABC..." or 0 for a missing digest or "-". The algorithm
+     * prefix is ignored so indexes that include it agree with ones that don't, and with WARC-Payload-Digest headers.
+     */
+    static long digestFingerprint(byte[] bytes, int start, int end) {
+        if (end - start <= 1) {
+            return 0;
+        }
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == ':') {
+                start = i + 1;
+                break;
+            }
+        }
+        return fingerprint(bytes, start, end);
+    }
+
+    static long digestFingerprint(String digest) {
+        if (digest == null) {
+            return 0;
+        }
+        byte[] bytes = digest.trim().getBytes(UTF_8);
+        return digestFingerprint(bytes, 0, bytes.length);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a byte range, never 0.
+     */
+    static long fingerprint(byte[] bytes, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
     }
 }
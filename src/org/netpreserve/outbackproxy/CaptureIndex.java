@@ -1,42 +1,34 @@
 package org.netpreserve.outbackproxy;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.net.URI;
+import java.nio.file.Paths;
 import java.time.Instant;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
+/**
+ * An index of captures which can be searched by URL and time.
+ */
+interface CaptureIndex {
+    /**
+     * Returns the capture of url closest to time or null if the URL is not in the archive.
+     */
+    Capture findClosest(String url, Instant time) throws IOException;
 
-class CaptureIndex {
-    private final String serverUrl;
+    /**
+     * Returns the capture of url closest to time that holds a payload with the given digest fingerprint, skipping
+     * revisit records, or null if there is none. A digest of 0 matches any payload.
+     */
+    Capture findOriginal(String url, Instant time, long digest) throws IOException;
 
-    CaptureIndex(String serverUrl) {
-        this.serverUrl = serverUrl;
-    }
-
-    Capture findClosest(String url, Instant time) throws IOException {
-        try {
-            StringBuilder sb = new StringBuilder(serverUrl);
-            sb.append("?url=");
-            sb.append(URLEncoder.encode(url, "UTF-8"));
-            if (time != null) {
-                sb.append("&closest=").append(Capture.ARC_TIME.format(time));
-                sb.append("&sort=closest&matchType=exact&limit=1");
-            }
-            URL queryUrl = new URL(sb.toString());
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(queryUrl.openStream(), UTF_8))) {
-                String line = reader.readLine();
-                if (line == null) {
-                    return null;
-                }
-                return new Capture(line);
-            }
-        } catch (UnsupportedEncodingException | MalformedURLException e) {
-            throw new IllegalStateException(e);
+    /**
+     * Opens a local CDX file index for file: URLs and a CDX server index otherwise. Concurrent identical lookups
+     * against a CDX server are coalesced and limited by the "index" limiter.
+     */
+    static CaptureIndex open(String url, HttpPool httpPool, LruCache<String, Timeline> timelineCache,
+                             UpstreamLimits limits) throws IOException {
+        if (url.startsWith("file:")) {
+            return new CdxFileIndex(Paths.get(URI.create(url)));
         }
+        return new CoalescingCaptureIndex(new CdxServerIndex(url, httpPool, timelineCache, limits.get("index")));
     }
 }
@@ -0,0 +1,255 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Looks up captures in sorted CDX or CDXJ files on the local disk.
+ *
+ * Each file is memory-mapped and a sample of its keys is taken every {@link #SAMPLE_INTERVAL} bytes, much like the
+ * secondary index of a ZipNum cluster. A lookup binary searches the samples and then scans forward through the
+ * mapped file from the nearest sample until it passes the requested key.
+ */
+class CdxFileIndex implements CaptureIndex {
+    static final int SAMPLE_INTERVAL = 64 * 1024;
+
+    private final List<CdxFile> files = new ArrayList<>();
+
+    /**
+     * @param path a CDX or CDXJ file or a directory containing files ending in .cdx or .cdxj
+     */
+    CdxFileIndex(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            List<Path> paths = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*.{cdx,cdxj}")) {
+                stream.forEach(paths::add);
+            }
+            paths.sort(null);
+            for (Path file : paths) {
+                files.add(new CdxFile(file));
+            }
+        } else {
+            files.add(new CdxFile(path));
+        }
+    }
+
+    @Override
+    public Capture findClosest(String url, Instant time) {
+        return findClosest(url, time, capture -> true);
+    }
+
+    @Override
+    public Capture findOriginal(String url, Instant time, long digest) {
+        return findClosest(url, time, capture -> !capture.revisit() && (digest == 0 || capture.digest() == digest));
+    }
+
+    private Capture findClosest(String url, Instant time, Predicate<Capture> filter) {
+        byte[] key = Surt.fromUrl(url).getBytes(UTF_8);
+        long target = time == null ? 0 : time.getEpochSecond();
+        Capture best = null;
+        for (CdxFile file : files) {
+            Capture capture = file.findClosest(key, target, filter);
+            if (capture != null && (best == null || distance(capture, target) < distance(best, target))) {
+                best = capture;
+            }
+        }
+        return best;
+    }
+
+    private static long distance(Capture capture, long target) {
+        return Math.abs(capture.epochSecond() - target);
+    }
+
+    static class CdxFile {
+        /**
+         * Files are mapped in overlapping segments so a line that starts in one segment always ends within it.
+         */
+        private static final long SEGMENT_SIZE = 1L << 30;
+        private static final int MAX_LINE_LENGTH = 1 << 20;
+
+        private final Path path;
+        private final long size;
+        private final MappedByteBuffer[] segments;
+        private final byte[][] sampleKeys;
+        private final long[] samplePositions;
+
+        CdxFile(Path path) throws IOException {
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(path, READ)) {
+                size = channel.size();
+                segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = i * SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(size - start, SEGMENT_SIZE + MAX_LINE_LENGTH));
+                }
+            }
+
+            List<byte[]> keys = new ArrayList<>();
+            long[] positions = new long[16];
+            for (long pos = 0; pos < size; pos = nextLine(pos + SAMPLE_INTERVAL)) {
+                if (keys.size() == positions.length) {
+                    positions = Arrays.copyOf(positions, positions.length * 2);
+                }
+                positions[keys.size()] = pos;
+                keys.add(keyAt(pos));
+            }
+            sampleKeys = keys.toArray(new byte[0][]);
+            samplePositions = Arrays.copyOf(positions, keys.size());
+        }
+
+        /**
+         * Scans the lines matching key, reading each one's timestamp in place so only a line closer than the best so
+         * far is parsed into a Capture.
+         */
+        Capture findClosest(byte[] key, long target, Predicate<Capture> filter) {
+            Capture best = null;
+            long bestDistance = Long.MAX_VALUE;
+            long pos = startPosition(key);
+            while (pos < size) {
+                MappedByteBuffer segment = segments[(int) (pos / SEGMENT_SIZE)];
+                int start = (int) (pos % SEGMENT_SIZE);
+                int end = lineEnd(segment, start);
+                int cmp = compareKey(segment, start, end, key);
+                if (cmp > 0) {
+                    break;
+                } else if (cmp == 0) {
+                    long distance = Math.abs(timestampAt(segment, start, end) - target);
+                    if (distance < bestDistance) {
+                        Capture capture = parse(segment, start, end);
+                        if (filter.test(capture)) {
+                            best = capture;
+                            bestDistance = distance;
+                        }
+                    }
+                }
+                pos += end - start + 1;
+            }
+            return best;
+        }
+
+        /**
+         * Returns the position of the last sample with a key strictly less than the given key. Any lines matching
+         * the key must come after it.
+         */
+        private long startPosition(byte[] key) {
+            int low = 0;
+            int high = sampleKeys.length - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compare(sampleKeys[mid], key) < 0) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found < 0 ? 0 : samplePositions[found];
+        }
+
+        /**
+         * Returns the capture time of a CDX or CDXJ line from its second field.
+         */
+        private static long timestampAt(MappedByteBuffer segment, int start, int end) {
+            int timeStart = start;
+            while (timeStart < end && segment.get(timeStart) != ' ') {
+                timeStart++;
+            }
+            timeStart++;
+            int timeEnd = timeStart;
+            while (timeEnd < end && segment.get(timeEnd) != ' ') {
+                timeEnd++;
+            }
+            return CdxParser.parseTimestamp(segment, timeStart, timeEnd);
+        }
+
+        private Capture parse(MappedByteBuffer segment, int start, int end) {
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = segment.get(start + i);
+            }
+            return CdxParser.parse(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Returns the position of the start of the first line beginning at or after pos.
+         */
+        private long nextLine(long pos) {
+            if (pos >= size) {
+                return size;
+            }
+            MappedByteBuffer segment = segments[(int) ((pos - 1) / SEGMENT_SIZE)];
+            int start = (int) ((pos - 1) % SEGMENT_SIZE);
+            int end = lineEnd(segment, start);
+            return pos - 1 + (end - start) + 1;
+        }
+
+        private byte[] keyAt(long pos) {
+            MappedByteBuffer segment = segments[(int) (pos / SEGMENT_SIZE)];
+            int start = (int) (pos % SEGMENT_SIZE);
+            int end = start;
+            while (end < segment.limit() && segment.get(end) != ' ' && segment.get(end) != '\n') {
+                end++;
+            }
+            byte[] key = new byte[end - start];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = segment.get(start + i);
+            }
+            return key;
+        }
+
+        private int lineEnd(MappedByteBuffer segment, int start) {
+            for (int i = start; i < segment.limit(); i++) {
+                if (segment.get(i) == '\n') {
+                    return i;
+                }
+            }
+            if (segment.limit() - start > MAX_LINE_LENGTH) {
+                throw new IllegalStateException("line longer than " + MAX_LINE_LENGTH + " bytes in " + path);
+            }
+            return segment.limit();
+        }
+
+        /**
+         * Compares the key field (up to the first space) of a line with the given key as unsigned bytes.
+         */
+        private static int compareKey(MappedByteBuffer segment, int start, int end, byte[] key) {
+            int keyEnd = start;
+            while (keyEnd < end && segment.get(keyEnd) != ' ') {
+                keyEnd++;
+            }
+            int length = Math.min(keyEnd - start, key.length);
+            for (int i = 0; i < length; i++) {
+                int cmp = Integer.compare(segment.get(start + i) & 0xff, key[i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return Integer.compare(keyEnd - start, key.length);
+        }
+
+        private static int compare(byte[] a, byte[] b) {
+            int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                int cmp = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return Integer.compare(a.length, b.length);
+        }
+    }
+}
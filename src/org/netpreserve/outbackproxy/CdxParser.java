@@ -0,0 +1,516 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads index lines straight from the bytes of a CDX server response or file, one at a time.
+ *
+ * Each line may be space-separated CDX (9 or 11 fields), CDXJ ("urlkey timestamp {json}") or a pywb JSON object, so
+ * the proxy can be pointed at OutbackCDX, pywb or a wayback CDX server without configuration. The timestamp, length
+ * and offset are decoded once into primitives; other fields are only turned into strings when asked for. A filename
+ * that repeats the previous line's is returned without allocating.
+ *
+ * Field accessors describe the current line and are only valid until the next call to {@link #next()}.
+ */
+class CdxParser implements Closeable {
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+    private static final int URLKEY = 0, TIMESTAMP = 1, ORIGINAL = 2, MIME = 3, STATUS = 4, DIGEST = 5, LENGTH = 6,
+            OFFSET = 7, FILENAME = 8, FIELDS = 9;
+    private static final byte[][] JSON_NAMES = {bytes("urlkey"), bytes("timestamp"), bytes("url"), bytes("mime"),
+            bytes("status"), bytes("digest"), bytes("length"), bytes("offset"), bytes("filename")};
+    private static final byte[] REVISIT_MIME = bytes("warc/revisit");
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    private final int[] starts = new int[FIELDS];
+    private final int[] ends = new int[FIELDS];
+    private final int[] columnStarts = new int[11];
+    private final int[] columnEnds = new int[11];
+    private int escaped;
+    private long time;
+    private long length;
+    private long offset;
+    private byte[] lastFilename = new byte[0];
+    private String lastFilenameString;
+
+    CdxParser(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[8192];
+    }
+
+    /**
+     * Parses lines already in memory.
+     */
+    CdxParser(byte[] bytes, int offset, int length) {
+        this.in = null;
+        this.buffer = bytes;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Parses a single line in any supported format.
+     */
+    static Capture parse(byte[] bytes, int offset, int length) {
+        CdxParser parser = new CdxParser(bytes, offset, length);
+        try {
+            if (!parser.next()) {
+                throw new IllegalArgumentException("no CDX line");
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // can't happen without a stream
+        }
+        return parser.capture();
+    }
+
+    /**
+     * Advances to the next index line, skipping blank lines and CDX header lines. Returns false at the end of input.
+     *
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    boolean next() throws IOException {
+        while (true) {
+            int lineEnd = findLineEnd();
+            if (lineEnd < 0) {
+                return false;
+            }
+            int start = position;
+            int end = lineEnd;
+            position = lineEnd < limit ? lineEnd + 1 : limit;
+            if (end > start && buffer[end - 1] == '\r') {
+                end--;
+            }
+            if (end == start || (buffer[start] == ' ' && end - start >= 4 && buffer[start + 1] == 'C')) {
+                continue; // blank or " CDX N b a m s k r M S V g" header
+            }
+            parseLine(start, end);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the end of the line starting at position, reading more input as needed, or -1 at end of input.
+     */
+    private int findLineEnd() throws IOException {
+        int scanned = position;
+        while (true) {
+            for (int i = scanned; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    return i;
+                }
+            }
+            scanned = limit;
+            if (in == null) {
+                return position < limit ? limit : -1;
+            }
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                scanned -= position;
+                limit -= position;
+                position = 0;
+            } else if (limit == buffer.length) {
+                if (buffer.length >= MAX_LINE_LENGTH) {
+                    throw new IOException("CDX line longer than " + MAX_LINE_LENGTH + " bytes");
+                }
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n < 0) {
+                return position < limit ? limit : -1;
+            }
+            limit += n;
+        }
+    }
+
+    private void parseLine(int start, int end) {
+        Arrays.fill(starts, -1);
+        escaped = 0;
+        if (buffer[start] == '{') {
+            parseJson(start, start, end);
+        } else {
+            int keyEnd = indexOf(' ', start, end);
+            int timeEnd = indexOf(' ', keyEnd + 1, end);
+            if (timeEnd + 1 < end && buffer[timeEnd + 1] == '{') {
+                field(URLKEY, start, keyEnd);
+                field(TIMESTAMP, keyEnd + 1, timeEnd);
+                parseJson(start, timeEnd + 1, end);
+            } else {
+                parseSpaceSeparated(start, end);
+            }
+        }
+        if (starts[TIMESTAMP] < 0 || starts[OFFSET] < 0 || starts[FILENAME] < 0) {
+            throw new IllegalArgumentException("CDX line missing timestamp, offset or filename: " +
+                    new String(buffer, start, end - start, UTF_8));
+        }
+        time = parseTimestamp(buffer, starts[TIMESTAMP], ends[TIMESTAMP]);
+        length = starts[LENGTH] < 0 ? -1 : parseNumber(LENGTH);
+        offset = parseNumber(OFFSET);
+    }
+
+    /**
+     * CDX11 is "urlkey timestamp original mime status digest redirect meta length offset filename". CDX9 lacks the
+     * meta and length fields.
+     */
+    private void parseSpaceSeparated(int start, int end) {
+        int count = 0;
+        for (int i = start; i <= end && count < columnStarts.length; count++) {
+            int columnEnd = indexOf(' ', i, end);
+            columnStarts[count] = i;
+            columnEnds[count] = columnEnd;
+            i = columnEnd + 1;
+        }
+        if (count < 5) {
+            throw new IllegalArgumentException("CDX line has too few fields: " +
+                    new String(buffer, start, end - start, UTF_8));
+        }
+        for (int i = 0; i <= DIGEST && i < count - 2; i++) {
+            field(i, columnStarts[i], columnEnds[i]);
+        }
+        if (count >= 11) {
+            field(LENGTH, columnStarts[8], columnEnds[8]);
+        }
+        field(OFFSET, columnStarts[count - 2], columnEnds[count - 2]);
+        field(FILENAME, columnStarts[count - 1], columnEnds[count - 1]);
+    }
+
+    /**
+     * Records the spans of the fields we know in a flat JSON object. Nested values are skipped.
+     *
+     * @param start start of the line, for error messages
+     * @param objectStart position of the opening brace
+     */
+    private void parseJson(int start, int objectStart, int end) {
+        int i = skipSpace(objectStart + 1, end);
+        while (i < end && buffer[i] != '}') {
+            if (buffer[i] != '"') {
+                throw syntaxError(start, end);
+            }
+            int nameStart = i + 1;
+            int nameEnd = endOfString(start, nameStart, end);
+            i = skipSpace(nameEnd + 1, end);
+            if (i >= end || buffer[i] != ':') {
+                throw syntaxError(start, end);
+            }
+            i = skipSpace(i + 1, end);
+            int field = jsonField(nameStart, nameEnd);
+            int valueEnd;
+            if (i < end && buffer[i] == '"') {
+                valueEnd = endOfString(start, i + 1, end);
+                if (field >= 0) {
+                    field(field, i + 1, valueEnd);
+                    if (indexOf('\\', i + 1, valueEnd) < valueEnd) {
+                        escaped |= 1 << field;
+                    }
+                }
+                valueEnd++;
+            } else if (i < end && (buffer[i] == '{' || buffer[i] == '[')) {
+                valueEnd = endOfNested(start, i, end);
+            } else {
+                valueEnd = i;
+                while (valueEnd < end && buffer[valueEnd] != ',' && buffer[valueEnd] != '}' &&
+                        buffer[valueEnd] != ' ') {
+                    valueEnd++;
+                }
+                if (field >= 0) {
+                    field(field, i, valueEnd);
+                }
+            }
+            i = skipSpace(valueEnd, end);
+            if (i < end && buffer[i] == ',') {
+                i = skipSpace(i + 1, end);
+            }
+        }
+    }
+
+    private int jsonField(int nameStart, int nameEnd) {
+        for (int field = 0; field < FIELDS; field++) {
+            byte[] name = JSON_NAMES[field];
+            if (name.length == nameEnd - nameStart && regionMatches(nameStart, name)) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    private int endOfString(int start, int i, int end) {
+        for (; i < end; i++) {
+            if (buffer[i] == '\\') {
+                i++;
+            } else if (buffer[i] == '"') {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unterminated string in CDX line: " +
+                new String(buffer, start, end - start, UTF_8));
+    }
+
+    private int endOfNested(int start, int i, int end) {
+        int depth = 0;
+        for (; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '"') {
+                i = endOfString(start, i + 1, end);
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private IllegalArgumentException syntaxError(int start, int end) {
+        return new IllegalArgumentException("malformed JSON in CDX line: " +
+                new String(buffer, start, end - start, UTF_8));
+    }
+
+    private int skipSpace(int i, int end) {
+        while (i < end && (buffer[i] == ' ' || buffer[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private int indexOf(char c, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private boolean regionMatches(int start, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void field(int field, int start, int end) {
+        starts[field] = start;
+        ends[field] = end;
+    }
+
+    private long parseNumber(int field) {
+        int start = starts[field];
+        int end = ends[field];
+        if (end - start == 1 && buffer[start] == '-') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9 || i - start >= 18) {
+                throw new IllegalArgumentException("bad " + new String(JSON_NAMES[field], UTF_8) + " in CDX line: " +
+                        new String(buffer, start, end - start, UTF_8));
+            }
+            value = value * 10 + digit;
+        }
+        if (start == end) {
+            throw new IllegalArgumentException("empty " + new String(JSON_NAMES[field], UTF_8) + " in CDX line");
+        }
+        return value;
+    }
+
+    private String string(int field) {
+        int start = starts[field];
+        if (start < 0) {
+            return null;
+        }
+        String value = new String(buffer, start, ends[field] - start, UTF_8);
+        return (escaped & (1 << field)) != 0 ? unescape(value) : value;
+    }
+
+    /**
+     * Capture time in seconds since the epoch.
+     */
+    long epochSecond() {
+        return time;
+    }
+
+    /**
+     * Compressed length of the record or -1 if the index doesn't say.
+     */
+    long compressedLength() {
+        return length;
+    }
+
+    long offset() {
+        return offset;
+    }
+
+    String filename() {
+        int start = starts[FILENAME];
+        int end = ends[FILENAME];
+        if (lastFilenameString == null || (escaped & (1 << FILENAME)) != 0 || end - start != lastFilename.length ||
+                !regionMatches(start, lastFilename)) {
+            lastFilename = Arrays.copyOfRange(buffer, start, end);
+            lastFilenameString = string(FILENAME);
+        }
+        return lastFilenameString;
+    }
+
+    String urlkey() {
+        return string(URLKEY);
+    }
+
+    String originalUrl() {
+        return string(ORIGINAL);
+    }
+
+    String mime() {
+        return string(MIME);
+    }
+
+    String status() {
+        return string(STATUS);
+    }
+
+    String digest() {
+        return string(DIGEST);
+    }
+
+    /**
+     * {@link Capture#digestFingerprint} of the payload digest or 0 if the line has none.
+     */
+    long digestFingerprint() {
+        int start = starts[DIGEST];
+        return start < 0 ? 0 : Capture.digestFingerprint(buffer, start, ends[DIGEST]);
+    }
+
+    /**
+     * Whether the line is for a revisit record, which holds no payload of its own.
+     */
+    boolean isRevisit() {
+        int start = starts[MIME];
+        return start >= 0 && ends[MIME] - start == REVISIT_MIME.length && regionMatches(start, REVISIT_MIME);
+    }
+
+    Capture capture() {
+        return new Capture(time, length, offset, filename(), digestFingerprint(), isRevisit());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    /**
+     * Parses a CDX timestamp of 4 to 14 digits into seconds since the epoch. Missing trailing digits are taken as the
+     * start of the period, so "2010" is midnight on 1 January 2010.
+     */
+    static long parseTimestamp(byte[] bytes, int start, int end) {
+        int digits = end - start;
+        if (digits < 4 || digits > 14) {
+            throw new IllegalArgumentException("bad CDX timestamp: " + new String(bytes, start, digits, UTF_8));
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("bad CDX timestamp: " + new String(bytes, start, digits, UTF_8));
+            }
+            value = value * 10 + digit;
+        }
+        return epochSecond(value, digits);
+    }
+
+    static long parseTimestamp(ByteBuffer bytes, int start, int end) {
+        int digits = end - start;
+        if (digits < 4 || digits > 14) {
+            throw badTimestamp(bytes, start, end);
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw badTimestamp(bytes, start, end);
+            }
+            value = value * 10 + digit;
+        }
+        return epochSecond(value, digits);
+    }
+
+    private static IllegalArgumentException badTimestamp(ByteBuffer bytes, int start, int end) {
+        byte[] timestamp = new byte[end - start];
+        for (int i = 0; i < timestamp.length; i++) {
+            timestamp[i] = bytes.get(start + i);
+        }
+        return new IllegalArgumentException("bad CDX timestamp: " + new String(timestamp, UTF_8));
+    }
+
+    static long parseTimestamp(String timestamp) {
+        int digits = timestamp.length();
+        if (digits < 4 || digits > 14) {
+            throw new IllegalArgumentException("bad CDX timestamp: " + timestamp);
+        }
+        long value = 0;
+        for (int i = 0; i < digits; i++) {
+            int digit = timestamp.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("bad CDX timestamp: " + timestamp);
+            }
+            value = value * 10 + digit;
+        }
+        return epochSecond(value, digits);
+    }
+
+    private static long epochSecond(long value, int digits) {
+        for (int i = digits; i < 14; i++) {
+            value *= 10;
+        }
+        int year = (int) (value / 10000000000L);
+        int month = Math.max(1, (int) (value / 100000000 % 100));
+        int day = Math.max(1, (int) (value / 1000000 % 100));
+        int hour = (int) (value / 10000 % 100);
+        int minute = (int) (value / 100 % 100);
+        int second = (int) (value % 100);
+        if (hour > 23 || minute > 59 || second > 60) {
+            throw new IllegalArgumentException("bad CDX timestamp: " + value);
+        }
+        try {
+            return LocalDate.of(year, month, day).toEpochDay() * 86400 + hour * 3600 + minute * 60 + second;
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("bad CDX timestamp: " + value, e);
+        }
+    }
+
+    private static String unescape(String json) {
+        StringBuilder value = new StringBuilder(json.length());
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '\\' && i + 1 < json.length()) {
+                c = json.charAt(++i);
+                if (c == 'u' && i + 4 < json.length()) {
+                    value.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                } else {
+                    value.append(c == 'n' ? '\n' : c == 't' ? '\t' : c == 'r' ? '\r' : c);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF_8);
+    }
+}
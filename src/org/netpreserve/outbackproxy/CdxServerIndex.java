@@ -0,0 +1,109 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.time.Instant;
+
+/**
+ * Looks up captures by querying an OutbackCDX, pywb or wayback CDX server over HTTP.
+ */
+class CdxServerIndex implements CaptureIndex {
+    private final String serverUrl;
+    private final HttpPool httpPool;
+    private final LruCache<String, Timeline> timelineCache;
+    private final ConcurrencyLimiter limiter;
+
+    /**
+     * @param timelineCache if not null the full list of captures for each URL is fetched once and cached
+     * @param limiter       limits concurrent queries to the server
+     */
+    CdxServerIndex(String serverUrl, HttpPool httpPool, LruCache<String, Timeline> timelineCache,
+                   ConcurrencyLimiter limiter) {
+        this.serverUrl = serverUrl;
+        this.httpPool = httpPool;
+        this.timelineCache = timelineCache;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public Capture findClosest(String url, Instant time) throws IOException {
+        if (timelineCache != null && time != null) {
+            return timelineCache.get(url, this::fetchTimeline).closest(time);
+        }
+        StringBuilder sb = queryUrl(url);
+        if (time != null) {
+            sb.append("&closest=").append(Capture.ARC_TIME.format(time));
+            sb.append("&sort=closest&matchType=exact&limit=1");
+        }
+        try (ConcurrencyLimiter.Permit permit = limiter.acquire(); CdxParser parser = openQuery(sb)) {
+            Capture capture = parser.next() ? parser.capture() : null;
+            permit.succeeded();
+            return capture;
+        }
+    }
+
+    @Override
+    public Capture findOriginal(String url, Instant time, long digest) throws IOException {
+        if (timelineCache != null) {
+            return timelineCache.get(url, this::fetchTimeline).closestOriginal(time, digest);
+        }
+        StringBuilder sb = queryUrl(url);
+        sb.append("&closest=").append(Capture.ARC_TIME.format(time));
+        sb.append("&sort=closest&matchType=exact");
+        try (ConcurrencyLimiter.Permit permit = limiter.acquire(); CdxParser parser = openQuery(sb)) {
+            Capture original = null;
+            while (original == null && parser.next()) {
+                if (!parser.isRevisit() && (digest == 0 || parser.digestFingerprint() == digest)) {
+                    original = parser.capture();
+                }
+            }
+            permit.succeeded();
+            return original;
+        }
+    }
+
+    /**
+     * Fetch every capture of a URL from the server.
+     */
+    private Timeline fetchTimeline(String url) throws IOException {
+        StringBuilder sb = queryUrl(url).append("&matchType=exact");
+        Timeline.Builder builder = new Timeline.Builder();
+        try (ConcurrencyLimiter.Permit permit = limiter.acquire(); CdxParser parser = openQuery(sb)) {
+            while (parser.next()) {
+                builder.add(parser.epochSecond(), parser.compressedLength(), parser.offset(), parser.filename(),
+                        parser.digestFingerprint(), parser.isRevisit());
+            }
+            permit.succeeded();
+        }
+        return builder.build();
+    }
+
+    private StringBuilder queryUrl(String url) {
+        try {
+            StringBuilder sb = new StringBuilder(serverUrl);
+            sb.append("?url=");
+            sb.append(URLEncoder.encode(url, "UTF-8"));
+            return sb;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private CdxParser openQuery(StringBuilder queryUrl) throws IOException {
+        URL url;
+        try {
+            url = new URL(queryUrl.toString());
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+        HttpPool.Response response = httpPool.get(url);
+        if (response.status() != 200) {
+            response.close();
+            throw new IOException("CDX server returned " + response.status() + " for " + url);
+        }
+        return new CdxParser(response.body());
+    }
+}
@@ -29,6 +29,7 @@ import java.time.Instant;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Locale;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.file.StandardOpenOption.CREATE;
@@ -52,8 +53,17 @@ class CertificateGenerator {
     private final String caName = "OutbackProxy Web Archive CA";
     private final KeyPair caKeyPair;
     private final X509CertificateHolder caCert;
+    private final CertificateStore store;
 
     CertificateGenerator(Path caKeyFile, Path caCertFile) throws IOException {
+        this(caKeyFile, caCertFile, null, false);
+    }
+
+    /**
+     * @param storeFile     file to keep issued host certificates in across restarts or null for none
+     * @param storeReadOnly use the store's certificates but don't add new ones to it
+     */
+    CertificateGenerator(Path caKeyFile, Path caCertFile, Path storeFile, boolean storeReadOnly) throws IOException {
         if (caKeyFile != null && Files.exists(caKeyFile)) {
             PrivateKey privateKey = loadKey(caKeyFile);
             caCert = loadCert(caCertFile);
@@ -71,6 +81,45 @@ class CertificateGenerator {
                 saveCert(caCert, caCertFile);
             }
         }
+        store = storeFile == null ? null : new CertificateStore(storeFile, caCert.getEncoded(), storeReadOnly);
+    }
+
+    /**
+     * Issues and stores certificates for each hostname in a file, one per line, that the store doesn't already have.
+     *
+     * @return the number of certificates issued
+     */
+    int prewarm(Path hostnameFile) throws IOException {
+        int issued = 0;
+        for (String line : Files.readAllLines(hostnameFile, US_ASCII)) {
+            String hostname = line.trim().toLowerCase(Locale.ROOT);
+            if (!hostname.isEmpty() && !hostname.startsWith("#") && (store == null || store.get(hostname) == null)) {
+                certificateForHost(hostname);
+                issued++;
+            }
+        }
+        return issued;
+    }
+
+    /**
+     * Returns the certificate for hostname from the store or signs a new one.
+     */
+    private X509CertificateHolder certificateForHost(String hostname) throws IOException {
+        if (store != null) {
+            byte[] encoded = store.get(hostname);
+            if (encoded != null) {
+                try {
+                    return new X509CertificateHolder(encoded);
+                } catch (IOException e) {
+                    // damaged entry, issue a new one
+                }
+            }
+        }
+        X509CertificateHolder holder = sign(caName, caKeyPair.getPrivate(), hostname, caKeyPair.getPublic());
+        if (store != null) {
+            store.put(hostname, holder.getEncoded());
+        }
+        return holder;
     }
 
     /**
@@ -150,7 +199,7 @@ class CertificateGenerator {
         KeyStore keyStore = KeyStore.getInstance("JKS");
         keyStore.load(null, null);
         KeyPair keyPair = caKeyPair; // is it ok to reuse the key?
-        X509CertificateHolder holder = sign(caName, caKeyPair.getPrivate(), hostname, keyPair.getPublic());
+        X509CertificateHolder holder = certificateForHost(hostname);
         java.security.cert.Certificate[] certs = new java.security.cert.Certificate[]{
                 new JcaX509CertificateConverter().getCertificate(holder)
         };
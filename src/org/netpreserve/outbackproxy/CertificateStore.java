@@ -0,0 +1,198 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * An append-only file of issued host certificates so they survive restarts.
+ *
+ * Each line is a hostname and its DER encoded certificate in base64. The first line records the fingerprint of the CA
+ * certificate that signed them. Opening the store only indexes hostnames to file offsets; certificates are read and
+ * decoded when first requested.
+ *
+ * Appends take an exclusive file lock, so several processes may share one store. A line is only indexed once its
+ * newline has been written. A lookup that misses indexes anything appended since the last scan, so one process sees
+ * certificates another has issued. A trailing partial line left by a crash is terminated before the next append and
+ * then ignored as unreadable.
+ */
+class CertificateStore implements Closeable {
+    private static final String HEADER_PREFIX = "#ca ";
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final boolean readOnly;
+    private final String header;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private long indexedLength;
+
+    private static class Entry {
+        final long offset;
+        final int length;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param caCertificate the encoded CA certificate, entries issued by a different CA are refused
+     * @param readOnly      if true the file must exist and {@link #put} does nothing
+     */
+    CertificateStore(Path file, byte[] caCertificate, boolean readOnly) throws IOException {
+        this.readOnly = readOnly;
+        this.header = HEADER_PREFIX + fingerprint(caCertificate) + "\n";
+        channel = readOnly ? FileChannel.open(file, READ) : FileChannel.open(file, READ, WRITE, CREATE);
+        try {
+            if (!readOnly) {
+                FileLock lock = channel.lock();
+                try {
+                    if (channel.size() == 0) {
+                        append(header.getBytes(US_ASCII));
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(header.length());
+            if (channel.read(buffer, 0) != header.length() || !header.equals(new String(buffer.array(), US_ASCII))) {
+                throw new IOException(file + " is not a certificate store for this CA certificate");
+            }
+            indexedLength = header.length();
+            scan();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static String fingerprint(byte[] data) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the stored DER encoded certificate for hostname or null if there is none.
+     */
+    byte[] get(String hostname) throws IOException {
+        Entry entry = index.get(hostname);
+        if (entry == null) {
+            scan();
+            entry = index.get(hostname);
+            if (entry == null) {
+                return null;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        try {
+            return Base64.getDecoder().decode(buffer.array());
+        } catch (IllegalArgumentException e) {
+            return null; // a line damaged by a crash, the certificate will be reissued
+        }
+    }
+
+    /**
+     * Appends a certificate for hostname. Later entries for the same hostname replace earlier ones.
+     */
+    synchronized void put(String hostname, byte[] certificate) throws IOException {
+        if (readOnly) {
+            return;
+        }
+        if (hostname.indexOf(' ') >= 0 || hostname.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("invalid hostname: " + hostname);
+        }
+        byte[] line = (hostname + " " + Base64.getEncoder().encodeToString(certificate) + "\n").getBytes(US_ASCII);
+        FileLock lock = channel.lock();
+        try {
+            long size = channel.size();
+            if (size > 0 && !endsWithNewline(size)) {
+                append(new byte[]{'\n'});
+            }
+            append(line);
+        } finally {
+            lock.release();
+        }
+        scan();
+    }
+
+    private boolean endsWithNewline(long size) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        return channel.read(last, size - 1) == 1 && last.get(0) == '\n';
+    }
+
+    private void append(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Indexes complete lines appended since the last scan.
+     */
+    private synchronized void scan() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long lineStart = indexedLength;
+        StringBuilder hostname = new StringBuilder();
+        long valueStart = -1;
+        for (long position = lineStart; ; ) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++, position++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    if (valueStart > 0 && hostname.length() > 0 && hostname.charAt(0) != '#') {
+                        index.put(hostname.toString(), new Entry(valueStart, (int) (position - valueStart)));
+                    }
+                    hostname.setLength(0);
+                    valueStart = -1;
+                    lineStart = position + 1;
+                } else if (valueStart < 0) {
+                    if (b == ' ') {
+                        valueStart = position + 1;
+                    } else {
+                        hostname.append((char) (b & 0xff));
+                    }
+                }
+            }
+        }
+        indexedLength = lineStart;
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
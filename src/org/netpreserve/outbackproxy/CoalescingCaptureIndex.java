@@ -0,0 +1,30 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.IOException;
+import java.time.Instant;
+
+/**
+ * Shares one upstream lookup between concurrent requests for the same URL and time.
+ */
+class CoalescingCaptureIndex implements CaptureIndex {
+    private final CaptureIndex index;
+    private final SingleFlight<String, Capture> lookups = new SingleFlight<>();
+
+    CoalescingCaptureIndex(CaptureIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public Capture findClosest(String url, Instant time) throws IOException {
+        return lookups.run(time + " " + url, key -> index.findClosest(url, time));
+    }
+
+    @Override
+    public Capture findOriginal(String url, Instant time, long digest) throws IOException {
+        return index.findOriginal(url, time, digest);
+    }
+
+    SingleFlight<String, Capture> lookups() {
+        return lookups;
+    }
+}
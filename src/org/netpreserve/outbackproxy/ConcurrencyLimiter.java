@@ -0,0 +1,217 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests in flight to one upstream server. Requests over the limit wait in a bounded queue
+ * and are rejected with {@link OverloadedException} when it is full or they've waited too long, so a slow upstream
+ * sheds load instead of tying up every worker thread.
+ *
+ * An adaptive limiter adjusts its limit between 1 and the configured maximum in the manner of TCP congestion
+ * control. It keeps a short and a long-run moving average of latency. A failed request, or a success while the short
+ * average is over twice the long one, cuts the limit by a tenth, at most once per long-run average latency. Successful
+ * requests while the limit is in use raise it by one per limit's worth, probing for capacity again.
+ *
+ * Waiting uses a fair lock rather than a monitor so a virtual thread releases its carrier.
+ */
+class ConcurrencyLimiter {
+    private static final double BACKOFF = 0.9;
+    private static final double TOLERANCE = 2.0;
+    private static final double SHORT_SMOOTHING = 0.2;
+    private static final double LONG_SMOOTHING = 0.01;
+
+    private final String name;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long maxWaitNanos;
+    private final boolean adaptive;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+    private final LongAdder shed = new LongAdder();
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private double shortNanos;
+    private double longNanos;
+    private long lastDecrease;
+
+    /**
+     * Thrown when a request is rejected rather than sent upstream, or the upstream asked us to back off.
+     */
+    static class OverloadedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterSeconds;
+
+        OverloadedException(String upstream, long retryAfterSeconds) {
+            this(retryAfterSeconds, "too many concurrent requests to " + upstream);
+        }
+
+        private OverloadedException(long retryAfterSeconds, String message) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * The upstream answered that it's overloaded, e.g. with a 429 response.
+         */
+        static OverloadedException fromUpstream(String message, long retryAfterSeconds) {
+            return new OverloadedException(retryAfterSeconds, message);
+        }
+
+        long retryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * A slot in the limit. Call {@link #succeeded()} once the upstream has answered; closing a permit without it
+     * counts as a failure.
+     */
+    class Permit implements AutoCloseable {
+        private final long start = System.nanoTime();
+        private boolean succeeded;
+        private boolean closed;
+
+        void succeeded() {
+            succeeded = true;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(System.nanoTime() - start, succeeded);
+            }
+        }
+    }
+
+    /**
+     * @param maxLimit     maximum concurrent requests, also the initial limit
+     * @param maxQueue     maximum requests waiting for a slot
+     * @param maxWaitMillis longest a request may wait for a slot
+     * @param adaptive     whether to lower the limit when latency rises
+     */
+    ConcurrencyLimiter(String name, int maxLimit, int maxQueue, long maxWaitMillis, boolean adaptive) {
+        this.name = name;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.adaptive = adaptive;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Waits for a slot.
+     *
+     * @throws OverloadedException if the queue is full or no slot became free in time
+     */
+    Permit acquire() throws IOException {
+        lock.lock();
+        try {
+            if (inFlight >= limit()) {
+                if (queued >= maxQueue) {
+                    throw reject();
+                }
+                queued++;
+                try {
+                    long remaining = maxWaitNanos;
+                    while (inFlight >= limit()) {
+                        if (remaining <= 0) {
+                            throw reject();
+                        }
+                        remaining = available.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } finally {
+                    queued--;
+                }
+            }
+            inFlight++;
+            return new Permit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private OverloadedException reject() {
+        shed.increment();
+        return new OverloadedException(name, Math.max(1, (long) Math.ceil(longNanos / 1e9)));
+    }
+
+    private void release(long nanos, boolean succeeded) {
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= limit();
+            inFlight--;
+            if (adaptive) {
+                adjust(nanos, succeeded, saturated);
+            }
+            available.signalAll(); // the limit may have grown too; waiters are woken in order by the fair lock
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adjust(long nanos, boolean succeeded, boolean saturated) {
+        if (succeeded) {
+            shortNanos = shortNanos == 0 ? nanos : shortNanos + SHORT_SMOOTHING * (nanos - shortNanos);
+            longNanos = longNanos == 0 ? nanos : longNanos + LONG_SMOOTHING * (nanos - longNanos);
+        }
+        long now = System.nanoTime();
+        if (!succeeded || shortNanos > TOLERANCE * longNanos) {
+            if (now - lastDecrease >= longNanos) {
+                limit = Math.max(1, limit * BACKOFF);
+                lastDecrease = now;
+            }
+        } else if (saturated || inFlight * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    private int limit() {
+        return (int) limit;
+    }
+
+    String name() {
+        return name;
+    }
+
+    long limitValue() {
+        lock.lock();
+        try {
+            return limit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long queued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long shed() {
+        return shed.sum();
+    }
+}
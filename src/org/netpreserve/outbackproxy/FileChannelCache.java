@@ -0,0 +1,272 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Keeps local WARC files open between requests. Channels are shared by every request for the same file so readers
+ * must use positional reads and never move the channel's position.
+ *
+ * Each handle holds a reference to its channel, which is only closed once no handle uses it. When more than
+ * maxOpen files are open the least recently used unreferenced channel is closed; if every cached channel is in use
+ * the file is opened just for the caller. Channels unused for the idle timeout are closed in the background.
+ *
+ * A cached channel is checked against the path at most once per {@link #REVALIDATE_MILLIS}. If the file has been
+ * deleted, or replaced so the path names a different file, the channel is dropped and the path opened afresh.
+ * Filesystems that don't report a file key are only checked for deletion. A channel closed underneath its readers,
+ * such as by an interrupted read, is likewise replaced.
+ */
+class FileChannelCache implements Closeable {
+    static final long REVALIDATE_MILLIS = 1000;
+
+    private final int maxOpen;
+    private final long idleTimeoutNanos;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledExecutorService reaper;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Entry {
+        final FileChannel channel;
+        final Object fileKey;
+        final boolean cached;
+        int refs;
+        long lastUsed;
+        long validated;
+        boolean evicted;
+
+        Entry(FileChannel channel, Object fileKey, boolean cached, long now) {
+            this.channel = channel;
+            this.fileKey = fileKey;
+            this.cached = cached;
+            this.lastUsed = now;
+            this.validated = now;
+        }
+    }
+
+    /**
+     * A reference to an open channel. Closing the handle releases the reference rather than the channel.
+     */
+    class Handle implements Closeable {
+        private final Entry entry;
+        private boolean released;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        FileChannel channel() {
+            return entry.channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released) {
+                return;
+            }
+            released = true;
+            release(entry);
+        }
+    }
+
+    /**
+     * @param maxOpen           maximum files kept open while unused, 0 to open the file for every request
+     * @param idleTimeoutMillis unused files are closed after this long
+     */
+    FileChannelCache(int maxOpen, long idleTimeoutMillis) {
+        this.maxOpen = maxOpen;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        if (maxOpen <= 0) {
+            reaper = null;
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FileChannelCache reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleTimeoutMillis / 2, 100);
+        reaper.scheduleWithFixedDelay(this::closeExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a handle on an open channel for path. The caller must close the handle when done.
+     */
+    Handle acquire(Path path) throws IOException {
+        long now = System.nanoTime();
+        FileChannel redundant = null;
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.channel.isOpen()
+                    && now - entry.validated < TimeUnit.MILLISECONDS.toNanos(REVALIDATE_MILLIS)) {
+                hits.increment();
+                entry.refs++;
+                entry.lastUsed = now;
+                return new Handle(entry);
+            }
+        }
+        BasicFileAttributes attributes = readAttributes(path);
+        List<Entry> closing = new ArrayList<>();
+        try {
+            synchronized (this) {
+                Entry entry = entries.get(path);
+                if (entry != null) {
+                    if (attributes != null && entry.channel.isOpen() && (entry.fileKey == null
+                            || Objects.equals(entry.fileKey, attributes.fileKey()))) {
+                        hits.increment();
+                        entry.validated = now;
+                        entry.refs++;
+                        entry.lastUsed = now;
+                        return new Handle(entry);
+                    }
+                    entries.remove(path);
+                    evict(entry, closing);
+                }
+            }
+            if (attributes == null) {
+                throw new NoSuchFileException(path.toString());
+            }
+            misses.increment();
+            FileChannel channel = FileChannel.open(path, READ);
+            synchronized (this) {
+                Entry existing = entries.get(path);
+                if (existing != null && existing.channel.isOpen()
+                        && Objects.equals(existing.fileKey, attributes.fileKey())) {
+                    redundant = channel; // another thread opened it meanwhile
+                    existing.refs++;
+                    existing.lastUsed = now;
+                    return new Handle(existing);
+                }
+                if (existing != null) {
+                    entries.remove(path);
+                    evict(existing, closing);
+                }
+                makeRoom(closing);
+                boolean cached = entries.size() < maxOpen;
+                Entry entry = new Entry(channel, attributes.fileKey(), cached, now);
+                entry.refs = 1;
+                if (cached) {
+                    entries.put(path, entry);
+                }
+                return new Handle(entry);
+            }
+        } finally {
+            if (redundant != null) {
+                redundant.close();
+            }
+            closeAll(closing);
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Closes least recently used unreferenced channels until there's room for one more.
+     */
+    private void makeRoom(List<Entry> closing) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() >= maxOpen && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refs == 0) {
+                it.remove();
+                evict(entry, closing);
+            }
+        }
+    }
+
+    /**
+     * Marks a removed entry so its channel is closed, now if unreferenced or else by its last handle.
+     */
+    private static void evict(Entry entry, List<Entry> closing) {
+        entry.evicted = true;
+        if (entry.refs == 0) {
+            closing.add(entry);
+        }
+    }
+
+    private void release(Entry entry) throws IOException {
+        synchronized (this) {
+            entry.refs--;
+            entry.lastUsed = System.nanoTime();
+            if (entry.cached && (!entry.evicted || entry.refs > 0)) {
+                return;
+            }
+        }
+        entry.channel.close();
+    }
+
+    private static void closeAll(List<Entry> entries) {
+        for (Entry entry : entries) {
+            try {
+                entry.channel.close();
+            } catch (IOException e) {
+                // nothing more to do with it
+            }
+        }
+    }
+
+    void closeExpired() {
+        long now = System.nanoTime();
+        List<Entry> closing = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.refs == 0 && now - entry.lastUsed >= idleTimeoutNanos) {
+                    it.remove();
+                    evict(entry, closing);
+                }
+            }
+        }
+        closeAll(closing);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    @Override
+    public void close() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+        List<Entry> closing = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                evict(entry, closing);
+            }
+            entries.clear();
+        }
+        closeAll(closing);
+    }
+}
@@ -0,0 +1,63 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file channel from a given position with positional reads, leaving the channel's own position alone so
+ * several streams can share one channel.
+ */
+class FileChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private final Closeable onClose;
+    private final byte[] single = new byte[1];
+    private long position;
+
+    /**
+     * @param onClose closed with the stream or null to leave the channel open
+     */
+    FileChannelInputStream(FileChannel channel, long position, Closeable onClose) {
+        this.channel = channel;
+        this.position = position;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, channel.size() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, channel.size() - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (onClose != null) {
+            onClose.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.netpreserve.outbackproxy;
+
+/**
+ * Estimates how often keys have been seen recently, as used by TinyLFU cache admission.
+ *
+ * A count-min sketch of 4-bit counters packed sixteen to a long. Every counter is halved once the number of
+ * increments reaches ten times the table size so that old popularity fades. Not thread-safe.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(long expectedEntries) {
+        int size = Integer.highestOneBit((int) Math.min(Math.max(expectedEntries, 16), 1 << 24) - 1) << 1;
+        table = new long[size];
+        mask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = 15;
+        for (int depth = 0; depth < 4; depth++) {
+            min = Math.min(min, (int) ((table[indexOf(hash, depth)] >>> counterShift(hash, depth)) & 0xf));
+        }
+        return min;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int depth = 0; depth < 4; depth++) {
+            int index = indexOf(hash, depth);
+            int shift = counterShift(hash, depth);
+            if (((table[index] >>> shift) & 0xf) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int counterShift(int hash, int depth) {
+        return ((hash >>> (depth * 4)) & 0xf) << 2;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
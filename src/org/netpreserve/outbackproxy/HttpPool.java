@@ -0,0 +1,623 @@
+package org.netpreserve.outbackproxy;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
+
+/**
+ * A minimal HTTP/1.1 client which keeps a bounded pool of persistent connections to each upstream host.
+ *
+ * Responses must be closed. Closing a response whose body was fully read returns the connection to the pool. If
+ * only part of the body was read (for example when a client disconnects part way through a record) the remainder is
+ * drained when it is small and the connection is discarded otherwise.
+ */
+class HttpPool implements Closeable {
+    private static final int DRAIN_LIMIT = 64 * 1024;
+
+    private final int maxConnectionsPerHost;
+    private final long idleTimeoutNanos;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final Map<String, HostPool> hosts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reaper;
+
+    /**
+     * @param maxConnectionsPerHost maximum connections open to each host, in use or idle
+     * @param idleTimeoutMillis     idle connections are closed after this long
+     * @param connectTimeoutMillis  timeout for establishing a connection or waiting for a free one
+     * @param readTimeoutMillis     socket read timeout
+     */
+    HttpPool(int maxConnectionsPerHost, long idleTimeoutMillis, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.connectTimeout = connectTimeoutMillis;
+        this.readTimeout = readTimeoutMillis;
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "HttpPool reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleTimeoutMillis / 2, 100);
+        reaper.scheduleWithFixedDelay(() -> hosts.values().forEach(HostPool::closeExpired), period, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a GET request. Extra request headers are given as alternating names and values.
+     */
+    Response get(URL url, String... headers) throws IOException {
+        String protocol = url.getProtocol().toLowerCase(Locale.ROOT);
+        boolean https = protocol.equals("https");
+        if (!https && !protocol.equals("http")) {
+            throw new IllegalArgumentException("unsupported url scheme: " + protocol);
+        }
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String hostKey = protocol + "://" + url.getHost() + ":" + port;
+        HostPool pool = hosts.computeIfAbsent(hostKey, k -> new HostPool(hostKey, url.getHost(), port, https));
+
+        StringBuilder request = new StringBuilder(256);
+        request.append("GET ").append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            request.append(':').append(url.getPort());
+        }
+        request.append("\r\n");
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            request.append(headers[i]).append(": ").append(headers[i + 1]).append("\r\n");
+        }
+        request.append("\r\n");
+        byte[] requestBytes = request.toString().getBytes(ISO_8859_1);
+
+        Response response;
+        try {
+            response = send(pool, requestBytes);
+        } catch (ConcurrencyLimiter.OverloadedException e) {
+            throw e; // no connection was free in time: the host hasn't failed, it's just busy
+        } catch (IOException e) {
+            pool.errors.incrementAndGet();
+            throw e;
+        }
+        if (response.status() >= 500) {
+            pool.errors.incrementAndGet();
+        }
+        return response;
+    }
+
+    private static Response send(HostPool pool, byte[] requestBytes) throws IOException {
+        Connection connection = pool.acquire(true);
+        try {
+            return connection.send(requestBytes);
+        } catch (IOException e) {
+            if (!connection.reused) {
+                throw e;
+            }
+            // the server may have closed an idle connection, retry once on a new one
+            return pool.acquire(false).send(requestBytes);
+        }
+    }
+
+    Collection<HostPool> hostPools() {
+        return hosts.values();
+    }
+
+    @Override
+    public void close() {
+        reaper.shutdownNow();
+        hosts.values().forEach(HostPool::close);
+    }
+
+    /**
+     * The connections to a single scheme, host and port.
+     */
+    class HostPool {
+        private final String name;
+        private final String host;
+        private final int port;
+        private final boolean https;
+        private final Semaphore permits = new Semaphore(maxConnectionsPerHost, true);
+        private final Deque<Connection> idle = new ArrayDeque<>();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong reused = new AtomicLong();
+        private final AtomicLong discarded = new AtomicLong();
+        private final AtomicLong waitTimeouts = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        HostPool(String name, String host, int port, boolean https) {
+            this.name = name;
+            this.host = host;
+            this.port = port;
+            this.https = https;
+        }
+
+        /**
+         * Lease a connection, waiting if the host is at its connection limit.
+         *
+         * @param allowIdle whether an idle pooled connection may be used rather than opening a new one
+         */
+        Connection acquire(boolean allowIdle) throws IOException {
+            acquirePermit();
+            Connection connection = null;
+            List<Connection> stale;
+            synchronized (this) {
+                stale = removeIdle(!allowIdle);
+                if (allowIdle) {
+                    connection = idle.pollFirst();
+                }
+            }
+            stale.forEach(Connection::closeQuietly);
+            if (connection != null) {
+                connection.reused = true;
+                reused.incrementAndGet();
+                return connection;
+            }
+            return connect();
+        }
+
+        private void acquirePermit() throws IOException {
+            try {
+                if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                    waitTimeouts.incrementAndGet();
+                    throw ConcurrencyLimiter.OverloadedException.fromUpstream(
+                            "timed out waiting for a connection to " + name, 1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted waiting for a connection to " + name, e);
+            }
+        }
+
+        private Connection connect() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(readTimeout);
+                socket.connect(new InetSocketAddress(host, port), connectTimeout);
+                if (https) {
+                    SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                            .createSocket(socket, host, port, true);
+                    SSLParameters params = sslSocket.getSSLParameters();
+                    params.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslSocket.setSSLParameters(params);
+                    socket = sslSocket;
+                }
+                created.incrementAndGet();
+                return new Connection(this, socket);
+            } catch (IOException | RuntimeException e) {
+                permits.release();
+                socket.close();
+                throw e;
+            }
+        }
+
+        void release(Connection connection, boolean reusable) {
+            if (reusable) {
+                connection.idleSince = System.nanoTime();
+                synchronized (this) {
+                    idle.addFirst(connection);
+                }
+            } else {
+                discarded.incrementAndGet();
+                connection.closeQuietly();
+            }
+            permits.release();
+        }
+
+        void closeExpired() {
+            List<Connection> expired;
+            synchronized (this) {
+                expired = removeIdle(false);
+            }
+            expired.forEach(Connection::closeQuietly);
+        }
+
+        void close() {
+            List<Connection> connections;
+            synchronized (this) {
+                connections = removeIdle(true);
+            }
+            connections.forEach(Connection::closeQuietly);
+        }
+
+        /**
+         * Removes expired (or all) idle connections for the caller to close once it has released the lock, as closing
+         * a TLS socket can block and a virtual thread can't unmount while it holds a monitor.
+         */
+        private List<Connection> removeIdle(boolean all) {
+            List<Connection> removed = new ArrayList<>();
+            long now = System.nanoTime();
+            for (Iterator<Connection> it = idle.descendingIterator(); it.hasNext(); ) {
+                Connection connection = it.next();
+                if (all || now - connection.idleSince > idleTimeoutNanos) {
+                    it.remove();
+                    removed.add(connection);
+                }
+            }
+            return removed;
+        }
+
+        String name() {
+            return name;
+        }
+
+        int leased() {
+            return maxConnectionsPerHost - permits.availablePermits();
+        }
+
+        synchronized int idle() {
+            return idle.size();
+        }
+
+        int waiting() {
+            return permits.getQueueLength();
+        }
+
+        long created() {
+            return created.get();
+        }
+
+        long reused() {
+            return reused.get();
+        }
+
+        long discarded() {
+            return discarded.get();
+        }
+
+        long waitTimeouts() {
+            return waitTimeouts.get();
+        }
+
+        /**
+         * Requests that failed with an I/O error or a 5xx status.
+         */
+        long errors() {
+            return errors.get();
+        }
+    }
+
+    /**
+     * A connection which, while leased, holds one of its host's permits.
+     */
+    private static class Connection {
+        private final HostPool pool;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        boolean reused;
+        long idleSince;
+
+        Connection(HostPool pool, Socket socket) throws IOException {
+            this.pool = pool;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 1024);
+        }
+
+        Response send(byte[] request) throws IOException {
+            try {
+                out.write(request);
+                out.flush();
+                String statusLine = readLine(in);
+                if (statusLine == null) {
+                    throw new IOException("connection closed before response from " + pool.name);
+                }
+                String[] parts = statusLine.split(" ", 3);
+                if (parts.length < 2 || !parts[0].startsWith("HTTP/1.")) {
+                    throw new IOException("bad status line from " + pool.name + ": " + statusLine);
+                }
+                int status = Integer.parseInt(parts[1]);
+                Map<String, String> headers = new LinkedHashMap<>();
+                for (String line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                    }
+                }
+                boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection")) && parts[0].equals("HTTP/1.1");
+                return new Response(this, status, headers, keepAlive);
+            } catch (IOException | RuntimeException e) {
+                pool.release(this, false);
+                throw e;
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Reads a CRLF or LF terminated line. Returns null at end of stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString("ISO-8859-1");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    /**
+     * A response whose body stream must be closed to release its connection.
+     */
+    static class Response implements Closeable {
+        private final Connection connection;
+        private final int status;
+        private final Map<String, String> headers;
+        private final Body body;
+        private boolean keepAlive;
+        private boolean released;
+
+        private Response(Connection connection, int status, Map<String, String> headers, boolean keepAlive) {
+            this.connection = connection;
+            this.status = status;
+            this.headers = headers;
+            this.keepAlive = keepAlive;
+            String transferEncoding = headers.get("transfer-encoding");
+            String contentLength = headers.get("content-length");
+            if (status == 204 || status == 304 || (status >= 100 && status < 200)) {
+                body = new Body(0);
+            } else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+                body = new ChunkedBody();
+            } else if (contentLength != null) {
+                body = new Body(Long.parseLong(contentLength));
+            } else {
+                this.keepAlive = false;
+                body = new Body(Long.MAX_VALUE);
+            }
+        }
+
+        int status() {
+            return status;
+        }
+
+        /**
+         * Returns the value of a response header, name is case-insensitive.
+         */
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        InputStream body() {
+            return body;
+        }
+
+        /**
+         * The exception to throw for an error status. 404 and 410 mean the file isn't there. 429, or 503 with a
+         * Retry-After, mean the server is shedding load and we should too. Anything else is a server failure.
+         *
+         * @param server description of the server for the message, e.g. "WARC server"
+         */
+        IOException error(String server, URL url) {
+            String message = server + " returned " + status + " for " + url;
+            if (status == 404 || status == 410) {
+                return new FileNotFoundException(message);
+            }
+            long retryAfter = retryAfterSeconds(header("Retry-After"));
+            if (status == 429 || (status == 503 && retryAfter >= 0)) {
+                return ConcurrencyLimiter.OverloadedException.fromUpstream(message, Math.max(1, retryAfter));
+            }
+            return new IOException(message);
+        }
+
+        /**
+         * Parses a Retry-After value given either as seconds or as an HTTP date. Returns -1 if missing or invalid.
+         */
+        static long retryAfterSeconds(String value) {
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return Math.max(0, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                // try a date
+            }
+            try {
+                Instant date = RFC_1123_DATE_TIME.parse(value.trim(), Instant::from);
+                return Math.max(0, Duration.between(Instant.now(), date).getSeconds());
+            } catch (DateTimeParseException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public void close() {
+            body.close();
+        }
+
+        private void release(boolean complete) {
+            if (!released) {
+                released = true;
+                connection.pool.release(connection, complete && keepAlive);
+            }
+        }
+
+        /**
+         * A body with a known length (or Long.MAX_VALUE to read until the connection closes).
+         */
+        private class Body extends InputStream {
+            long remaining;
+
+            Body(long length) {
+                this.remaining = length;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (released) {
+                    throw new IOException("response closed");
+                }
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int n;
+                try {
+                    n = connection.in.read(b, off, (int) Math.min(len, remaining));
+                } catch (IOException e) {
+                    release(false);
+                    throw e;
+                }
+                if (n < 0) {
+                    if (remaining != Long.MAX_VALUE) {
+                        release(false);
+                        throw new IOException("connection closed with " + remaining + " bytes of response remaining");
+                    }
+                    remaining = 0;
+                    return -1;
+                }
+                if (remaining != Long.MAX_VALUE) {
+                    remaining -= n;
+                }
+                return n;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return released ? 0 : (int) Math.min(connection.in.available(), remaining);
+            }
+
+            boolean isComplete() {
+                return remaining == 0;
+            }
+
+            /**
+             * Returns true if the rest of the body is small enough that reading it is cheaper than a new connection.
+             */
+            boolean isDrainable() {
+                return remaining <= DRAIN_LIMIT;
+            }
+
+            @Override
+            public void close() {
+                if (released) {
+                    return;
+                }
+                if (!isComplete() && isDrainable()) {
+                    try {
+                        byte[] buffer = new byte[8192];
+                        long drained = 0;
+                        for (int n = read(buffer, 0, buffer.length); n >= 0 && drained < DRAIN_LIMIT;
+                             n = read(buffer, 0, buffer.length)) {
+                            drained += n;
+                        }
+                    } catch (IOException e) {
+                        release(false);
+                        return;
+                    }
+                }
+                release(isComplete());
+            }
+        }
+
+        /**
+         * A body using chunked transfer encoding.
+         */
+        private class ChunkedBody extends Body {
+            private boolean started;
+            private boolean done;
+
+            ChunkedBody() {
+                super(0);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (released) {
+                    throw new IOException("response closed");
+                }
+                if (done) {
+                    return -1;
+                }
+                if (remaining == 0 && !nextChunk()) {
+                    return -1;
+                }
+                return super.read(b, off, len);
+            }
+
+            private boolean nextChunk() throws IOException {
+                try {
+                    if (started) {
+                        readLine(connection.in); // CRLF after previous chunk
+                    }
+                    String line = readLine(connection.in);
+                    if (line == null) {
+                        throw new IOException("connection closed in chunked response");
+                    }
+                    int semicolon = line.indexOf(';');
+                    long size = Long.parseLong((semicolon >= 0 ? line.substring(0, semicolon) : line).trim(), 16);
+                    started = true;
+                    if (size == 0) {
+                        for (String trailer = readLine(connection.in); trailer != null && !trailer.isEmpty();
+                             trailer = readLine(connection.in)) {
+                            // ignore trailers
+                        }
+                        done = true;
+                        return false;
+                    }
+                    remaining = size;
+                    return true;
+                } catch (IOException | RuntimeException e) {
+                    release(false);
+                    throw e;
+                }
+            }
+
+            @Override
+            boolean isComplete() {
+                return done;
+            }
+
+            @Override
+            boolean isDrainable() {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.netpreserve.outbackproxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache with least-recently-used eviction.
+ *
+ * Values are loaded outside the lock. When several threads ask for the same missing key at once only the first
+ * runs the loader and the others wait for its result. Failed loads are not cached.
+ *
+ * The bound is a total weight, which is either the number of entries or an estimate of their size in bytes. A value
+ * heavier than the whole bound is returned but not kept.
+ * Entries can optionally expire a fixed time after being loaded.
+ */
+class LruCache<K, V> {
+    private final long maxWeight;
+    private final Weigher<? super V> weigher;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalWeight;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @FunctionalInterface
+    interface Loader<K, V, E extends Exception> {
+        V load(K key) throws E;
+    }
+
+    @FunctionalInterface
+    interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    private static class Entry<V> {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        long weight;
+        long loadedAt;
+    }
+
+    LruCache(int capacity) {
+        this(capacity, value -> 1, 0);
+    }
+
+    LruCache(long maxWeight, Weigher<? super V> weigher, long ttlMillis) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Returns the cached value for key, calling the loader if it is not present.
+     */
+    <E extends Exception> V get(K key, Loader<? super K, ? extends V, E> loader) throws E {
+        Entry<V> entry;
+        boolean owner = false;
+        synchronized (this) {
+            entry = map.get(key);
+            if (entry != null && isExpired(entry)) {
+                remove(key, entry);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry<>();
+                map.put(key, entry);
+                owner = true;
+            }
+        }
+        if (!owner) {
+            hits.increment();
+            return await(entry.future);
+        }
+        misses.increment();
+        V value;
+        try {
+            value = loader.load(key);
+        } catch (Throwable t) {
+            synchronized (this) {
+                remove(key, entry);
+            }
+            entry.future.completeExceptionally(t);
+            throw t;
+        }
+        long weight = weigher.weigh(value);
+        synchronized (this) {
+            if (map.get(key) == entry && weight > maxWeight) {
+                map.remove(key); // would flush everything else and still not fit
+            } else if (map.get(key) == entry) {
+                entry.weight = weight;
+                entry.loadedAt = System.nanoTime();
+                totalWeight += weight;
+                evict();
+            }
+        }
+        entry.future.complete(value);
+        return value;
+    }
+
+    private boolean isExpired(Entry<V> entry) {
+        return ttlNanos > 0 && entry.future.isDone() && System.nanoTime() - entry.loadedAt > ttlNanos;
+    }
+
+    private void remove(K key, Entry<V> entry) {
+        if (map.remove(key, entry)) {
+            totalWeight -= entry.weight;
+        }
+    }
+
+    /**
+     * Removes least recently used entries until the total weight is back under the limit. Entries which are still
+     * loading have no weight yet and are skipped.
+     */
+    private void evict() {
+        Iterator<Entry<V>> it = map.values().iterator();
+        while (totalWeight > maxWeight && it.hasNext()) {
+            Entry<V> entry = it.next();
+            if (entry.future.isDone()) {
+                totalWeight -= entry.weight;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Waits for a load started by another thread, rethrowing whatever it failed with.
+     */
+    @SuppressWarnings("unchecked")
+    static <V, E extends Exception> V await(CompletableFuture<V> future) throws E {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for load", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (E) cause;
+        }
+    }
+
+    synchronized void invalidate(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry != null) {
+            remove(key, entry);
+        }
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    synchronized long weight() {
+        return totalWeight;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,234 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.server.HttpServerExchange;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+import static io.undertow.util.Headers.CONTENT_TYPE;
+
+/**
+ * Request phase timings and counters, exposed in the Prometheus text format.
+ *
+ * Recording only does arithmetic and atomic increments so it's safe to use on the request path. Counters kept by
+ * other components (caches, connection pools) are read when the metrics are scraped via registered collectors.
+ */
+class Metrics {
+    final Histogram indexLookup = new Histogram("outbackproxy_index_lookup_seconds",
+            "Time to find the closest capture in the index");
+    final Histogram recordFetch = new Histogram("outbackproxy_record_fetch_seconds",
+            "Time to open a record and read up to its headers");
+    final Histogram recordParse = new Histogram("outbackproxy_record_parse_seconds",
+            "Time to parse WARC/ARC and HTTP headers");
+    final Histogram payloadStream = new Histogram("outbackproxy_payload_stream_seconds",
+            "Time to send the response payload");
+    final Histogram tlsHandshake = new Histogram("outbackproxy_tls_handshake_seconds",
+            "Time to complete the TLS handshake after CONNECT");
+    final LongAdder tlsFullHandshakes = new LongAdder();
+    final LongAdder tlsResumedHandshakes = new LongAdder();
+    final LongAdder bytesServed = new LongAdder();
+    final LongAdder notFound = new LongAdder();
+    final LongAdder notModified = new LongAdder();
+    final LongAdder serverErrors = new LongAdder();
+    final LongAdder abortedResponses = new LongAdder();
+    final LongAdder batchItems = new LongAdder();
+
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    @FunctionalInterface
+    interface Collector {
+        void collect(Output out);
+    }
+
+    Metrics() {
+        register(out -> {
+            for (Histogram histogram : new Histogram[]{indexLookup, recordFetch, recordParse, payloadStream,
+                    tlsHandshake}) {
+                histogram.writeTo(out);
+            }
+        });
+        register(out -> {
+            String name = "outbackproxy_tls_handshakes_total";
+            out.header(name, "counter", "TLS handshakes after CONNECT by whether a previous session was resumed");
+            out.sample(name, "type", "full", tlsFullHandshakes.sum());
+            out.sample(name, "type", "resumed", tlsResumedHandshakes.sum());
+        });
+        counter("outbackproxy_bytes_served_total", "Payload bytes sent to clients", bytesServed::sum);
+        counter("outbackproxy_not_found_total", "Requests for URLs not in the archive", notFound::sum);
+        counter("outbackproxy_not_modified_total", "Requests answered 304 as the client's copy was current",
+                notModified::sum);
+        counter("outbackproxy_server_errors_total", "Requests that failed with a 500 error", serverErrors::sum);
+        counter("outbackproxy_aborted_responses_total",
+                "Responses cut short by closing the connection as an error came after they started",
+                abortedResponses::sum);
+        counter("outbackproxy_batch_items_total", "Captures replayed in /batch responses", batchItems::sum);
+    }
+
+    void register(Collector collector) {
+        collectors.add(collector);
+    }
+
+    void counter(String name, String help, LongSupplier value) {
+        register(out -> {
+            out.header(name, "counter", help);
+            out.sample(name, value.getAsLong());
+        });
+    }
+
+    void gauge(String name, String help, LongSupplier value) {
+        register(out -> {
+            out.header(name, "gauge", help);
+            out.sample(name, value.getAsLong());
+        });
+    }
+
+    /**
+     * Registers one sample per item under a label, such as a counter for each upstream host.
+     */
+    <T> void labelled(String name, String type, String help, String label, Iterable<T> items,
+                      Function<T, String> labelValue, ToLongFunction<T> value) {
+        register(out -> {
+            out.header(name, type, help);
+            for (T item : items) {
+                out.sample(name, label, labelValue.apply(item), value.applyAsLong(item));
+            }
+        });
+    }
+
+    String scrape() {
+        Output out = new Output();
+        for (Collector collector : collectors) {
+            collector.collect(out);
+        }
+        return out.text.toString();
+    }
+
+    /**
+     * Handles a scrape request on the admin listener.
+     */
+    void handleRequest(HttpServerExchange exchange) {
+        exchange.getResponseHeaders().put(CONTENT_TYPE, "text/plain; version=0.0.4");
+        exchange.getResponseSender().send(scrape());
+    }
+
+    /**
+     * Builds a Prometheus text format document.
+     */
+    static class Output {
+        private final StringBuilder text = new StringBuilder(4096);
+
+        void header(String name, String type, String help) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        void sample(String name, double value) {
+            text.append(name).append(' ').append(format(value)).append('\n');
+        }
+
+        void sample(String name, String label, String labelValue, double value) {
+            text.append(name).append('{').append(label).append("=\"")
+                    .append(labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append("\"} ").append(format(value)).append('\n');
+        }
+
+        private static String format(double value) {
+            if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+                return Long.toString((long) value);
+            }
+            return Double.toString(value);
+        }
+    }
+
+    /**
+     * A log-linear histogram of durations in the style of HdrHistogram. Each power of two is split into
+     * {@link #SUB_BUCKETS} linear buckets, so quantiles are accurate to within 12.5% across the whole range.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private final String name;
+        private final String help;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts.incrementAndGet(bucket(nanos));
+            count.increment();
+            sum.add(nanos);
+        }
+
+        /**
+         * Records the time elapsed since a value previously returned by System.nanoTime().
+         */
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        /**
+         * Returns an upper bound on the given quantile in nanoseconds.
+         */
+        long quantile(double q) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return (shift + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+
+        void writeTo(Output out) {
+            out.header(name, "summary", help);
+            for (double q : QUANTILES) {
+                out.sample(name, "quantile", Double.toString(q), quantile(q) / 1e9);
+            }
+            out.sample(name + "_sum", sum.sum() / 1e9);
+            out.sample(name + "_count", count.sum());
+        }
+    }
+}
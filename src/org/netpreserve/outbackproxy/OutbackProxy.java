@@ -11,15 +11,21 @@ import io.undertow.server.handlers.ExceptionHandler;
 import io.undertow.util.HeaderMap;
 import io.undertow.util.HeaderValues;
 import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
+import org.xnio.channels.StreamSinkChannel;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import static io.undertow.util.Headers.*;
 import static java.time.ZoneOffset.UTC;
@@ -30,84 +36,449 @@ public class OutbackProxy {
     private static final HttpString ACCEPT_DATETIME = new HttpString("Accept-Datetime");
     private static final HttpString MEMENTO_DATETIME = new HttpString("Memento-Datetime");
     private static final Set<HttpString> HEADERS_TO_RENAME = new HashSet<>(Arrays.asList(
-            TRANSFER_ENCODING, DATE, CONNECTION, SERVER, CONTENT_LENGTH
+            TRANSFER_ENCODING, DATE, CONNECTION, SERVER, CONTENT_LENGTH, CONTENT_RANGE, ACCEPT_RANGES, ETAG
     ));
 
     private final CaptureIndex captureIndex;
     private final ResourceStore resourceStore;
+    private final RevisitResolver revisits;
+    private final Metrics metrics;
     private final Undertow webServer;
+    private final Undertow adminServer;
 
     public static void main(String args[]) throws Exception {
         Map<String, String> env = System.getenv();
+        if (System.getProperty("jdk.tls.server.statelessKeyTimeout") == null) {
+            // read once when the JDK first issues a ticket, so it must be set before any TLS use
+            System.setProperty("jdk.tls.server.statelessKeyTimeout",
+                    env.getOrDefault("SSL_TICKET_KEY_ROTATION", "3600"));
+        }
+        fromEnvironment(env).run();
+    }
+
+    /**
+     * Configures a proxy from the environment variables documented in the README.
+     */
+    static OutbackProxy fromEnvironment(Map<String, String> env) throws Exception {
         String host = env.getOrDefault("HOST", "0.0.0.0");
         int port = Integer.parseInt(env.getOrDefault("PORT", "3128"));
         String cdxServerUrl = env.getOrDefault("CDX_URL", "http://localhost:9901/myindex");
         String warcServerUrl = env.getOrDefault("WARC_URL", "");
         String caCertFile = env.getOrDefault("CA_CERT", "");
         String caKeyFile = env.getOrDefault("CA_KEY", "");
-        CaptureIndex captureIndex = new CaptureIndex(cdxServerUrl);
-        ResourceStore resourceStore = new ResourceStore(warcServerUrl);
+        int sslCacheSize = Integer.parseInt(env.getOrDefault("SSL_CACHE_SIZE", "1000"));
+        int sslSessionTimeout = Integer.parseInt(env.getOrDefault("SSL_SESSION_TIMEOUT", "86400"));
+        long timelineCacheSize = Long.parseLong(env.getOrDefault("TIMELINE_CACHE_SIZE", "0"));
+        long timelineCacheTtl = Long.parseLong(env.getOrDefault("TIMELINE_CACHE_TTL", "300"));
+        LruCache<String, Timeline> timelineCache = timelineCacheSize <= 0 ? null :
+                new LruCache<>(timelineCacheSize, Timeline::weight, timelineCacheTtl * 1000);
+        HttpPool httpPool = new HttpPool(
+                Integer.parseInt(env.getOrDefault("HTTP_MAX_CONNECTIONS", "64")),
+                Long.parseLong(env.getOrDefault("HTTP_IDLE_TIMEOUT", "30")) * 1000,
+                Integer.parseInt(env.getOrDefault("HTTP_CONNECT_TIMEOUT", "5000")),
+                Integer.parseInt(env.getOrDefault("HTTP_READ_TIMEOUT", "30000")));
+        Metrics metrics = new Metrics();
+        int upstreamLimit = Integer.parseInt(env.getOrDefault("UPSTREAM_LIMIT", "64"));
+        UpstreamLimits limits = new UpstreamLimits(upstreamLimit <= 0 ? Integer.MAX_VALUE : upstreamLimit,
+                Integer.parseInt(env.getOrDefault("UPSTREAM_QUEUE", "256")),
+                Long.parseLong(env.getOrDefault("UPSTREAM_QUEUE_TIMEOUT", "2000")),
+                upstreamLimit > 0 && Boolean.parseBoolean(env.getOrDefault("UPSTREAM_LIMIT_ADAPTIVE", "true")));
+        CaptureIndex captureIndex = CaptureIndex.open(cdxServerUrl, httpPool, timelineCache, limits);
+        long resourceCacheSize = Long.parseLong(env.getOrDefault("RESOURCE_CACHE_SIZE", "0"));
+        ResourceCache resourceCache = resourceCacheSize <= 0 ? null : new ResourceCache(resourceCacheSize,
+                Long.parseLong(env.getOrDefault("RESOURCE_CACHE_MAX_ENTRY", "1048576")));
+        FileChannelCache fileCache = new FileChannelCache(
+                Integer.parseInt(env.getOrDefault("FILE_CACHE_SIZE", "256")),
+                Long.parseLong(env.getOrDefault("FILE_CACHE_IDLE_TIMEOUT", "60")) * 1000);
+        String blockCacheDir = env.getOrDefault("BLOCK_CACHE_DIR", "");
+        BlockCache blockCache = blockCacheDir.isEmpty() ? null : new BlockCache(Paths.get(blockCacheDir),
+                Long.parseLong(env.getOrDefault("BLOCK_CACHE_SIZE", "10737418240")),
+                Integer.parseInt(env.getOrDefault("BLOCK_CACHE_BLOCK_SIZE", "262144")),
+                Integer.parseInt(env.getOrDefault("BLOCK_CACHE_READ_AHEAD", "4")), httpPool);
+        String handlerMode = env.getOrDefault("HANDLER_MODE", "blocking");
+        ExecutorService upstreamExecutor = null;
+        ExecutorService replayExecutor = null;
+        if (handlerMode.equals("async")) {
+            upstreamExecutor = AsyncReplayHandler.newUpstreamExecutor(
+                    Integer.parseInt(env.getOrDefault("UPSTREAM_THREADS", "64")));
+        } else if (handlerMode.equals("virtual")) {
+            replayExecutor = VirtualThreadHandler.newVirtualThreadExecutor();
+        } else if (!handlerMode.equals("blocking")) {
+            throw new IllegalArgumentException("HANDLER_MODE must be blocking, async or virtual");
+        }
+        List<String> warcReplicas = Replicas.parse(warcServerUrl);
+        Replicas replicas = warcReplicas.size() == 1 ? Replicas.single(warcReplicas.get(0)) :
+                new Replicas(warcReplicas, replayExecutor != null ? replayExecutor : Replicas.newExecutor(),
+                        Double.parseDouble(env.getOrDefault("WARC_HEDGE_PERCENTILE", "95")),
+                        Long.parseLong(env.getOrDefault("WARC_HEDGE_MIN_DELAY", "10")),
+                        Integer.parseInt(env.getOrDefault("WARC_BREAKER_FAILURES", "5")),
+                        Long.parseLong(env.getOrDefault("WARC_BREAKER_COOLDOWN", "30")) * 1000);
+        ResourceStore resourceStore = new ResourceStore(replicas, httpPool, resourceCache, fileCache, blockCache,
+                limits, metrics);
+        RevisitResolver revisits = new RevisitResolver(captureIndex, resourceStore,
+                Integer.parseInt(env.getOrDefault("REVISIT_CACHE_SIZE", "100000")));
         Path caCertPath = caCertFile.isEmpty() ? null : Paths.get(caCertFile);
         Path caKeyPath = caKeyFile.isEmpty() ? null : Paths.get(caKeyFile);
-        CertificateGenerator certificateGenerator = new CertificateGenerator(caKeyPath, caCertPath);
-        new OutbackProxy(host, port, captureIndex, resourceStore, certificateGenerator).run();
+        String certStoreFile = env.getOrDefault("CERT_STORE", "");
+        if (!certStoreFile.isEmpty() && caKeyPath == null) {
+            throw new IllegalArgumentException("CERT_STORE requires CA_CERT and CA_KEY");
+        }
+        CertificateGenerator certificateGenerator = new CertificateGenerator(caKeyPath, caCertPath,
+                certStoreFile.isEmpty() ? null : Paths.get(certStoreFile),
+                Boolean.parseBoolean(env.getOrDefault("CERT_STORE_READ_ONLY", "false")));
+        String certPrewarmFile = env.getOrDefault("CERT_PREWARM", "");
+        if (!certPrewarmFile.isEmpty()) {
+            certificateGenerator.prewarm(Paths.get(certPrewarmFile));
+        }
+        String adminHost = env.getOrDefault("ADMIN_HOST", "127.0.0.1");
+        int adminPort = Integer.parseInt(env.getOrDefault("ADMIN_PORT", "0"));
+        int batchConcurrency = Integer.parseInt(env.getOrDefault("BATCH_CONCURRENCY", "16"));
+        registerMetrics(metrics, httpPool, limits, timelineCache, captureIndex, resourceStore, revisits);
+        return new OutbackProxy(host, port, captureIndex, resourceStore, revisits, certificateGenerator, sslCacheSize,
+                sslSessionTimeout, upstreamExecutor, replayExecutor, metrics, adminHost, adminPort, batchConcurrency);
+    }
+
+    /**
+     * Expose the counters the upstream components keep themselves.
+     */
+    private static void registerMetrics(Metrics metrics, HttpPool httpPool, UpstreamLimits limits,
+                                        LruCache<String, Timeline> timelineCache, CaptureIndex captureIndex,
+                                        ResourceStore resourceStore, RevisitResolver revisits) {
+        metrics.labelled("outbackproxy_upstream_errors_total", "counter",
+                "Upstream requests that failed with an I/O error or 5xx status", "upstream",
+                httpPool.hostPools(), HttpPool.HostPool::name, HttpPool.HostPool::errors);
+        metrics.labelled("outbackproxy_upstream_connections_leased", "gauge",
+                "Upstream connections currently in use", "upstream",
+                httpPool.hostPools(), HttpPool.HostPool::name, HttpPool.HostPool::leased);
+        metrics.labelled("outbackproxy_upstream_connections_idle", "gauge",
+                "Upstream connections open and waiting in the pool", "upstream",
+                httpPool.hostPools(), HttpPool.HostPool::name, HttpPool.HostPool::idle);
+        metrics.labelled("outbackproxy_upstream_connections_waiting", "gauge",
+                "Requests waiting for a free upstream connection", "upstream",
+                httpPool.hostPools(), HttpPool.HostPool::name, HttpPool.HostPool::waiting);
+        metrics.labelled("outbackproxy_upstream_connections_created_total", "counter",
+                "Upstream connections opened", "upstream",
+                httpPool.hostPools(), HttpPool.HostPool::name, HttpPool.HostPool::created);
+        metrics.labelled("outbackproxy_upstream_connections_reused_total", "counter",
+                "Upstream requests sent on a pooled connection", "upstream",
+                httpPool.hostPools(), HttpPool.HostPool::name, HttpPool.HostPool::reused);
+        metrics.labelled("outbackproxy_upstream_connections_discarded_total", "counter",
+                "Upstream connections closed after a request instead of returned to the pool", "upstream",
+                httpPool.hostPools(), HttpPool.HostPool::name, HttpPool.HostPool::discarded);
+        metrics.labelled("outbackproxy_upstream_wait_timeouts_total", "counter",
+                "Requests that timed out waiting for a free upstream connection", "upstream",
+                httpPool.hostPools(), HttpPool.HostPool::name, HttpPool.HostPool::waitTimeouts);
+        metrics.labelled("outbackproxy_upstream_limit", "gauge",
+                "Concurrent requests currently allowed to each upstream", "upstream",
+                limits.limiters(), ConcurrencyLimiter::name, ConcurrencyLimiter::limitValue);
+        metrics.labelled("outbackproxy_upstream_in_flight", "gauge",
+                "Requests to each upstream holding a slot in its limit", "upstream",
+                limits.limiters(), ConcurrencyLimiter::name, ConcurrencyLimiter::inFlight);
+        metrics.labelled("outbackproxy_upstream_queued", "gauge",
+                "Requests waiting for a slot in an upstream's limit", "upstream",
+                limits.limiters(), ConcurrencyLimiter::name, ConcurrencyLimiter::queued);
+        metrics.labelled("outbackproxy_upstream_shed_total", "counter",
+                "Requests rejected with 503 because an upstream was at its limit", "upstream",
+                limits.limiters(), ConcurrencyLimiter::name, ConcurrencyLimiter::shed);
+        if (timelineCache != null) {
+            metrics.counter("outbackproxy_timeline_cache_hits_total", "Timeline cache hits", timelineCache::hits);
+            metrics.counter("outbackproxy_timeline_cache_misses_total", "Timeline cache misses", timelineCache::misses);
+            metrics.gauge("outbackproxy_timeline_cache_bytes", "Estimated size of cached timelines",
+                    timelineCache::weight);
+        }
+        if (captureIndex instanceof CoalescingCaptureIndex) {
+            metrics.counter("outbackproxy_index_lookups_shared_total", "Index lookups that joined an identical one",
+                    ((CoalescingCaptureIndex) captureIndex).lookups()::shared);
+        }
+        metrics.counter("outbackproxy_record_fetches_shared_total", "Record fetches that joined an identical one",
+                resourceStore.fetches()::shared);
+        metrics.counter("outbackproxy_revisits_resolved_total",
+                "Revisit records replayed with their original's payload", revisits::resolved);
+        metrics.counter("outbackproxy_revisits_unresolved_total", "Revisit records whose original wasn't found",
+                revisits::unresolved);
+        metrics.counter("outbackproxy_revisit_cache_hits_total", "Revisits whose original's location was cached",
+                revisits.originals()::hits);
+        metrics.counter("outbackproxy_revisit_cache_misses_total", "Revisits that looked up their original",
+                revisits.originals()::misses);
+        FileChannelCache fileCache = resourceStore.files();
+        metrics.counter("outbackproxy_file_cache_hits_total", "Local WARC reads that reused an open file",
+                fileCache::hits);
+        metrics.counter("outbackproxy_file_cache_misses_total", "Local WARC reads that opened the file",
+                fileCache::misses);
+        metrics.gauge("outbackproxy_file_cache_open", "Local WARC files held open", fileCache::size);
+        Replicas replicas = resourceStore.replicas();
+        if (replicas.replicas().size() > 1) {
+            metrics.counter("outbackproxy_warc_hedged_reads_total",
+                    "Record reads also sent to a second replica because the first was slow", replicas::hedges);
+            metrics.labelled("outbackproxy_warc_replica_latency_milliseconds", "gauge",
+                    "Moving average time for a replica to return a record's headers", "replica",
+                    replicas.replicas(), Replicas.Replica::base, Replicas.Replica::averageMillis);
+            metrics.labelled("outbackproxy_warc_replica_failures_total", "counter",
+                    "Record reads from a replica that failed", "replica",
+                    replicas.replicas(), Replicas.Replica::base, Replicas.Replica::failures);
+            metrics.labelled("outbackproxy_warc_replica_breaker_open", "gauge",
+                    "1 while a replica is skipped after repeated failures", "replica",
+                    replicas.replicas(), Replicas.Replica::base, replica -> replica.breakerOpen() ? 1 : 0);
+        }
+        BlockCache blockCache = resourceStore.blocks();
+        if (blockCache != null) {
+            metrics.counter("outbackproxy_block_cache_hits_total", "Remote WARC blocks read from local disk",
+                    blockCache::hits);
+            metrics.counter("outbackproxy_block_cache_range_requests_total",
+                    "Range requests for blocks missing from the block cache", blockCache::rangeRequests);
+            metrics.counter("outbackproxy_block_cache_fetched_bytes_total", "Bytes fetched into the block cache",
+                    blockCache::fetchedBytes);
+            metrics.counter("outbackproxy_block_cache_evictions_total", "Blocks evicted from the block cache",
+                    blockCache::evictions);
+            metrics.gauge("outbackproxy_block_cache_bytes", "Bytes of blocks held in the block cache",
+                    blockCache::bytes);
+        }
+        ResourceCache resourceCache = resourceStore.cache();
+        if (resourceCache != null) {
+            metrics.counter("outbackproxy_resource_cache_hits_total", "Resource cache hits", resourceCache::hits);
+            metrics.counter("outbackproxy_resource_cache_misses_total", "Resource cache misses", resourceCache::misses);
+            metrics.gauge("outbackproxy_resource_cache_bytes", "Payload bytes held in the resource cache",
+                    resourceCache::bytes);
+            metrics.gauge("outbackproxy_resource_cache_max_bytes", "Resource cache capacity",
+                    resourceCache::maxBytes);
+            metrics.gauge("outbackproxy_resource_cache_entries", "Records held in the resource cache",
+                    resourceCache::size);
+            metrics.counter("outbackproxy_resource_cache_evictions_total", "Records evicted from the resource cache",
+                    resourceCache::evictions);
+            metrics.counter("outbackproxy_resource_cache_rejections_total",
+                    "Records not admitted to the resource cache", resourceCache::rejections);
+        }
     }
 
-    public OutbackProxy(String host, int port, CaptureIndex captureIndex, ResourceStore resourceStore, CertificateGenerator certificateGenerator) throws Exception {
+    /**
+     * @param sslSessionTimeout seconds a client may resume a TLS session with a host
+     * @param upstreamExecutor if not null requests are handled asynchronously with blocking upstream operations run on
+     *                         this executor, otherwise each request is handled on an XNIO worker thread
+     * @param replayExecutor   if not null (and upstreamExecutor is null) each request is handled on a thread from this
+     *                         executor, typically a virtual thread, instead of an XNIO worker thread
+     * @param adminPort        port for the admin listener serving /metrics and /batch or 0 for none
+     * @param batchConcurrency captures a /batch request looks up and opens at once
+     */
+    public OutbackProxy(String host, int port, CaptureIndex captureIndex, ResourceStore resourceStore,
+                        RevisitResolver revisits, CertificateGenerator certificateGenerator, int sslCacheSize,
+                        int sslSessionTimeout, ExecutorService upstreamExecutor, ExecutorService replayExecutor,
+                        Metrics metrics, String adminHost, int adminPort, int batchConcurrency) throws Exception {
         this.captureIndex = captureIndex;
         this.resourceStore = resourceStore;
+        this.revisits = revisits;
+        this.metrics = metrics;
         ByteBufferPool bufferPool = new DefaultByteBufferPool(true, 16 * 1024 - 20, -1, 4);
-        HttpHandler handler = this::handleRequest;
-        handler = Handlers.exceptionHandler(handler).addExceptionHandler(Exception.class, this::handleException);
-        handler = new BlockingHandler(handler);
-        handler = new SSLConnectHandler(handler, handler, certificateGenerator, bufferPool);
+        HttpHandler handler;
+        if (upstreamExecutor != null) {
+            handler = new AsyncReplayHandler(this, upstreamExecutor);
+        } else {
+            handler = this::handleRequest;
+            handler = Handlers.exceptionHandler(handler).addExceptionHandler(Exception.class, this::handleException);
+            handler = replayExecutor != null ? new VirtualThreadHandler(handler, replayExecutor)
+                    : new BlockingHandler(handler);
+        }
+        SSLConnectHandler sslConnectHandler = new SSLConnectHandler(handler, handler, certificateGenerator, bufferPool,
+                sslCacheSize, sslSessionTimeout, metrics);
+        metrics.counter("outbackproxy_ssl_context_cache_hits_total", "Per-host SSL context cache hits",
+                sslConnectHandler.sslCache()::hits);
+        metrics.counter("outbackproxy_ssl_context_cache_misses_total", "Per-host SSL context cache misses",
+                sslConnectHandler.sslCache()::misses);
         webServer = Undertow.builder()
                 .addHttpListener(port, host)
                 .setByteBufferPool(bufferPool)
-                .setHandler(handler)
+                .setHandler(sslConnectHandler)
                 .build();
+        if (adminPort > 0) {
+            BatchHandler batchHandler = new BatchHandler(this, BatchHandler.newExecutor(), batchConcurrency);
+            adminServer = Undertow.builder()
+                    .setIoThreads(1)
+                    .setWorkerThreads(2)
+                    .addHttpListener(adminPort, adminHost)
+                    .setHandler(Handlers.path()
+                            .addExactPath("/metrics", metrics::handleRequest)
+                            .addExactPath("/batch", batchHandler))
+                    .build();
+        } else {
+            adminServer = null;
+        }
     }
 
-    private void run() {
+    void run() {
         webServer.start();
+        if (adminServer != null) {
+            adminServer.start();
+        }
+    }
+
+    void stop() {
+        webServer.stop();
+        if (adminServer != null) {
+            adminServer.stop();
+        }
+    }
+
+    Metrics metrics() {
+        return metrics;
     }
 
     /**
      * Handle a proxy request from a client.
      */
     private void handleRequest(HttpServerExchange exchange) throws IOException {
+        Capture capture = findCapture(exchange);
+        if (capture == null) {
+            sendNotFound(exchange);
+            return;
+        }
+        if (notModified(exchange, capture, null)) {
+            sendNotModified(exchange, capture);
+            return;
+        }
+        try (Resource resource = openResource(capture)) {
+            sendResponse(exchange, capture, resource);
+        }
+    }
+
+    /**
+     * Look up the capture closest to the time the client requested.
+     */
+    Capture findCapture(HttpServerExchange exchange) throws IOException {
         String url = exchange.getRequestURL();
         if (exchange.getQueryString() != null) {
             url += "?" + exchange.getQueryString();
         }
-        Instant requestedTime = parseRequestedTime(exchange);
-        Capture capture = captureIndex.findClosest(url, requestedTime);
-        if (capture == null) {
-            exchange.setStatusCode(404);
-            exchange.getResponseSender().send("Not in archive");
-            return;
+        return findCapture(url, parseRequestedTime(exchange));
+    }
+
+    Capture findCapture(String url, Instant time) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return captureIndex.findClosest(url, time);
+        } finally {
+            metrics.indexLookup.recordSince(start);
+        }
+    }
+
+    Resource openResource(Capture capture) throws IOException {
+        return revisits.open(capture);
+    }
+
+    void sendNotFound(HttpServerExchange exchange) {
+        metrics.notFound.increment();
+        exchange.setStatusCode(404);
+        exchange.getResponseSender().send("Not in archive");
+    }
+
+    /**
+     * Tell the client its cached copy of a capture is still current.
+     */
+    void sendNotModified(HttpServerExchange exchange, Capture capture) {
+        setNotModified(exchange, capture);
+        exchange.endExchange();
+    }
+
+    private void setNotModified(HttpServerExchange exchange, Capture capture) {
+        metrics.notModified.increment();
+        exchange.setStatusCode(304);
+        HeaderMap headers = exchange.getResponseHeaders();
+        headers.put(ETAG, capture.etag());
+        headers.put(MEMENTO_DATETIME, RFC_1123_DATE_TIME.format(capture.time().atOffset(UTC)));
+        headers.add(VARY, "accept-datetime");
+        headers.put(SERVER, "outbackproxy");
+    }
+
+    /**
+     * Evaluates If-None-Match, or failing that If-Modified-Since, for a GET or HEAD request. The capture's entity tag
+     * and time come from the index so this needs archivedHeaders only when the capture is newer than the client's
+     * date, to compare it with the archived Last-Modified instead.
+     *
+     * @param archivedHeaders the archived response headers or null if the record hasn't been read yet
+     */
+    static boolean notModified(HttpServerExchange exchange, Capture capture, HeaderMap archivedHeaders) {
+        HttpString method = exchange.getRequestMethod();
+        if (!method.equals(Methods.GET) && !method.equals(Methods.HEAD)) {
+            return false;
+        }
+        HeaderValues ifNoneMatch = exchange.getRequestHeaders().get(IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return ifNoneMatchMatches(ifNoneMatch, capture.etag());
+        }
+        Instant since = parseDate(exchange.getRequestHeaders().getFirst(IF_MODIFIED_SINCE));
+        if (since == null) {
+            return false;
+        }
+        if (!capture.time().isAfter(since)) {
+            return true;
         }
-        try (Resource resource = resourceStore.open(capture.filename(), capture.offset(), capture.compressedLength())) {
-            sendResponse(exchange, resource);
+        if (archivedHeaders == null) {
+            return false;
         }
+        Instant lastModified = parseDate(archivedHeaders.getFirst(LAST_MODIFIED));
+        return lastModified != null && !lastModified.isAfter(since);
     }
 
     /**
-     * Handle exceptions by sending the stack trace in an error response.
+     * Evaluates If-None-Match values using the weak comparison, as the RFC requires for it.
      */
-    private void handleException(HttpServerExchange exchange) throws IOException {
-        Exception ex = (Exception) exchange.getAttachment(ExceptionHandler.THROWABLE);
+    static boolean ifNoneMatchMatches(Iterable<String> values, String etag) {
+        for (String value : values) {
+            for (String tag : value.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Instant parseDate(String date) {
+        if (date == null) {
+            return null;
+        }
+        try {
+            return RFC_1123_DATE_TIME.parse(date, Instant::from);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Handle exceptions by sending the stack trace in an error response, 503 if an upstream is overloaded or 404 if a
+     * revisit's original is missing.
+     */
+    private void handleException(HttpServerExchange exchange) {
+        sendError(exchange, exchange.getAttachment(ExceptionHandler.THROWABLE));
+    }
+
+    void sendError(HttpServerExchange exchange, Throwable t) {
+        if (t instanceof ConcurrencyLimiter.OverloadedException) {
+            exchange.setStatusCode(503);
+            exchange.getResponseHeaders().put(RETRY_AFTER,
+                    ((ConcurrencyLimiter.OverloadedException) t).retryAfterSeconds());
+            exchange.getResponseHeaders().put(CONTENT_TYPE, "text/plain");
+            exchange.getResponseSender().send(t.getMessage());
+            return;
+        }
+        if (t instanceof RevisitResolver.OriginalNotFoundException) {
+            sendNotFound(exchange);
+            return;
+        }
+        metrics.serverErrors.increment();
         exchange.setStatusCode(500);
         StringWriter sw = new StringWriter();
-        ex.printStackTrace(new PrintWriter(sw));
-        exchange.getRequestHeaders().put(CONTENT_TYPE, "text/plain");
+        t.printStackTrace(new PrintWriter(sw));
+        exchange.getResponseHeaders().put(CONTENT_TYPE, "text/plain");
         exchange.getResponseSender().send(sw.toString());
     }
 
     /**
      * Parse a Memento style Accept-Datetime request header.
      */
-    private Instant parseRequestedTime(HttpServerExchange exchange) {
+    static Instant parseRequestedTime(HttpServerExchange exchange) {
         String time = exchange.getRequestHeaders().getFirst(ACCEPT_DATETIME);
         if (time == null) {
             return Instant.ofEpochSecond(1);
@@ -118,8 +489,69 @@ public class OutbackProxy {
     /**
      * Send a resource to the client.
      */
-    private void sendResponse(HttpServerExchange exchange, Resource resource) throws IOException {
+    private void sendResponse(HttpServerExchange exchange, Capture capture, Resource resource) throws IOException {
+        if (!prepareResponse(exchange, capture, resource)) {
+            exchange.endExchange();
+            return;
+        }
+        long start = System.nanoTime();
+        if (resource.payloadBuffer() != null) {
+            metrics.bytesServed.add(resource.payloadBuffer().remaining());
+            exchange.getResponseSender().send(resource.payloadBuffer());
+        } else if (canTransferFile(exchange, resource)) {
+            transferFile(exchange, resource);
+            metrics.bytesServed.add(resource.payloadLength());
+        } else {
+            OutputStream output = exchange.getOutputStream();
+            metrics.bytesServed.add(copyStream(resource.payload(), output));
+            output.close();
+            exchange.endExchange();
+        }
+        metrics.payloadStream.recordSince(start);
+    }
+
+    /**
+     * Set the response headers for a resource and select the part of the payload to send.
+     *
+     * @return false if there's no payload to send as the request is HEAD, the client's copy is current or the
+     *         requested range can't be satisfied
+     */
+    boolean prepareResponse(HttpServerExchange exchange, Capture capture, Resource resource) throws IOException {
+        if (notModified(exchange, capture, resource.headers())) {
+            setNotModified(exchange, capture);
+            return false;
+        }
+        String etag = capture.etag();
+        ByteRange range = requestedRange(exchange, etag, resource);
         HeaderMap headers = exchange.getResponseHeaders();
+        if (range == ByteRange.UNSATISFIABLE) {
+            exchange.setStatusCode(416);
+            headers.put(CONTENT_RANGE, "bytes */" + resource.payloadLength());
+            headers.put(CONTENT_LENGTH, 0);
+            return false;
+        }
+        putArchivedHeaders(headers, capture, resource);
+        headers.add(VARY, "accept-datetime");
+        headers.put(SERVER, "outbackproxy");
+        if (resource.payloadLength() >= 0) {
+            headers.put(ACCEPT_RANGES, "bytes");
+        }
+        if (range != null) {
+            exchange.setStatusCode(206);
+            headers.put(CONTENT_RANGE, range.contentRange(resource.payloadLength()));
+            resource.selectRange(range.start(), range.length());
+        }
+        if (resource.payloadLength() >= 0) {
+            headers.put(CONTENT_LENGTH, resource.payloadLength());
+        }
+        return !exchange.getRequestMethod().equals(Methods.HEAD);
+    }
+
+    /**
+     * Copies the archived response headers, renaming those that belong to the original connection or message
+     * framing, and adds the capture time and entity tag.
+     */
+    static void putArchivedHeaders(HeaderMap headers, Capture capture, Resource resource) {
         for (HeaderValues values : resource.headers()) {
             HttpString name = values.getHeaderName();
             if (HEADERS_TO_RENAME.contains(name)) {
@@ -128,19 +560,87 @@ public class OutbackProxy {
             headers.putAll(name, values);
         }
         headers.put(MEMENTO_DATETIME, RFC_1123_DATE_TIME.format(resource.instant().atOffset(UTC)));
-        headers.add(VARY, "accept-datetime");
-        headers.put(SERVER, "outbackproxy");
-        OutputStream output = exchange.getOutputStream();
-        copyStream(resource.payload(), output);
-        output.close();
-        exchange.endExchange();
+        headers.put(ETAG, capture.etag());
+    }
+
+    /**
+     * Returns the range the client asked for, null to send the whole payload or {@link ByteRange#UNSATISFIABLE}.
+     */
+    private static ByteRange requestedRange(HttpServerExchange exchange, String etag, Resource resource) {
+        if (!exchange.getRequestMethod().equals(Methods.GET)) {
+            return null;
+        }
+        String range = exchange.getRequestHeaders().getFirst(RANGE);
+        if (range == null || !ifRangeMatches(exchange.getRequestHeaders().getFirst(IF_RANGE), etag,
+                resource.headers())) {
+            return null;
+        }
+        return ByteRange.parse(range, resource.payloadLength());
+    }
 
+    /**
+     * Evaluates an If-Range precondition against the capture's entity tag and the archived Last-Modified. Entity tags
+     * use the strong comparison so weak tags never match. Dates must match Last-Modified exactly.
+     */
+    static boolean ifRangeMatches(String ifRange, String etag, HeaderMap headers) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        Instant date = parseDate(ifRange);
+        return date != null && date.equals(parseDate(headers.getFirst(LAST_MODIFIED)));
+    }
+
+    /**
+     * Returns true if the payload can be sent straight from the file with sendfile. This needs the payload to be
+     * stored uncompressed in a local file and a plain connection as TLS must pass through the SSLEngine.
+     */
+    static boolean canTransferFile(HttpServerExchange exchange, Resource resource) {
+        return resource.fileChannel() != null && exchange.getConnection().getSslSessionInfo() == null;
+    }
+
+    /**
+     * Send the payload from the local file without copying it through the heap.
+     */
+    private static void transferFile(HttpServerExchange exchange, Resource resource) throws IOException {
+        FileChannel file = resource.fileChannel();
+        long position = resource.filePosition();
+        long remaining = resource.payloadLength();
+        StreamSinkChannel channel = exchange.getResponseChannel();
+        // Undertow reads from the file's current position rather than the one given while headers are pending
+        while (!channel.flush()) {
+            VirtualThreadHandler.awaitWritable(channel);
+        }
+        while (remaining > 0) {
+            long n = channel.transferFrom(file, position, remaining);
+            if (n == 0) {
+                if (position >= file.size()) {
+                    throw new EOFException("payload truncated");
+                }
+                VirtualThreadHandler.awaitWritable(channel);
+            }
+            position += n;
+            remaining -= n;
+        }
+        channel.shutdownWrites();
+        while (!channel.flush()) {
+            VirtualThreadHandler.awaitWritable(channel);
+        }
+        exchange.endExchange();
     }
 
-    private static void copyStream(InputStream input, OutputStream output) throws IOException {
+    private static long copyStream(InputStream input, OutputStream output) throws IOException {
         byte[] buffer = new byte[8192];
+        long total = 0;
         for (int n = input.read(buffer); n >= 0; n = input.read(buffer)) {
             output.write(buffer, 0, n);
+            total += n;
         }
+        return total;
     }
 }
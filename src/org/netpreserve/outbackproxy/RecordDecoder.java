@@ -0,0 +1,253 @@
+package org.netpreserve.outbackproxy;
+
+import org.jwat.common.ByteCountingPushBackInputStream;
+import org.jwat.gzip.GzipReader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Turns the raw bytes of a possibly-compressed record into a stream ready for parsing.
+ *
+ * Reads are limited to the record's compressed length when the index supplies it. A gzipped record is decoded as a
+ * single gzip member so reading never runs on into the next record. Inflaters and input buffers are pooled to avoid
+ * allocating native zlib state for every request.
+ */
+class RecordDecoder {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final BlockingQueue<Inflater> inflaters;
+    private final BlockingQueue<byte[]> buffers;
+
+    RecordDecoder(int poolSize) {
+        inflaters = new ArrayBlockingQueue<>(poolSize);
+        buffers = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * @param compressedLength length of the record as stored or -1 if unknown
+     */
+    ByteCountingPushBackInputStream decode(InputStream raw, long compressedLength) throws IOException {
+        if (compressedLength >= 0) {
+            raw = new BoundedInputStream(raw, compressedLength);
+        }
+        ByteCountingPushBackInputStream stream = new ByteCountingPushBackInputStream(raw, 32);
+        if (GzipReader.isGzipped(stream)) {
+            return new Decompressed(new GzipMemberInputStream(stream));
+        }
+        return stream;
+    }
+
+    /**
+     * Returns true if the stream was decompressed by {@link #decode}.
+     */
+    static boolean isCompressed(InputStream stream) {
+        return stream instanceof Decompressed;
+    }
+
+    int pooledInflaters() {
+        return inflaters.size();
+    }
+
+    private Inflater acquireInflater() {
+        Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    private void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    private byte[] acquireBuffer() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    private static class Decompressed extends ByteCountingPushBackInputStream {
+        Decompressed(InputStream in) {
+            super(in, 32);
+        }
+    }
+
+    /**
+     * Decodes a single gzip member (RFC 1952) with a pooled raw-deflate Inflater. The inflater and input buffer are
+     * returned to the pool at the end of the member or on close, whichever comes first.
+     */
+    private class GzipMemberInputStream extends InputStream {
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private final InputStream in;
+        private final CRC32 crc = new CRC32();
+        private Inflater inflater;
+        private byte[] buffer;
+        private int bufferEnd;
+        private boolean eof;
+
+        GzipMemberInputStream(InputStream in) throws IOException {
+            this.in = in;
+            readHeader();
+            inflater = acquireInflater();
+            buffer = acquireBuffer();
+        }
+
+        private void readHeader() throws IOException {
+            if (readUInt16() != 0x8b1f) {
+                throw new ZipException("not in gzip format");
+            }
+            if (readUInt8() != 8) {
+                throw new ZipException("unsupported gzip compression method");
+            }
+            int flags = readUInt8();
+            skipFully(6); // mtime, xfl, os
+            if ((flags & FEXTRA) != 0) {
+                skipFully(readUInt16());
+            }
+            if ((flags & FNAME) != 0) {
+                while (readUInt8() != 0) {
+                    // skip
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (readUInt8() != 0) {
+                    // skip
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                skipFully(2);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (inflater == null) {
+                throw new IOException("stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (true) {
+                    int n = inflater.inflate(b, off, len);
+                    if (n > 0) {
+                        crc.update(b, off, n);
+                        return n;
+                    }
+                    if (inflater.finished()) {
+                        readTrailer();
+                        eof = true;
+                        release();
+                        return -1;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new ZipException("gzip member needs a preset dictionary");
+                    }
+                    if (inflater.needsInput()) {
+                        int read = in.read(buffer, 0, buffer.length);
+                        if (read < 0) {
+                            throw new EOFException("unexpected end of gzip member");
+                        }
+                        inflater.setInput(buffer, 0, read);
+                        bufferEnd = read;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+        }
+
+        /**
+         * Deflate has no random access so skipping means inflating and discarding.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] scratch = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(scratch, 0, (int) Math.min(n - skipped, scratch.length));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        /**
+         * Check the CRC and size at the end of the member. Its first bytes may still be in the input buffer.
+         */
+        private void readTrailer() throws IOException {
+            int pos = bufferEnd - inflater.getRemaining();
+            byte[] trailer = new byte[8];
+            for (int i = 0; i < trailer.length; i++) {
+                trailer[i] = (byte) (pos < bufferEnd ? buffer[pos++] & 0xff : readUInt8());
+            }
+            if (uint32(trailer, 0) != crc.getValue()) {
+                throw new ZipException("gzip CRC mismatch");
+            }
+            if (uint32(trailer, 4) != (inflater.getBytesWritten() & 0xffffffffL)) {
+                throw new ZipException("gzip size mismatch");
+            }
+        }
+
+        private long uint32(byte[] b, int off) {
+            return (b[off] & 0xffL) | (b[off + 1] & 0xffL) << 8 | (b[off + 2] & 0xffL) << 16 | (b[off + 3] & 0xffL) << 24;
+        }
+
+        private int readUInt8() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("unexpected end of gzip member");
+            }
+            return b;
+        }
+
+        private int readUInt16() throws IOException {
+            return readUInt8() | (readUInt8() << 8);
+        }
+
+        private void skipFully(int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                readUInt8();
+            }
+        }
+
+        private void release() {
+            if (inflater != null) {
+                releaseInflater(inflater);
+                inflater = null;
+            }
+            if (buffer != null) {
+                buffers.offer(buffer);
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+            in.close();
+        }
+    }
+}
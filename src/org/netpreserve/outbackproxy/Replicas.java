@@ -0,0 +1,308 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The locations a set of WARC files is replicated at, as base URLs or paths in order of preference.
+ *
+ * A read goes to the replica with the lowest recent latency. If it hasn't answered within a percentile of that
+ * replica's recent latencies the same read is sent to the next replica as well and whichever answers first is used;
+ * the other's result is closed when it arrives. A read that fails is retried on the next replica, unless the record
+ * itself is malformed as every replica has the same bytes.
+ *
+ * Each replica has a circuit breaker. After several consecutive failures it is skipped for a cooldown period and
+ * then tried again. If every replica's breaker is open they are all tried anyway. Only I/O errors, timeouts and server
+ * errors count as failures; a replica that answers without the file or with a malformed record is working fine.
+ */
+class Replicas {
+    private static final int WINDOW = 128;
+    private static final int MIN_SAMPLES = 16;
+    private static final long INITIAL_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final double SMOOTHING = 0.1;
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<Replica> replicas;
+    private final ExecutorService executor;
+    private final double hedgePercentile;
+    private final long minHedgeDelayNanos;
+    private final int breakerFailures;
+    private final long breakerCooldownNanos;
+    private final LongAdder hedges = new LongAdder();
+
+    interface Read<T extends Closeable> {
+        T read(String base) throws IOException;
+    }
+
+    /**
+     * @param executor         runs reads when there's more than one replica
+     * @param hedgePercentile  percentile of latency after which a read is hedged or 0 to only fail over
+     * @param breakerFailures  consecutive failures that open a replica's circuit breaker
+     */
+    Replicas(List<String> bases, ExecutorService executor, double hedgePercentile, long minHedgeDelayMillis,
+             int breakerFailures, long breakerCooldownMillis) {
+        if (bases.isEmpty()) {
+            throw new IllegalArgumentException("at least one replica is required");
+        }
+        List<Replica> list = new ArrayList<>();
+        for (String base : bases) {
+            list.add(new Replica(base));
+        }
+        this.replicas = Collections.unmodifiableList(list);
+        this.executor = executor;
+        this.hedgePercentile = hedgePercentile;
+        this.minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis);
+        this.breakerFailures = breakerFailures;
+        this.breakerCooldownNanos = TimeUnit.MILLISECONDS.toNanos(breakerCooldownMillis);
+    }
+
+    /**
+     * A single location that needs no executor.
+     */
+    static Replicas single(String base) {
+        return new Replicas(Collections.singletonList(base), null, 0, 0, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Returns an executor for hedged reads when the handler doesn't supply one.
+     */
+    static ExecutorService newExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "replica-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Splits a list of bases separated by whitespace or commas.
+     */
+    static List<String> parse(String bases) {
+        List<String> list = new ArrayList<>();
+        for (String base : bases.trim().split("[\\s,]+")) {
+            if (!base.isEmpty()) {
+                list.add(base);
+            }
+        }
+        if (list.isEmpty()) {
+            list.add("");
+        }
+        return list;
+    }
+
+    List<Replica> replicas() {
+        return replicas;
+    }
+
+    long hedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * Performs a read against the best replica, hedging or failing over to the others as needed.
+     */
+    <T extends Closeable> T read(Read<T> read) throws IOException {
+        if (replicas.size() == 1) {
+            return read.read(replicas.get(0).base);
+        }
+        List<Replica> candidates = candidates(System.nanoTime());
+        BlockingQueue<Attempt<T>> outcomes = new LinkedBlockingQueue<>();
+        AtomicBoolean taken = new AtomicBoolean();
+        int next = 0;
+        int outstanding = 0;
+        boolean hedged = false;
+        Exception failure = null;
+        try {
+            start(candidates.get(next++), read, outcomes, taken);
+            outstanding++;
+            long hedgeDelay = hedgePercentile > 0 ? candidates.get(0).hedgeDelay() : -1;
+            while (outstanding > 0) {
+                Attempt<T> attempt;
+                if (!hedged && hedgeDelay >= 0 && next < candidates.size()) {
+                    attempt = outcomes.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+                    if (attempt == null) {
+                        hedged = true;
+                        hedges.increment();
+                        start(candidates.get(next++), read, outcomes, taken);
+                        outstanding++;
+                        continue;
+                    }
+                } else {
+                    attempt = outcomes.take();
+                }
+                outstanding--;
+                if (attempt.result != null) {
+                    return attempt.result;
+                }
+                if (attempt.failure instanceof ResourceStore.MalformedRecordException) {
+                    next = candidates.size();
+                }
+                if (failure == null) {
+                    failure = attempt.failure;
+                } else {
+                    failure.addSuppressed(attempt.failure);
+                }
+                if (outstanding == 0 && next < candidates.size()) {
+                    start(candidates.get(next++), read, outcomes, taken);
+                    outstanding++;
+                }
+            }
+        } catch (InterruptedException e) {
+            taken.set(true); // results still to come are closed by their attempt
+            for (Attempt<T> attempt = outcomes.poll(); attempt != null; attempt = outcomes.poll()) {
+                if (attempt.result != null) {
+                    closeQuietly(attempt.result);
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        throw (IOException) failure;
+    }
+
+    /**
+     * Replicas whose breaker is closed, fastest first, or all of them if every breaker is open.
+     */
+    private List<Replica> candidates(long now) {
+        List<Replica> available = new ArrayList<>(replicas.size());
+        for (Replica replica : replicas) {
+            if (replica.available(now)) {
+                available.add(replica);
+            }
+        }
+        if (available.isEmpty()) {
+            available.addAll(replicas);
+        }
+        available.sort(Comparator.comparingDouble(Replica::averageNanos)); // stable, so ties keep configured order
+        return available;
+    }
+
+    private <T extends Closeable> void start(Replica replica, Read<T> read, BlockingQueue<Attempt<T>> outcomes,
+                                             AtomicBoolean taken) {
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                T result = read.read(replica.base);
+                replica.succeeded(System.nanoTime() - start);
+                if (taken.compareAndSet(false, true)) {
+                    outcomes.add(new Attempt<>(result, null));
+                } else {
+                    closeQuietly(result);
+                }
+            } catch (ConcurrencyLimiter.OverloadedException | FileNotFoundException | NoSuchFileException
+                     | ResourceStore.MalformedRecordException e) {
+                outcomes.add(new Attempt<>(null, e)); // load shedding or a missing or bad record: the replica is fine
+            } catch (IOException | RuntimeException e) {
+                replica.failed(System.nanoTime());
+                outcomes.add(new Attempt<>(null, e));
+            }
+        });
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // the result was unwanted anyway
+        }
+    }
+
+    private static class Attempt<T> {
+        final T result;
+        final Exception failure;
+
+        Attempt(T result, Exception failure) {
+            this.result = result;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * One location with its recent latencies and circuit breaker.
+     */
+    class Replica {
+        private final String base;
+        private final long[] samples = new long[WINDOW];
+        private int sampleCount;
+        private int nextSample;
+        private long hedgeDelay = INITIAL_HEDGE_DELAY_NANOS;
+        private double averageNanos;
+        private int consecutiveFailures;
+        private long openUntil;
+        private final LongAdder failures = new LongAdder();
+
+        Replica(String base) {
+            this.base = base;
+        }
+
+        String base() {
+            return base;
+        }
+
+        synchronized double averageNanos() {
+            return averageNanos;
+        }
+
+        synchronized long hedgeDelay() {
+            return hedgeDelay;
+        }
+
+        synchronized boolean available(long now) {
+            return consecutiveFailures < breakerFailures || now - openUntil >= 0;
+        }
+
+        synchronized void succeeded(long nanos) {
+            consecutiveFailures = 0;
+            averageNanos = averageNanos == 0 ? nanos : averageNanos + SMOOTHING * (nanos - averageNanos);
+            samples[nextSample] = nanos;
+            nextSample = (nextSample + 1) % WINDOW;
+            sampleCount = Math.min(sampleCount + 1, WINDOW);
+            if (sampleCount >= MIN_SAMPLES && nextSample % MIN_SAMPLES == 0) {
+                long[] sorted = Arrays.copyOf(samples, sampleCount);
+                Arrays.sort(sorted);
+                int index = (int) Math.ceil(hedgePercentile / 100 * sorted.length) - 1;
+                hedgeDelay = Math.max(minHedgeDelayNanos, sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+            }
+        }
+
+        synchronized void failed(long now) {
+            failures.increment();
+            averageNanos = Math.max(2 * averageNanos, FAILURE_PENALTY_NANOS); // rank it behind replicas that work
+            if (++consecutiveFailures >= breakerFailures) {
+                openUntil = now + breakerCooldownNanos;
+            }
+        }
+
+        boolean breakerOpen() {
+            return !available(System.nanoTime());
+        }
+
+        long failures() {
+            return failures.sum();
+        }
+
+        long averageMillis() {
+            return TimeUnit.NANOSECONDS.toMillis((long) averageNanos());
+        }
+    }
+}
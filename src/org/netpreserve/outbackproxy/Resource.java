@@ -15,6 +15,8 @@ import org.jwat.warc.WarcRecord;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.time.Instant;
 import java.util.Date;
 
@@ -23,15 +25,59 @@ import static org.jwat.common.UriProfile.RFC3986_ABS_16BIT_LAX;
 
 class Resource implements Closeable {
     private final Closeable container;
-    private final InputStream payloadStream;
+    private InputStream payloadStream;
     private final Date date;
     private final HeaderMap headers;
+    private final long payloadOffset;
+    private long payloadLength;
+    private ByteBuffer payloadBuffer;
+    private FileChannel fileChannel;
+    private long filePosition = -1;
+    private Revisit revisit;
 
-    Resource(Closeable container, ByteCountingPushBackInputStream payloadStream, Date date, HeaderMap headers) {
+    /**
+     * Where the payload a revisit record omits can be found.
+     */
+    static class Revisit {
+        private final String targetUri;
+        private final Instant date;
+        private final long digest;
+
+        /**
+         * @param date   capture time of the original or null if the record doesn't say
+         * @param digest {@link Capture#digestFingerprint} of the payload digest or 0 if unknown
+         */
+        Revisit(String targetUri, Instant date, long digest) {
+            this.targetUri = targetUri;
+            this.date = date;
+            this.digest = digest;
+        }
+
+        String targetUri() {
+            return targetUri;
+        }
+
+        Instant date() {
+            return date;
+        }
+
+        long digest() {
+            return digest;
+        }
+    }
+
+    /**
+     * @param payloadOffset offset of the payload from the start of the record or -1 if unknown
+     * @param payloadLength length of the payload or -1 if unknown
+     */
+    Resource(Closeable container, InputStream payloadStream, Date date, HeaderMap headers,
+             long payloadOffset, long payloadLength) {
         this.container = container;
         this.payloadStream = payloadStream;
         this.date = date;
         this.headers = headers;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
     }
 
     static Resource fromStream(ByteCountingPushBackInputStream stream) throws IOException {
@@ -40,30 +86,74 @@ class Resource implements Closeable {
             reader.setUriProfile(RFC3986_ABS_16BIT_LAX);
             ArcRecordBase record = reader.getNextRecord();
             HttpHeader http = record.getHttpHeader();
-            return new Resource(stream, http.getPayloadInputStream(), record.getArchiveDate(), convertHeader(http));
+            return new Resource(stream, http.getPayloadInputStream(), record.getArchiveDate(), convertHeader(http),
+                    -1, http.getPayloadLength());
         } else if (WarcReaderFactory.isWarcRecord(stream)) {
             WarcReader reader = WarcReaderFactory.getReaderUncompressed(stream);
             reader.setUriProfile(RFC3986_ABS_16BIT_LAX);
             WarcRecord record = reader.getNextRecord();
             HttpHeader http = record.getHttpHeader();
-            if (http != null) { // response record
-                return new Resource(stream, http.getPayloadInputStream(), record.header.warcDate, convertHeader(http));
+            long headerLength = record.header.headerBytes.length;
+            if ("revisit".equals(record.header.warcTypeStr)) {
+                Resource resource = new Resource(stream, http == null ? record.getPayload().getInputStream() :
+                        http.getPayloadInputStream(), record.header.warcDate,
+                        http == null ? new HeaderMap() : convertHeader(http), -1, 0);
+                String targetUri = record.header.warcRefersToTargetUriStr != null ?
+                        record.header.warcRefersToTargetUriStr : record.header.warcTargetUriStr;
+                Date refersToDate = record.header.warcRefersToDate;
+                resource.revisit = new Revisit(targetUri, refersToDate == null ? null : refersToDate.toInstant(),
+                        Capture.digestFingerprint(record.header.warcPayloadDigestStr));
+                return resource;
+            } else if (http != null) { // response record
+                return new Resource(stream, http.getPayloadInputStream(), record.header.warcDate, convertHeader(http),
+                        headerLength + http.getHeader().length, http.getPayloadLength());
             } else { // resource record
                 HeaderMap headerMap = new HeaderMap();
                 if (record.header.contentTypeStr != null) {
                     headerMap.put(CONTENT_TYPE, record.header.contentTypeStr);
                 }
-                return new Resource(stream, record.getPayload().getInputStream(), record.header.warcDate, headerMap);
+                return new Resource(stream, record.getPayload().getInputStream(), record.header.warcDate, headerMap,
+                        headerLength, record.getPayload().getTotalLength());
             }
         } else {
             throw new IllegalArgumentException("Not a WARC or ARC record");
         }
     }
 
+    /**
+     * Creates a resource with a payload already in memory.
+     */
+    static Resource fromBuffer(Date date, HeaderMap headers, ByteBuffer payload, Revisit revisit) {
+        Resource resource = new Resource(() -> { }, new ByteBufferInputStream(payload), date, headers, -1,
+                payload.remaining());
+        resource.payloadBuffer = payload;
+        resource.revisit = revisit;
+        return resource;
+    }
+
+    /**
+     * Combines a revisit record with the original record holding its payload. The revisit's HTTP headers and date
+     * are kept, or the original's headers if the revisit has none. Closing the result closes both.
+     */
+    static Resource resolveRevisit(Resource revisit, Resource original) {
+        Resource resource = new Resource(() -> {
+            try {
+                revisit.close();
+            } finally {
+                original.close();
+            }
+        }, original.payloadStream, revisit.date, revisit.headers.size() > 0 ? revisit.headers : original.headers,
+                original.payloadOffset, original.payloadLength);
+        resource.payloadBuffer = original.payloadBuffer;
+        resource.fileChannel = original.fileChannel;
+        resource.filePosition = original.filePosition;
+        return resource;
+    }
+
     /**
      * Converts a jwat HttpHeader into an Undertow HeaderMap.
      */
-    private static HeaderMap convertHeader(HttpHeader header) {
+    static HeaderMap convertHeader(HttpHeader header) {
         HeaderMap map = new HeaderMap();
         for (HeaderLine line: header.getHeaderList()) {
             map.put(HttpString.tryFromString(line.name), line.value);
@@ -75,10 +165,74 @@ class Resource implements Closeable {
         return payloadStream;
     }
 
+    /**
+     * Length of the payload in bytes or -1 if unknown.
+     */
+    long payloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Restrict the payload to length bytes beginning at start. A payload in a local uncompressed file is read from
+     * the new position directly, otherwise the bytes before the range are skipped on the first read.
+     */
+    void selectRange(long start, long length) throws IOException {
+        if (payloadBuffer != null) {
+            payloadBuffer.position(payloadBuffer.position() + (int) start);
+            payloadBuffer.limit(payloadBuffer.position() + (int) length);
+            payloadStream = new ByteBufferInputStream(payloadBuffer);
+        } else if (fileChannel != null) {
+            filePosition += start;
+            payloadStream = new BoundedInputStream(new FileChannelInputStream(fileChannel, filePosition, null),
+                    length);
+        } else {
+            payloadStream = new BoundedInputStream(payloadStream, start, length);
+        }
+        payloadLength = length;
+    }
+
+    /**
+     * The payload if it is held in memory, otherwise null.
+     */
+    ByteBuffer payloadBuffer() {
+        return payloadBuffer;
+    }
+
+    /**
+     * Record that this resource was read uncompressed from a local file so the payload can be sent from it directly.
+     */
+    void attachFile(FileChannel channel, long recordOffset) {
+        if (payloadOffset >= 0 && payloadLength >= 0) {
+            this.fileChannel = channel;
+            this.filePosition = recordOffset + payloadOffset;
+        }
+    }
+
+    /**
+     * The local file containing the uncompressed payload or null if the payload is not available that way.
+     */
+    FileChannel fileChannel() {
+        return fileChannel;
+    }
+
+    /**
+     * Position of the first byte of the payload within {@link #fileChannel()}.
+     */
+    long filePosition() {
+        return filePosition;
+    }
+
     HeaderMap headers() {
         return headers;
     }
 
+    /**
+     * Where to find the payload if this is a revisit record, otherwise null.
+     */
+    Revisit revisit() {
+        return revisit;
+    }
+
     public void close() throws IOException {
         container.close();
     }
@@ -86,4 +240,43 @@ class Resource implements Closeable {
     Instant instant() {
         return date.toInstant();
     }
+
+    Date date() {
+        return date;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.min(Math.max(n, 0), buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
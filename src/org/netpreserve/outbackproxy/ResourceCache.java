@@ -0,0 +1,168 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.util.HeaderMap;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the parsed headers and payload of popular records in memory so they can be served without fetching,
+ * decompressing or parsing the record again.
+ *
+ * Payloads are held in direct buffers outside the Java heap and the total payload size is bounded. Eviction is least
+ * recently used but admission is frequency based (TinyLFU): a new record only displaces others if it has been
+ * requested more often recently than the records it would evict. This keeps one-off requests for large records from
+ * flushing out the site-wide stylesheets and logos.
+ */
+class ResourceCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long bytes;
+    private long evictions;
+    private long rejections;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    static class Entry {
+        private final Date date;
+        private final HeaderMap headers;
+        private final ByteBuffer payload;
+        private final Resource.Revisit revisit;
+
+        Entry(Date date, HeaderMap headers, ByteBuffer payload) {
+            this(date, headers, payload, null);
+        }
+
+        Entry(Date date, HeaderMap headers, ByteBuffer payload, Resource.Revisit revisit) {
+            this.date = date;
+            this.headers = headers;
+            this.payload = payload;
+            this.revisit = revisit;
+        }
+
+        Resource toResource() {
+            return Resource.fromBuffer(date, headers, payload.duplicate(), revisit);
+        }
+
+        long size() {
+            return payload.capacity();
+        }
+    }
+
+    /**
+     * @param maxBytes      total payload bytes to hold
+     * @param maxEntryBytes payloads larger than this are never cached
+     */
+    ResourceCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.sketch = new FrequencySketch(maxBytes / 4096);
+    }
+
+    static String key(String filename, long offset) {
+        return filename + " " + offset;
+    }
+
+    /**
+     * Returns the cached entry for key or null. Either way the request counts towards the key's popularity.
+     */
+    synchronized Entry get(String key) {
+        sketch.increment(key);
+        Entry entry = map.get(key);
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns true if a payload of the given size would currently be admitted. Used to avoid reading a payload into
+     * memory only to have it rejected.
+     */
+    synchronized boolean admits(String key, long size) {
+        return admits(key, size, 0);
+    }
+
+    /**
+     * @param replacedSize size of the key's current entry, which would make way for the new one
+     */
+    private boolean admits(String key, long size, long replacedSize) {
+        if (size > maxEntryBytes || size > maxBytes) {
+            return false;
+        }
+        long needed = bytes - replacedSize + size - maxBytes;
+        if (needed <= 0) {
+            return true;
+        }
+        int frequency = sketch.frequency(key);
+        for (Map.Entry<String, Entry> victim : map.entrySet()) {
+            if (victim.getKey().equals(key)) {
+                continue;
+            }
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                return false;
+            }
+            needed -= victim.getValue().size();
+            if (needed <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void put(String key, Entry entry) {
+        Entry previous = map.get(key);
+        if (!admits(key, entry.size(), previous == null ? 0 : previous.size())) {
+            rejections++;
+            return; // keep the previous entry, if any
+        }
+        if (previous != null) {
+            map.remove(key);
+            bytes -= previous.size();
+        }
+        Iterator<Entry> it = map.values().iterator();
+        while (bytes + entry.size() > maxBytes && it.hasNext()) {
+            bytes -= it.next().size();
+            it.remove();
+            evictions++;
+        }
+        map.put(key, entry);
+        bytes += entry.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized long rejections() {
+        return rejections;
+    }
+}
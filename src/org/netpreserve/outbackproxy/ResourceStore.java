@@ -1,86 +1,290 @@
                 package org.netpreserve.outbackproxy;
 
 import org.jwat.common.ByteCountingPushBackInputStream;
-import org.jwat.gzip.GzipReader;
 
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.zip.GZIPInputStream;
-
-import static java.nio.file.StandardOpenOption.READ;
+import java.util.Locale;
+import java.util.zip.ZipException;
 
 class ResourceStore {
-    private String baseUrl;
+    private static final int INFLATER_POOL_SIZE = 64;
+    /**
+     * Larger payloads are never buffered for sharing. Concurrent requests for them fetch the record separately.
+     */
+    private static final long MAX_SHARED_PAYLOAD = 4 * 1024 * 1024;
+
+    private final Replicas replicas;
+    private final HttpPool httpPool;
+    private final RecordDecoder decoder = new RecordDecoder(INFLATER_POOL_SIZE);
+    private final ResourceCache cache;
+    private final FileChannelCache files;
+    private final BlockCache blocks;
+    private final UpstreamLimits limits;
+    private final SingleFlight<String, ResourceCache.Entry> fetches = new SingleFlight<>();
+    private final Metrics metrics;
+
+    /**
+     * Thrown when a record was read but couldn't be decoded or parsed. Replicas hold the same bytes so there's no
+     * point trying another.
+     */
+    static class MalformedRecordException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedRecordException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * @param replicas base URLs or paths the WARC filenames from the index are resolved against
+     * @param cache cache for popular records or null to disable caching
+     * @param files open handles on local WARC files
+     * @param blocks on-disk cache of remote WARC files or null to always fetch records from the WARC server
+     * @param limits limits concurrent record fetches from each WARC server and local disk
+     */
+    ResourceStore(Replicas replicas, HttpPool httpPool, ResourceCache cache, FileChannelCache files, BlockCache blocks,
+                  UpstreamLimits limits, Metrics metrics) {
+        this.replicas = replicas;
+        this.httpPool = httpPool;
+        this.cache = cache;
+        this.files = files;
+        this.blocks = blocks;
+        this.limits = limits;
+        this.metrics = metrics;
+    }
+
+    ResourceCache cache() {
+        return cache;
+    }
+
+    FileChannelCache files() {
+        return files;
+    }
 
-    ResourceStore(String baseUrl) {
-        this.baseUrl = baseUrl;
+    BlockCache blocks() {
+        return blocks;
     }
 
+    Replicas replicas() {
+        return replicas;
+    }
+
+    /**
+     * Opens a record. Requests for the same record that arrive while it is being fetched wait and share a copy of
+     * its payload rather than fetching it again.
+     */
     Resource open(String filename, long offset, long length) throws IOException {
-        ByteCountingPushBackInputStream stream = openStream(filename, offset, length);
+        String key = ResourceCache.key(filename, offset);
+        if (cache != null) {
+            ResourceCache.Entry entry = cache.get(key);
+            if (entry != null) {
+                return entry.toResource();
+            }
+        }
+        Resource[] unshared = new Resource[1];
+        ResourceCache.Entry entry = fetches.run(key, k -> {
+            Resource resource = openRecord(filename, offset, length);
+            boolean cacheable = cache != null && resource.payloadLength() >= 0
+                    && cache.admits(key, resource.payloadLength());
+            if (!cacheable && !(fetches.hasWaiters(key) && isShareable(resource))) {
+                unshared[0] = resource;
+                return null;
+            }
+            ResourceCache.Entry loaded;
+            try (Resource record = resource) {
+                loaded = new ResourceCache.Entry(record.date(), record.headers(), readPayload(record, cacheable),
+                        record.revisit());
+            }
+            if (cacheable) {
+                cache.put(key, loaded);
+            }
+            return loaded;
+        });
+        if (unshared[0] != null) {
+            return unshared[0];
+        } else if (entry == null) { // the fetch we waited on didn't buffer its payload
+            return openRecord(filename, offset, length);
+        }
+        return entry.toResource();
+    }
+
+    private static boolean isShareable(Resource resource) {
+        return resource.payloadLength() >= 0 && resource.payloadLength() <= MAX_SHARED_PAYLOAD;
+    }
+
+    SingleFlight<String, ResourceCache.Entry> fetches() {
+        return fetches;
+    }
+
+    /**
+     * Reads the whole payload into a buffer, direct if it's going to be kept in the cache.
+     */
+    private static ByteBuffer readPayload(Resource resource, boolean direct) throws IOException {
+        int length = (int) resource.payloadLength();
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        ReadableByteChannel channel = Channels.newChannel(resource.payload());
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("payload truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private Resource openRecord(String filename, long offset, long length) throws IOException {
+        return replicas.read(base -> openRecord(base, filename, offset, length));
+    }
+
+    /**
+     * Opens a record from one replica within the concurrency limit of its WARC source: the WARC server or local disk.
+     * A missing file or malformed record still counts as an answer from the source; only I/O errors, timeouts and
+     * server errors count against it.
+     */
+    private Resource openRecord(String base, String filename, long offset, long length) throws IOException {
+        String urlOrPath = base + filename;
+        URL url = urlOrPath.startsWith("/") ? null : new URL(urlOrPath);
+        Path path = null;
+        if (url == null) {
+            path = Paths.get(urlOrPath);
+        } else if (url.getProtocol().equalsIgnoreCase("file")) {
+            path = Paths.get(url.getPath());
+        } else if (!url.getProtocol().equalsIgnoreCase("http") && !url.getProtocol().equalsIgnoreCase("https")) {
+            throw new IllegalArgumentException("unsupported url scheme: " + url.getAuthority());
+        }
+        String upstream = path != null ? "local" :
+                url.getProtocol().toLowerCase(Locale.ROOT) + "://" + url.getAuthority();
+        try (ConcurrencyLimiter.Permit permit = limits.get(upstream).acquire()) {
+            try {
+                Resource resource = path != null ? openLocal(path, offset, length) :
+                        parse(openRemoteStream(filename, url, offset, length), url, offset);
+                permit.succeeded();
+                return resource;
+            } catch (FileNotFoundException | NoSuchFileException | MalformedRecordException e) {
+                permit.succeeded();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Parses the WARC or ARC record headers. Errors from the parser or the inflater mean the record's bytes are bad.
+     *
+     * @param source file or URL the record was read from, for error messages
+     */
+    private Resource parse(ByteCountingPushBackInputStream stream, Object source, long offset) throws IOException {
+        long start = System.nanoTime();
         try {
             return Resource.fromStream(stream);
-        } catch (IOException | RuntimeException e) {
+        } catch (ZipException | RuntimeException e) {
+            stream.close();
+            throw malformed(source, offset, e);
+        } catch (IOException e) {
             stream.close();
             throw e;
+        } finally {
+            metrics.recordParse.recordSince(start);
         }
     }
 
     /**
-     * Send a HTTP range request for the possibly-compressed record.
+     * Starts decompressing the record if it's compressed.
+     *
+     * @param source file or URL the record is read from, for error messages
      */
-    private ByteCountingPushBackInputStream openStream(String filename, long offset, long length) throws IOException {
-        String urlOrPath = baseUrl + filename;
-        if (urlOrPath.startsWith("/")) {
-            return openLocalStream(Paths.get(filename), offset);
-        }
-        URL url = new URL(urlOrPath);
-        if (url.getProtocol().equalsIgnoreCase("http") || url.getProtocol().equalsIgnoreCase("https")) {
-            return openRemoteStream(url, offset, length);
-        } else if (url.getProtocol().equalsIgnoreCase("file")) {
-            return openLocalStream(Paths.get(url.getPath()), offset);
-        } else {
-            throw new IllegalArgumentException("unsupported url scheme: " + url.getAuthority());
+    private ByteCountingPushBackInputStream decode(InputStream stream, long length, Object source, long offset)
+            throws IOException {
+        try {
+            return decoder.decode(stream, length);
+        } catch (ZipException | RuntimeException e) {
+            throw malformed(source, offset, e);
         }
     }
 
-    private ByteCountingPushBackInputStream openLocalStream(Path path, long offset) throws IOException {
-        FileChannel channel = FileChannel.open(path, READ);
+    private static MalformedRecordException malformed(Object source, long offset, Exception e) {
+        return new MalformedRecordException("malformed record at " + source + " offset " + offset + ": " +
+                e.getMessage(), e);
+    }
+
+    /**
+     * Only uncompressed records get the file attached for sendfile as a compressed payload must pass through the
+     * inflater. The file handle is released when the resource is closed.
+     */
+    private Resource openLocal(Path path, long offset, long length) throws IOException {
+        long start = System.nanoTime();
+        FileChannelCache.Handle handle = files.acquire(path);
         try {
-            if (offset != 0) {
-                channel.position(offset);
+            ByteCountingPushBackInputStream stream = decode(
+                    new FileChannelInputStream(handle.channel(), offset, handle), length, path, offset);
+            metrics.recordFetch.recordSince(start);
+            Resource resource = parse(stream, path, offset);
+            if (!RecordDecoder.isCompressed(stream)) {
+                resource.attachFile(handle.channel(), offset);
             }
-            return new ByteCountingPushBackInputStream(Channels.newInputStream(channel), 32);
+            return resource;
         } catch (IOException | RuntimeException e) {
-            channel.close();
+            handle.close();
             throw e;
         }
     }
 
     /**
-     * Send a HTTP range request for the possibly-compressed record.
+     * Send a HTTP range request for the possibly-compressed record, or read it through the block cache.
      */
-    private ByteCountingPushBackInputStream openRemoteStream(URL url, long offset, long length) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    private ByteCountingPushBackInputStream openRemoteStream(String filename, URL url, long offset, long length)
+            throws IOException {
+        long start = System.nanoTime();
+        if (blocks != null) {
+            InputStream stream = blocks.open(filename, url, offset, length);
+            try {
+                return decode(stream, length, url, offset);
+            } catch (IOException | RuntimeException e) {
+                stream.close();
+                throw e;
+            } finally {
+                metrics.recordFetch.recordSince(start);
+            }
+        }
+        String range;
         if (length >= 0) {
-            conn.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length + 1));
+            range = "bytes=" + offset + "-" + (offset + length - 1);
         } else { // compressed length is unknown: get all
-            conn.setRequestProperty("Range", "bytes=" + offset + "-");
+            range = "bytes=" + offset + "-";
         }
-        ByteCountingPushBackInputStream stream = new ByteCountingPushBackInputStream(conn.getInputStream(), 32);
+        HttpPool.Response response = httpPool.get(url, "Range", range);
+        InputStream body = response.body();
         try {
-            if (GzipReader.isGzipped(stream)) {
-                return new ByteCountingPushBackInputStream(new GZIPInputStream(stream, 8192), 32);
+            if (response.status() == 200) { // server ignored the range
+                skipFully(body, offset);
+            } else if (response.status() != 206) {
+                throw response.error("WARC server", url);
             }
-            return stream;
+            return decode(body, length, url, offset);
         } catch (IOException | RuntimeException e) {
-            stream.close();
+            body.close();
             throw e;
+        } finally {
+            metrics.recordFetch.recordSince(start);
+        }
+    }
+
+    private static void skipFully(InputStream stream, long n) throws IOException {
+        while (n > 0) {
+            long skipped = stream.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException("unexpected end of stream skipping to record");
+            }
+            n -= skipped;
         }
     }
 }
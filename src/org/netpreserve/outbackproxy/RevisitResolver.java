@@ -0,0 +1,113 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays revisit records with the payload of the original capture they refer to.
+ *
+ * The original is looked up by the revisit's WARC-Refers-To-Target-URI and WARC-Refers-To-Date, falling back to its
+ * own target URI and date, as the closest capture with the same payload digest that isn't itself a revisit. A
+ * deduplicated crawl may refer to one original thousands of times so the original's location is cached by digest
+ * fingerprint, roughly 150 bytes an entry, and later revisits of the same payload need no index lookup.
+ */
+class RevisitResolver {
+    private final CaptureIndex index;
+    private final ResourceStore store;
+    private final LruCache<Long, Capture> originals;
+    private final LongAdder resolved = new LongAdder();
+    private final LongAdder unresolved = new LongAdder();
+
+    /**
+     * Thrown when the original of a revisit isn't in the archive.
+     */
+    static class OriginalNotFoundException extends FileNotFoundException {
+        private static final long serialVersionUID = 1L;
+
+        OriginalNotFoundException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param cacheSize number of digest to original location mappings to keep
+     */
+    RevisitResolver(CaptureIndex index, ResourceStore store, int cacheSize) {
+        this.index = index;
+        this.store = store;
+        this.originals = new LruCache<>(cacheSize);
+    }
+
+    /**
+     * Opens the capture's record, merging it with its original if it's a revisit.
+     *
+     * @throws OriginalNotFoundException if the record is a revisit and its original can't be found
+     */
+    Resource open(Capture capture) throws IOException {
+        Resource resource = store.open(capture.filename(), capture.offset(), capture.compressedLength());
+        Resource.Revisit revisit = resource.revisit();
+        if (revisit == null) {
+            return resource;
+        }
+        try {
+            return Resource.resolveRevisit(resource, openOriginal(capture, resource, revisit));
+        } catch (IOException | RuntimeException e) {
+            resource.close();
+            throw e;
+        }
+    }
+
+    private Resource openOriginal(Capture capture, Resource resource, Resource.Revisit revisit) throws IOException {
+        long digest = capture.digest() != 0 ? capture.digest() : revisit.digest();
+        Instant time = revisit.date() != null ? revisit.date() : resource.instant();
+        Capture original;
+        try {
+            original = digest == 0 ? findOriginal(revisit.targetUri(), time, 0) :
+                    originals.get(digest, d -> findOriginal(revisit.targetUri(), time, d));
+        } catch (OriginalNotFoundException e) {
+            unresolved.increment();
+            throw e;
+        }
+        Resource payload;
+        try {
+            payload = store.open(original.filename(), original.offset(), original.compressedLength());
+        } catch (IOException | RuntimeException e) {
+            originals.invalidate(digest);
+            throw e;
+        }
+        if (payload.revisit() != null) { // the index was wrong about it
+            payload.close();
+            originals.invalidate(digest);
+            unresolved.increment();
+            throw new OriginalNotFoundException("original of revisit " + capture.filename() + ":" +
+                    capture.offset() + " is itself a revisit");
+        }
+        resolved.increment();
+        return payload;
+    }
+
+    private Capture findOriginal(String url, Instant time, long digest) throws IOException {
+        if (url == null) {
+            throw new OriginalNotFoundException("revisit has no target URI");
+        }
+        Capture original = index.findOriginal(url, time, digest);
+        if (original == null) {
+            throw new OriginalNotFoundException("original of revisit of " + url + " at " + time + " not found");
+        }
+        return original;
+    }
+
+    LruCache<Long, Capture> originals() {
+        return originals;
+    }
+
+    long resolved() {
+        return resolved.sum();
+    }
+
+    long unresolved() {
+        return unresolved.sum();
+    }
+}
@@ -4,31 +4,49 @@ import io.undertow.connector.ByteBufferPool;
 import io.undertow.protocols.ssl.UndertowXnioSsl;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.server.protocol.http.AlpnOpenListener;
 import io.undertow.server.protocol.http.HttpOpenListener;
+import io.undertow.server.protocol.http2.Http2OpenListener;
 import io.undertow.util.Methods;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.xnio.OptionMap;
 import org.xnio.StreamConnection;
+import org.xnio.Xnio;
 import org.xnio.ssl.SslConnection;
 
 import javax.net.ssl.*;
-import java.io.IOException;
-import java.security.GeneralSecurityException;
+import java.util.Locale;
 
 /**
- * Handles the HTTP CONNECT method by establishing an SSL session.
+ * Handles the HTTP CONNECT method by establishing an SSL session. HTTP/2 is offered via ALPN so a client can multiplex
+ * its requests for a host over one tunnel, clients that don't negotiate it get HTTP/1.1.
+ *
+ * Each host's SSL context is kept in a cache so tunnels to the same host share its session cache and ticket keys and
+ * a reconnecting client can resume its session rather than repeat the full handshake.
  */
 class SSLConnectHandler implements HttpHandler {
-    private final HttpHandler handler;
     private final HttpHandler next;
     private final CertificateGenerator certificateGenerator;
-    private final ByteBufferPool byteBufferPool;
+    private final AlpnOpenListener openListener;
+    private final LruCache<String, UndertowXnioSsl> sslCache;
+    private final int sslSessionTimeout;
+    private final Metrics metrics;
 
-    SSLConnectHandler(HttpHandler handler, HttpHandler next, CertificateGenerator certificateGenerator, ByteBufferPool byteBufferPool) {
-        this.handler = handler;
+    /**
+     * @param sslSessionTimeout seconds a client may resume a TLS session by session ID or ticket
+     */
+    SSLConnectHandler(HttpHandler handler, HttpHandler next, CertificateGenerator certificateGenerator, ByteBufferPool byteBufferPool, int sslCacheSize,
+                      int sslSessionTimeout, Metrics metrics) {
         this.next = next;
         this.certificateGenerator = certificateGenerator;
-        this.byteBufferPool = byteBufferPool;
+        this.openListener = new AlpnOpenListener(byteBufferPool, OptionMap.EMPTY,
+                new HttpOpenListener(byteBufferPool, OptionMap.EMPTY));
+        openListener.addProtocol(Http2OpenListener.HTTP2,
+                new Http2OpenListener(byteBufferPool, OptionMap.EMPTY, Http2OpenListener.HTTP2), 10);
+        openListener.setRootHandler(handler);
+        this.sslCache = new LruCache<>(sslCacheSize);
+        this.sslSessionTimeout = sslSessionTimeout;
+        this.metrics = metrics;
     }
 
     @Override
@@ -40,20 +58,43 @@ class SSLConnectHandler implements HttpHandler {
         }
     }
 
+    /**
+     * The cache of per-host SSL contexts, exposed for its hit and miss counters.
+     */
+    LruCache<String, UndertowXnioSsl> sslCache() {
+        return sslCache;
+    }
+
     private void connected(StreamConnection connection, HttpServerExchange exchange) {
-        UndertowXnioSsl xnioSsl = null;
+        long start = System.nanoTime();
+        Xnio xnio = connection.getWorker().getXnio();
+        UndertowXnioSsl xnioSsl;
         try {
-            xnioSsl = new UndertowXnioSsl(connection.getWorker().getXnio(), OptionMap.EMPTY, certificateGenerator.contextForHost(exchange.getHostName()));
-        } catch (GeneralSecurityException | IOException e) {
+            xnioSsl = sslCache.get(exchange.getHostName().toLowerCase(Locale.ROOT), hostname -> {
+                SSLContext context = certificateGenerator.contextForHost(hostname);
+                context.getServerSessionContext().setSessionTimeout(sslSessionTimeout);
+                return new UndertowXnioSsl(xnio, OptionMap.EMPTY, context);
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
             throw new RuntimeException(e);
         }
         SslConnection sslConnection = xnioSsl.wrapExistingConnection(connection, OptionMap.EMPTY);
+        long startMillis = System.currentTimeMillis();
+        sslConnection.getHandshakeSetter().set(c -> {
+            metrics.tlsHandshake.recordSince(start);
+            // a resumed session keeps the creation time of the full handshake that established it
+            if (c.getSslSession().getCreationTime() < startMillis) {
+                metrics.tlsResumedHandshakes.increment();
+            } else {
+                metrics.tlsFullHandshakes.increment();
+            }
+        });
         SSLEngine sslEngine = UndertowXnioSsl.getSslEngine(sslConnection);
         sslEngine.setUseClientMode(false);
         SSLParameters params = sslEngine.getSSLParameters();
         sslEngine.setSSLParameters(params);
-        HttpOpenListener httpOpenListener = new HttpOpenListener(byteBufferPool, OptionMap.EMPTY);
-        httpOpenListener.setRootHandler(handler);
-        httpOpenListener.handleEvent(sslConnection);
+        openListener.handleEvent(sslConnection);
     }
 }
@@ -0,0 +1,66 @@
+package org.netpreserve.outbackproxy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent calls for the same key so only one of them does the work. Threads that arrive while a call
+ * is in flight wait for and share its result or failure. Nothing is kept once the call completes.
+ */
+class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, Call<V>> calls = new ConcurrentHashMap<>();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    private static class Call<V> {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        final AtomicInteger waiters = new AtomicInteger();
+    }
+
+    <E extends Exception> V run(K key, LruCache.Loader<? super K, ? extends V, E> loader) throws E {
+        Call<V> call = new Call<>();
+        Call<V> existing = calls.putIfAbsent(key, call);
+        if (existing != null) {
+            existing.waiters.incrementAndGet();
+            shared.increment();
+            return LruCache.await(existing.future);
+        }
+        executed.increment();
+        V value;
+        try {
+            value = loader.load(key);
+        } catch (Throwable t) {
+            calls.remove(key, call);
+            call.future.completeExceptionally(t);
+            throw t;
+        }
+        calls.remove(key, call);
+        call.future.complete(value);
+        return value;
+    }
+
+    /**
+     * Returns true if other threads are waiting on the call in flight for key. A loader can use this to decide
+     * whether its result is worth making shareable.
+     */
+    boolean hasWaiters(K key) {
+        Call<V> call = calls.get(key);
+        return call != null && call.waiters.get() > 0;
+    }
+
+    /**
+     * Number of calls that ran the loader.
+     */
+    long executed() {
+        return executed.sum();
+    }
+
+    /**
+     * Number of calls that shared another call's result.
+     */
+    long shared() {
+        return shared.sum();
+    }
+}
@@ -0,0 +1,97 @@
+package org.netpreserve.outbackproxy;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Converts URLs to the SURT form used as the sort key of CDX files.
+ *
+ * This follows the default canonicalization of the Python surt library used by pywb and most CDX indexers:
+ * the scheme, userinfo, fragment, default port and leading "www." are removed, the host is reversed, query
+ * parameters are sorted and the whole key is lowercased. For example "http://www.example.org/a?b=1&a=2" becomes
+ * "org,example)/a?a=2&b=1".
+ */
+class Surt {
+    private Surt() {
+    }
+
+    static String fromUrl(String url) {
+        String s = url.trim();
+        int fragment = s.indexOf('#');
+        if (fragment >= 0) {
+            s = s.substring(0, fragment);
+        }
+
+        String scheme = "";
+        int schemeEnd = s.indexOf("://");
+        if (schemeEnd >= 0) {
+            scheme = s.substring(0, schemeEnd).toLowerCase(Locale.ROOT);
+            s = s.substring(schemeEnd + 3);
+        }
+
+        int pathStart = indexOfAny(s, "/?");
+        String authority = pathStart < 0 ? s : s.substring(0, pathStart);
+        String pathAndQuery = pathStart < 0 ? "/" : s.substring(pathStart);
+
+        int at = authority.lastIndexOf('@');
+        if (at >= 0) {
+            authority = authority.substring(at + 1);
+        }
+        String host = authority.toLowerCase(Locale.ROOT);
+        String port = null;
+        int colon = host.lastIndexOf(':');
+        if (colon >= 0 && host.indexOf(']') < colon) {
+            port = host.substring(colon + 1);
+            host = host.substring(0, colon);
+            if (port.isEmpty() || (port.equals("80") && scheme.equals("http"))
+                    || (port.equals("443") && scheme.equals("https"))) {
+                port = null;
+            }
+        }
+        while (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        host = host.replaceFirst("^www\\d*\\.", "");
+
+        StringBuilder sb = new StringBuilder(url.length() + 8);
+        String[] labels = host.split("\\.");
+        for (int i = labels.length - 1; i >= 0; i--) {
+            sb.append(labels[i]);
+            if (i > 0) {
+                sb.append(',');
+            }
+        }
+        if (port != null) {
+            sb.append(':').append(port);
+        }
+        sb.append(')');
+
+        int queryStart = pathAndQuery.indexOf('?');
+        String path = queryStart < 0 ? pathAndQuery : pathAndQuery.substring(0, queryStart);
+        if (path.isEmpty()) {
+            path = "/";
+        }
+        sb.append(path);
+        if (queryStart >= 0 && queryStart < pathAndQuery.length() - 1) {
+            String[] params = pathAndQuery.substring(queryStart + 1).split("&");
+            Arrays.sort(params);
+            char separator = '?';
+            for (String param : params) {
+                if (!param.isEmpty()) {
+                    sb.append(separator).append(param);
+                    separator = '&';
+                }
+            }
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static int indexOfAny(String s, String chars) {
+        for (int i = 0; i < s.length(); i++) {
+            if (chars.indexOf(s.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
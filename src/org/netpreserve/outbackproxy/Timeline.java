@@ -0,0 +1,162 @@
+package org.netpreserve.outbackproxy;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * All the captures of a single URL sorted by time.
+ *
+ * Captures are stored in parallel primitive arrays rather than as Capture objects to keep cached timelines compact.
+ * Filenames are interned per timeline as most captures of a URL come from a handful of files.
+ */
+class Timeline {
+    static final Timeline EMPTY = new Timeline(new long[0], new long[0], new long[0], new long[0], new boolean[0],
+            new int[0], new String[0]);
+
+    private final long[] times;
+    private final long[] lengths;
+    private final long[] offsets;
+    private final long[] digests;
+    private final boolean[] revisits;
+    private final int[] files;
+    private final String[] filenames;
+
+    private Timeline(long[] times, long[] lengths, long[] offsets, long[] digests, boolean[] revisits, int[] files,
+                     String[] filenames) {
+        this.times = times;
+        this.lengths = lengths;
+        this.offsets = offsets;
+        this.digests = digests;
+        this.revisits = revisits;
+        this.files = files;
+        this.filenames = filenames;
+    }
+
+    /**
+     * Returns the capture closest in time to the given instant, or null if the timeline is empty. Ties go to the
+     * earlier capture.
+     */
+    Capture closest(Instant time) {
+        if (times.length == 0) {
+            return null;
+        }
+        long target = time.getEpochSecond();
+        int i = Arrays.binarySearch(times, target);
+        if (i < 0) {
+            i = -i - 1;
+            if (i == times.length || (i > 0 && target - times[i - 1] <= times[i] - target)) {
+                i--;
+            }
+        } else {
+            while (i > 0 && times[i - 1] == target) {
+                i--;
+            }
+        }
+        return get(i);
+    }
+
+    /**
+     * Returns the capture closest in time that holds the payload with the given digest fingerprint rather than
+     * revisiting it, or null if there is none. A digest of 0 matches any payload.
+     */
+    Capture closestOriginal(Instant time, long digest) {
+        long target = time.getEpochSecond();
+        int best = -1;
+        for (int i = 0; i < times.length; i++) {
+            if (!revisits[i] && (digest == 0 || digests[i] == digest)
+                    && (best < 0 || Math.abs(times[i] - target) < Math.abs(times[best] - target))) {
+                best = i;
+            }
+        }
+        return best < 0 ? null : get(best);
+    }
+
+    Capture get(int i) {
+        return new Capture(times[i], lengths[i], offsets[i], filenames[files[i]], digests[i], revisits[i]);
+    }
+
+    int size() {
+        return times.length;
+    }
+
+    /**
+     * Rough estimate of the heap used by this timeline in bytes.
+     */
+    long weight() {
+        long weight = 64 + times.length * 37L;
+        for (String filename : filenames) {
+            weight += 48 + filename.length() * 2L;
+        }
+        return weight;
+    }
+
+    static class Builder {
+        private long[] times = new long[16];
+        private long[] lengths = new long[16];
+        private long[] offsets = new long[16];
+        private long[] digests = new long[16];
+        private boolean[] revisits = new boolean[16];
+        private int[] files = new int[16];
+        private final Map<String, Integer> fileIds = new HashMap<>();
+        private int size;
+
+        Builder add(Capture capture) {
+            return add(capture.epochSecond(), capture.compressedLength(), capture.offset(), capture.filename(),
+                    capture.digest(), capture.revisit());
+        }
+
+        Builder add(long time, long length, long offset, String filename, long digest, boolean revisit) {
+            if (size == times.length) {
+                int capacity = size * 2;
+                times = Arrays.copyOf(times, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                digests = Arrays.copyOf(digests, capacity);
+                revisits = Arrays.copyOf(revisits, capacity);
+                files = Arrays.copyOf(files, capacity);
+            }
+            times[size] = time;
+            lengths[size] = length;
+            offsets[size] = offset;
+            digests[size] = digest;
+            revisits[size] = revisit;
+            files[size] = fileIds.computeIfAbsent(filename, f -> fileIds.size());
+            size++;
+            return this;
+        }
+
+        Timeline build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+            long[] sortedTimes = new long[size];
+            long[] sortedLengths = new long[size];
+            long[] sortedOffsets = new long[size];
+            long[] sortedDigests = new long[size];
+            boolean[] sortedRevisits = new boolean[size];
+            int[] sortedFiles = new int[size];
+            for (int i = 0; i < size; i++) {
+                int j = order[i];
+                sortedTimes[i] = times[j];
+                sortedLengths[i] = lengths[j];
+                sortedOffsets[i] = offsets[j];
+                sortedDigests[i] = digests[j];
+                sortedRevisits[i] = revisits[j];
+                sortedFiles[i] = files[j];
+            }
+            String[] filenames = new String[fileIds.size()];
+            for (Map.Entry<String, Integer> entry : fileIds.entrySet()) {
+                filenames[entry.getValue()] = entry.getKey();
+            }
+            return new Timeline(sortedTimes, sortedLengths, sortedOffsets, sortedDigests, sortedRevisits, sortedFiles,
+                    filenames);
+        }
+    }
+}
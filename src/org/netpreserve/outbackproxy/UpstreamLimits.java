@@ -0,0 +1,35 @@
+package org.netpreserve.outbackproxy;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link ConcurrencyLimiter} for each upstream, created with the same settings on first use.
+ */
+class UpstreamLimits {
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long maxWaitMillis;
+    private final boolean adaptive;
+    private final Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * @see ConcurrencyLimiter#ConcurrencyLimiter(String, int, int, long, boolean)
+     */
+    UpstreamLimits(int maxLimit, int maxQueue, long maxWaitMillis, boolean adaptive) {
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.maxWaitMillis = maxWaitMillis;
+        this.adaptive = adaptive;
+    }
+
+    ConcurrencyLimiter get(String upstream) {
+        return limiters.computeIfAbsent(upstream,
+                name -> new ConcurrencyLimiter(name, maxLimit, maxQueue, maxWaitMillis, adaptive));
+    }
+
+    Collection<ConcurrencyLimiter> limiters() {
+        return limiters.values();
+    }
+}
@@ -0,0 +1,279 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.UndertowLogger;
+import io.undertow.io.BlockingReceiverImpl;
+import io.undertow.io.BlockingSenderImpl;
+import io.undertow.io.Receiver;
+import io.undertow.io.Sender;
+import io.undertow.io.UndertowInputStream;
+import io.undertow.server.BlockingHttpExchange;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import org.xnio.channels.StreamSinkChannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the blocking replay handler on a thread from an executor, typically one virtual thread per request, instead
+ * of an XNIO worker thread.
+ *
+ * The handler's upstream I/O uses java.net sockets and file channels which release a virtual thread's carrier while
+ * they wait. Undertow's own blocking streams instead wait for a slow client on a per-thread XNIO selector, which would
+ * hold the carrier and open a selector for every request, so responses are written through a stream that parks the
+ * thread until the connection's IO thread reports it writable.
+ *
+ * Virtual threads need Java 21 so the executor and Thread.isVirtual() are looked up reflectively.
+ */
+class VirtualThreadHandler implements HttpHandler {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    private final HttpHandler next;
+    private final ExecutorService executor;
+
+    VirtualThreadHandler(HttpHandler next, ExecutorService executor) {
+        this.next = next;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task.
+     *
+     * @throws UnsupportedOperationException if the JVM doesn't support virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or later", e);
+        }
+    }
+
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+                    MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) {
+        exchange.startBlocking(new ParkingBlockingExchange(exchange));
+        // dispatch a task rather than the handler: while a handler is in its call Undertow defers resumeWrites()
+        // until it returns, so the write listener awaitWritable relies on would never fire
+        exchange.dispatch(executor, () -> {
+            try {
+                next.handleRequest(exchange);
+            } catch (Throwable t) {
+                UndertowLogger.REQUEST_LOGGER.undertowRequestFailed(t, exchange);
+                if (!exchange.isResponseStarted()) {
+                    exchange.setStatusCode(500);
+                }
+            } finally {
+                exchange.endExchange();
+            }
+        });
+    }
+
+    /**
+     * Waits until the channel can accept more data. A virtual thread parks until the channel's IO thread signals
+     * write readiness; any other thread blocks as usual.
+     */
+    static void awaitWritable(StreamSinkChannel channel) throws IOException {
+        if (!isVirtual(Thread.currentThread())) {
+            channel.awaitWritable();
+            return;
+        }
+        CompletableFuture<Void> writable = new CompletableFuture<>();
+        channel.getWriteSetter().set(c -> {
+            c.suspendWrites();
+            writable.complete(null);
+        });
+        channel.resumeWrites();
+        try {
+            while (true) {
+                try {
+                    writable.get(1, TimeUnit.SECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    if (!channel.isOpen()) {
+                        throw new ClosedChannelException();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            channel.getWriteSetter().set(null);
+        }
+    }
+
+    private static class ParkingBlockingExchange implements BlockingHttpExchange {
+        private final HttpServerExchange exchange;
+        private InputStream inputStream;
+        private ParkingOutputStream outputStream;
+        private Sender sender;
+
+        ParkingBlockingExchange(HttpServerExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            if (inputStream == null) {
+                inputStream = new UndertowInputStream(exchange);
+            }
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            if (outputStream == null) {
+                outputStream = new ParkingOutputStream(exchange);
+            }
+            return outputStream;
+        }
+
+        @Override
+        public Sender getSender() {
+            if (sender == null) {
+                sender = new BlockingSenderImpl(exchange, getOutputStream());
+            }
+            return sender;
+        }
+
+        @Override
+        public Receiver getReceiver() {
+            return new BlockingReceiverImpl(exchange, getInputStream());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                getInputStream().close();
+            } finally {
+                getOutputStream().close();
+            }
+        }
+    }
+
+    /**
+     * A buffered response stream that waits for the client with {@link #awaitWritable}.
+     */
+    private static class ParkingOutputStream extends OutputStream {
+        private final HttpServerExchange exchange;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private StreamSinkChannel channel;
+        private boolean closed;
+
+        ParkingOutputStream(HttpServerExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (len >= buffer.capacity()) {
+                drain();
+                writeFully(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+            if (len > buffer.remaining()) {
+                drain();
+            }
+            buffer.put(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            while (!channel().flush()) {
+                awaitWritable(channel);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (channel == null && !exchange.isResponseChannelAvailable()) {
+                return; // the handler wrote the response to the channel itself
+            }
+            if (channel == null && !exchange.isResponseStarted()) {
+                exchange.setResponseContentLength(buffer.position());
+            }
+            drain();
+            StreamSinkChannel channel = channel();
+            channel.shutdownWrites();
+            while (!channel.flush()) {
+                awaitWritable(channel);
+            }
+        }
+
+        private void drain() throws IOException {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                writeFully(buffer);
+                buffer.clear();
+            }
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            StreamSinkChannel channel = channel();
+            while (data.hasRemaining()) {
+                if (channel.write(data) == 0) {
+                    awaitWritable(channel);
+                }
+            }
+        }
+
+        private StreamSinkChannel channel() throws IOException {
+            if (channel == null) {
+                channel = exchange.getResponseChannel();
+                if (channel == null) {
+                    throw new IOException("response channel already taken");
+                }
+            }
+            return channel;
+        }
+    }
+}
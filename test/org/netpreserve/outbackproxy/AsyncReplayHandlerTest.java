@@ -0,0 +1,150 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the proxy tests in async mode, plus the cases where async mode takes a different path: errors raised on the
+ * upstream executor, sendfile and buffered payloads to a client that reads slowly, and a client that goes away.
+ */
+public class AsyncReplayHandlerTest extends OutbackProxyTest {
+    private static final int LARGE = 2 * 1024 * 1024;
+
+    private final ExecutorService executor = AsyncReplayHandler.newUpstreamExecutor(4);
+
+    @Override
+    ExecutorService upstreamExecutor() {
+        return executor;
+    }
+
+    @After
+    @Override
+    public void tearDown() throws IOException {
+        super.tearDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void notFound() throws IOException {
+        Response response = request(port, "GET", "http://example.org/missing");
+        assertEquals(404, response.status);
+        assertEquals("Not in archive", response.body);
+    }
+
+    @Test
+    public void indexErrors() throws Exception {
+        CaptureIndex index = new CaptureIndex() {
+            @Override
+            public Capture findClosest(String url, Instant time) throws IOException {
+                if (url.contains("/overloaded")) {
+                    throw new ConcurrencyLimiter.OverloadedException("cdx", 7);
+                }
+                throw new IOException("index unavailable");
+            }
+
+            @Override
+            public Capture findOriginal(String url, Instant time, long digest) {
+                return null;
+            }
+        };
+        archive.startProxy(index, archive.store(), new CertificateGenerator(null, null), executor, 1);
+        Response response = request(archive.port(), "GET", "http://example.org/overloaded");
+        assertEquals(503, response.status);
+        assertEquals("7", response.header("Retry-After"));
+        response = request(archive.port(), "GET", "http://example.org/broken");
+        assertEquals(500, response.status);
+        assertTrue(response.body, response.body.contains("index unavailable"));
+    }
+
+    @Test
+    public void sendfileToSlowClient() throws Exception {
+        slowClient(false);
+    }
+
+    @Test
+    public void bufferedCopyToSlowClient() throws Exception {
+        slowClient(true);
+    }
+
+    /**
+     * Reads a large payload through a small receive buffer after a pause, so the proxy must wait for the channel
+     * to become writable again.
+     *
+     * @param compressed gzip the record so the payload must be inflated and copied instead of sent with sendfile
+     */
+    private void slowClient(boolean compressed) throws Exception {
+        String body = largeArchive(LARGE, compressed);
+        try (Socket socket = connect()) {
+            Thread.sleep(300);
+            String text = new String(TestArchive.readAll(socket.getInputStream()), ISO_8859_1);
+            Response response = new Response(text);
+            assertEquals(200, response.status);
+            assertEquals(String.valueOf(LARGE), response.header("Content-Length"));
+            assertTrue("payload intact", body.equals(response.body));
+        }
+        assertEquals(LARGE, archive.metrics.bytesServed.sum());
+        assertEquals(0, archive.metrics.abortedResponses.sum());
+    }
+
+    @Test
+    public void clientGoingAwayAbortsTransfer() throws Exception {
+        for (boolean compressed : new boolean[]{false, true}) {
+            // larger than the socket buffers can absorb so the proxy is still writing when the client goes
+            largeArchive(16 * LARGE, compressed);
+            try (Socket socket = connect()) {
+                InputStream in = socket.getInputStream();
+                assertTrue(in.read(new byte[1024]) > 0);
+            }
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (archive.metrics.abortedResponses.sum() == 0) {
+                assertTrue("transfer aborted", System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+            archive.metrics.abortedResponses.reset();
+        }
+    }
+
+    /**
+     * Starts a proxy over a fresh archive holding one large capture and returns its payload.
+     */
+    private String largeArchive(int size, boolean compressed) throws Exception {
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append(i).append('\n');
+        }
+        sb.setLength(size);
+        String body = sb.toString();
+        archive.close();
+        archive = new TestArchive(folder.newFolder().toPath());
+        archive.setCompressed(compressed);
+        long offset = archive.addRecord("response", "2010-01-01T00:00:00Z", "", "Content-Type: text/plain\r\n", body);
+        archive.addIndexLine("20100101000000", "text/plain", "sha1:AAAA", offset);
+        archive.startProxy(executor);
+        return body;
+    }
+
+    /**
+     * Sends a GET for {@link TestArchive#URL} on a connection with a small receive buffer.
+     */
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress("127.0.0.1", archive.port()));
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + TestArchive.URL + " HTTP/1.1\r\nHost: example.org\r\nConnection: close\r\n\r\n")
+                .getBytes(ISO_8859_1));
+        out.flush();
+        return socket;
+    }
+}
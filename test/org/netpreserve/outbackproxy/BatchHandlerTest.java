@@ -0,0 +1,177 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.*;
+
+public class BatchHandlerTest {
+    private static final Instant NOW = Instant.parse("2020-06-01T00:00:00Z");
+    private static final int CONCURRENCY = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private TestArchive archive;
+
+    @After
+    public void tearDown() throws IOException {
+        if (archive != null) {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void parsesLines() {
+        BatchHandler.Item item = BatchHandler.Item.parse("20070531203500 http://example.org/a b");
+        assertEquals("http://example.org/a b", item.url);
+        assertEquals(Instant.parse("2007-05-31T20:35:00Z"), item.time(NOW));
+
+        item = BatchHandler.Item.parse("2007 http://example.org/");
+        assertEquals(Instant.parse("2007-01-01T00:00:00Z"), item.time(NOW));
+
+        item = BatchHandler.Item.parse("http://example.org/");
+        assertEquals("http://example.org/", item.url);
+        assertEquals(NOW, item.time(NOW));
+
+        item = BatchHandler.Item.parse("123 http://example.org/");
+        assertEquals("123 http://example.org/", item.url);
+        assertEquals(NOW, item.time(NOW));
+
+        item = BatchHandler.Item.parse("20071301000000 http://example.org/");
+        assertEquals("http://example.org/", item.url);
+        try {
+            item.time(NOW);
+            fail("expected IllegalArgumentException for month 13");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void streamsOnePartPerLine() throws Exception {
+        int adminPort = startProxy();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            lines.append("20100101000000 http://example.org/\n");
+        }
+        lines.append("http://example.org/missing\n");
+        lines.append("\n");
+        lines.append("20071301000000 http://example.org/\n");
+        lines.append("http://example.org/overloaded\n");
+        lines.append("http://example.org/broken\n");
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + adminPort + "/batch")
+                .openConnection();
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(lines.toString().getBytes(US_ASCII));
+        }
+        assertEquals(200, connection.getResponseCode());
+        Matcher contentType = Pattern.compile("multipart/mixed; boundary=(\\w+)")
+                .matcher(connection.getContentType());
+        assertTrue(contentType.matches());
+        String boundary = contentType.group(1);
+        String body;
+        try (InputStream in = connection.getInputStream()) {
+            body = new String(TestArchive.readAll(in), ISO_8859_1);
+        }
+
+        assertTrue("closing boundary", body.endsWith("\r\n--" + boundary + "--\r\n"));
+        String[] parts = body.substring(0, body.length() - ("--" + boundary + "--\r\n").length())
+                .split("--" + boundary + "\r\n", -1);
+        assertEquals("", parts[0]);
+        Map<String, Integer> statuses = new HashMap<>();
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i];
+            assertTrue(part.startsWith("Content-Type: message/http; msgtype=response\r\n"));
+            int partHeadEnd = part.indexOf("\r\n\r\n");
+            String location = TestArchive.header(part.substring(0, partHeadEnd), "Content-Location");
+            String message = part.substring(partHeadEnd + 4);
+            int headEnd = message.indexOf("\r\n\r\n");
+            String head = message.substring(0, headEnd);
+            String payload = message.substring(headEnd + 4, message.length() - 2);
+            assertTrue(message.endsWith("\r\n"));
+            assertEquals(Integer.parseInt(TestArchive.header(head, "Content-Length")), payload.length());
+            int status = Integer.parseInt(head.substring(9, 12));
+            statuses.merge(status + " " + location, 1, Integer::sum);
+            if (status == 200) {
+                assertEquals(TestArchive.BODY, payload);
+                assertNotNull(TestArchive.header(head, "ETag"));
+            } else if (status == 503) {
+                assertEquals("1", TestArchive.header(head, "Retry-After"));
+            }
+        }
+        assertEquals(Integer.valueOf(6), statuses.get("200 http://example.org/"));
+        assertEquals(Integer.valueOf(1), statuses.get("404 http://example.org/missing"));
+        assertEquals(Integer.valueOf(1), statuses.get("400 http://example.org/"));
+        assertEquals(Integer.valueOf(1), statuses.get("503 http://example.org/overloaded"));
+        assertEquals(Integer.valueOf(1), statuses.get("500 http://example.org/broken"));
+        assertEquals(5, statuses.size());
+
+        assertEquals("lines looked up at once", CONCURRENCY, maxInFlight.get());
+        assertEquals(10, archive.metrics.batchItems.sum());
+    }
+
+    @Test
+    public void rejectsOtherMethods() throws Exception {
+        int adminPort = startProxy();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + adminPort + "/batch")
+                .openConnection();
+        assertEquals(405, connection.getResponseCode());
+    }
+
+    /**
+     * Starts a proxy over one capture whose index misbehaves for certain URLs and tracks concurrent lookups.
+     */
+    private int startProxy() throws Exception {
+        archive = new TestArchive(folder.getRoot().toPath());
+        archive.addResponse("");
+        CdxFileIndex cdx = archive.index();
+        CaptureIndex index = new CaptureIndex() {
+            @Override
+            public Capture findClosest(String url, Instant time) throws IOException {
+                int n = inFlight.incrementAndGet();
+                maxInFlight.accumulateAndGet(n, Math::max);
+                try {
+                    Thread.sleep(20);
+                    if (url.endsWith("/overloaded")) {
+                        throw new ConcurrencyLimiter.OverloadedException("cdx", 1);
+                    } else if (url.endsWith("/broken")) {
+                        throw new IOException("index unavailable");
+                    }
+                    return cdx.findClosest(url, time);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+
+            @Override
+            public Capture findOriginal(String url, Instant time, long digest) {
+                return cdx.findOriginal(url, time, digest);
+            }
+        };
+        archive.startProxy(index, archive.store(), new CertificateGenerator(null, null), null, CONCURRENCY);
+        return archive.adminPort();
+    }
+}
@@ -0,0 +1,202 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpServerExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static io.undertow.util.Headers.CONTENT_RANGE;
+import static io.undertow.util.Headers.RANGE;
+import static org.junit.Assert.*;
+
+public class BlockCacheTest {
+    private static final int BLOCK = 1024;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] file = new byte[10 * BLOCK + 100];
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile CountDownLatch stall; // when set, responses pause after their first block until it's released
+    private Undertow server;
+    private HttpPool pool;
+    private URL url;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(0).nextBytes(file);
+        server = Undertow.builder().addHttpListener(0, "127.0.0.1").setHandler(this::handle).build();
+        server.start();
+        InetSocketAddress address = (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+        url = new URL("http://127.0.0.1:" + address.getPort() + "/a.warc");
+        pool = new HttpPool(4, 30000, 1000, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        server.stop();
+    }
+
+    private void handle(HttpServerExchange exchange) throws Exception {
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(this::handle);
+            return;
+        }
+        requests.incrementAndGet();
+        Matcher m = RANGE_PATTERN.matcher(exchange.getRequestHeaders().getFirst(RANGE));
+        assertTrue(m.matches());
+        int start = Integer.parseInt(m.group(1));
+        if (start >= file.length) {
+            exchange.setStatusCode(416);
+            exchange.endExchange();
+            return;
+        }
+        int end = (int) Math.min(Long.parseLong(m.group(2)), file.length - 1);
+        exchange.setStatusCode(206);
+        exchange.getResponseHeaders().put(CONTENT_RANGE, "bytes " + start + "-" + end + "/" + file.length);
+        exchange.setResponseContentLength(end - start + 1);
+        exchange.startBlocking();
+        OutputStream out = exchange.getOutputStream();
+        int firstEnd = Math.min(end + 1, start + BLOCK);
+        out.write(file, start, firstEnd - start);
+        out.flush();
+        if (stall != null) {
+            stall.await();
+        }
+        out.write(file, firstEnd, end + 1 - firstEnd);
+        out.close();
+    }
+
+    private byte[] read(BlockCache cache, long offset, long length) throws IOException {
+        byte[] data;
+        try (InputStream stream = cache.open("a.warc", url, offset, length)) {
+            data = readAll(stream);
+        }
+        while (cache.pendingBlocks() > 0) { // let the fetch finish writing blocks so the tests are deterministic
+            Thread.yield();
+        }
+        return data;
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[300];
+        for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private void assertRange(BlockCache cache, int offset, int length) throws IOException {
+        int end = length < 0 ? file.length : offset + length;
+        assertArrayEquals(Arrays.copyOfRange(file, offset, end), read(cache, offset, length));
+    }
+
+    @Test
+    public void fetchesOnlyMissingBlocks() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (BlockCache cache = new BlockCache(dir, 100 * BLOCK, BLOCK, 0, pool)) {
+            assertRange(cache, 1500, 1000);
+            assertEquals(1, requests.get());
+            assertRange(cache, 1100, 500);
+            assertEquals(1, requests.get());
+            assertRange(cache, 100, 3000);
+            assertEquals(3, requests.get()); // block 0 and block 3
+            assertRange(cache, 9 * BLOCK + 50, -1);
+            assertRange(cache, 9 * BLOCK + 50, -1);
+            assertEquals(4 * BLOCK + BLOCK, cache.bytes());
+        }
+        requests.set(0);
+        try (BlockCache cache = new BlockCache(dir, 100 * BLOCK, BLOCK, 0, pool)) {
+            assertRange(cache, 0, 4 * BLOCK);
+            assertEquals(0, requests.get());
+        }
+        try (BlockCache cache = new BlockCache(dir, 100 * BLOCK, 2 * BLOCK, 0, pool)) {
+            assertEquals(0, cache.bytes());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void handsOverBlocksAsTheyArrive() throws Exception {
+        stall = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (BlockCache cache = new BlockCache(folder.getRoot().toPath(), 100 * BLOCK, BLOCK, 0, pool)) {
+            try (InputStream stream = cache.open("a.warc", url, 100, 4 * BLOCK)) {
+                byte[] first = new byte[BLOCK - 100];
+                assertEquals(first.length, stream.read(first));
+                assertArrayEquals(Arrays.copyOfRange(file, 100, BLOCK), first);
+
+                // a reader of a later block in the run waits for it rather than requesting it again
+                Future<byte[]> other = executor.submit(() -> read(cache, 2 * BLOCK, 10));
+                try {
+                    other.get(200, TimeUnit.MILLISECONDS);
+                    fail("expected the other reader to wait for the stalled fetch");
+                } catch (TimeoutException e) {
+                    assertEquals(1, requests.get());
+                }
+                stall.countDown();
+                assertArrayEquals(Arrays.copyOfRange(file, BLOCK, 4 * BLOCK + 100), readAll(stream));
+                assertArrayEquals(Arrays.copyOfRange(file, 2 * BLOCK, 2 * BLOCK + 10), other.get());
+            }
+            assertEquals(1, requests.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void readsAheadSequentially() throws IOException {
+        try (BlockCache cache = new BlockCache(folder.getRoot().toPath(), 100 * BLOCK, BLOCK, 2, pool)) {
+            assertRange(cache, 0, 100);
+            assertRange(cache, BLOCK, 100);
+            assertEquals(2, requests.get());
+            assertRange(cache, 2 * BLOCK, 100);
+            assertRange(cache, 3 * BLOCK, 100);
+            assertEquals(2, requests.get());
+            assertRange(cache, 0, -1);
+            assertEquals(5, requests.get());
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        try (BlockCache cache = new BlockCache(folder.getRoot().toPath(), 2 * BLOCK, BLOCK, 0, pool)) {
+            assertRange(cache, 0, 10);
+            assertRange(cache, BLOCK, 10);
+            assertRange(cache, 0, 10);
+            assertRange(cache, 2 * BLOCK, 10);
+            assertEquals(1, cache.evictions());
+            assertEquals(2 * BLOCK, cache.bytes());
+            requests.set(0);
+            assertRange(cache, 0, 10);
+            assertEquals(0, requests.get());
+            assertRange(cache, BLOCK, 10);
+            assertEquals(1, requests.get());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.util.HeaderMap;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static io.undertow.util.Headers.ETAG;
+import static io.undertow.util.Headers.LAST_MODIFIED;
+import static org.junit.Assert.*;
+
+public class ByteRangeTest {
+    @Test
+    public void parse() {
+        assertRange(0, 99, "bytes=0-99", 1000);
+        assertRange(500, 999, "bytes=500-", 1000);
+        assertRange(900, 999, "bytes=-100", 1000);
+        assertRange(0, 999, "bytes=-5000", 1000);
+        assertRange(990, 999, "bytes=990-5000", 1000);
+        assertRange(0, 199, "bytes=100-199, 0-50,40-120", 1000);
+        assertRange(0, 19, "bytes=0-9,10-19", 1000);
+        assertEquals("bytes 0-99/1000", ByteRange.parse("bytes=0-99", 1000).contentRange(1000));
+    }
+
+    @Test
+    public void ignored() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("bytes=0-99", -1));
+        assertNull(ByteRange.parse("items=0-99", 1000));
+        assertNull(ByteRange.parse("bytes=abc", 1000));
+        assertNull(ByteRange.parse("bytes=20-10", 1000));
+        assertNull(ByteRange.parse("bytes=0-9,20-29", 1000));
+    }
+
+    @Test
+    public void unsatisfiable() {
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-", 1000));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 1000));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=0-", 0));
+    }
+
+    @Test
+    public void ifRange() {
+        HeaderMap headers = new HeaderMap();
+        headers.put(ETAG, "\"archived\"");
+        headers.put(LAST_MODIFIED, "Thu, 31 May 2007 20:35:00 GMT");
+        String etag = "\"abc\"";
+        assertTrue(OutbackProxy.ifRangeMatches(null, etag, headers));
+        assertTrue(OutbackProxy.ifRangeMatches("\"abc\"", etag, headers));
+        assertFalse(OutbackProxy.ifRangeMatches("\"xyz\"", etag, headers));
+        assertFalse(OutbackProxy.ifRangeMatches("\"archived\"", etag, headers));
+        assertFalse(OutbackProxy.ifRangeMatches("W/\"abc\"", etag, headers));
+        assertTrue(OutbackProxy.ifRangeMatches("Thu, 31 May 2007 20:35:00 GMT", etag, headers));
+        assertFalse(OutbackProxy.ifRangeMatches("Fri, 01 Jun 2007 20:35:00 GMT", etag, headers));
+        assertFalse(OutbackProxy.ifRangeMatches("garbage", etag, headers));
+    }
+
+    @Test
+    public void ifNoneMatch() {
+        String etag = "\"abc\"";
+        assertTrue(OutbackProxy.ifNoneMatchMatches(Arrays.asList("\"abc\""), etag));
+        assertTrue(OutbackProxy.ifNoneMatchMatches(Arrays.asList("\"xyz\", W/\"abc\""), etag));
+        assertTrue(OutbackProxy.ifNoneMatchMatches(Arrays.asList("\"xyz\"", "\"abc\""), etag));
+        assertTrue(OutbackProxy.ifNoneMatchMatches(Arrays.asList("*"), etag));
+        assertFalse(OutbackProxy.ifNoneMatchMatches(Arrays.asList("\"xyz\""), etag));
+    }
+
+    private static void assertRange(long start, long end, String header, long length) {
+        ByteRange range = ByteRange.parse(header, length);
+        assertNotNull(header, range);
+        assertEquals(header, start, range.start());
+        assertEquals(header, end, range.end());
+    }
+}
@@ -0,0 +1,87 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CdxFileIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void surt() {
+        assertEquals("org,example)/", Surt.fromUrl("http://www.example.org"));
+        assertEquals("org,example)/a?a=2&b=1", Surt.fromUrl("https://WWW.Example.org:443/A?b=1&a=2#frag"));
+        assertEquals("org,example:8080)/x", Surt.fromUrl("http://user@example.org:8080/x"));
+    }
+
+    @Test
+    public void cdxAcrossManySamples() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String url = String.format("http://example.org/page%04d", i);
+            for (int year = 2005; year <= 2007; year++) {
+                lines.add(Surt.fromUrl(url) + " " + year + "0101000000 " + url + " text/html 200 AAAA - - 100 "
+                        + (i * 1000 + year) + " file" + year + ".warc.gz");
+            }
+        }
+        Collections.sort(lines);
+        lines.add(0, " CDX N b a m s k r M S V g");
+        Path file = folder.newFile("index.cdx").toPath();
+        Files.write(file, lines);
+
+        CdxFileIndex index = new CdxFileIndex(file);
+        Capture capture = index.findClosest("http://example.org/page4321", Instant.parse("2006-03-01T00:00:00Z"));
+        assertEquals(4321 * 1000 + 2006, capture.offset());
+        assertEquals("file2006.warc.gz", capture.filename());
+        assertEquals(100, capture.compressedLength());
+        assertEquals(2007, index.findClosest("http://example.org/page0000", Instant.parse("2030-01-01T00:00:00Z")).offset());
+        assertNull(index.findClosest("http://example.org/page5000", Instant.now()));
+        assertNull(index.findClosest("http://example.org/", Instant.now()));
+    }
+
+    @Test
+    public void cdxjDirectory() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        Files.write(dir.resolve("a.cdxj"), Collections.singletonList(
+                "org,example)/ 20100101000000 {\"url\": \"http://example.org/\", \"length\": \"123\", \"offset\": \"456\", \"filename\": \"a.warc.gz\"}"));
+        Files.write(dir.resolve("b.cdx"), Collections.singletonList(
+                "org,example)/ 20120101000000 http://example.org/ text/html 200 AAAA - - 99 789 b.warc.gz"));
+        CdxFileIndex index = new CdxFileIndex(dir);
+        Capture capture = index.findClosest("http://example.org/", Instant.parse("2009-01-01T00:00:00Z"));
+        assertEquals(456, capture.offset());
+        assertEquals(123, capture.compressedLength());
+        assertEquals("a.warc.gz", capture.filename());
+        assertEquals("b.warc.gz", index.findClosest("http://example.org/", Instant.parse("2013-01-01T00:00:00Z")).filename());
+    }
+
+    @Test
+    public void originalSkipsCloserRevisits() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int year = 2000; year <= 2019; year++) {
+            String mime = year == 2004 || year >= 2010 ? "text/html" : "warc/revisit";
+            lines.add("org,example)/ " + year + "0101000000 http://example.org/ " + mime + " 200 AAAA - - 100 " +
+                    year + " a.warc.gz");
+        }
+        Path file = folder.newFile("index.cdx").toPath();
+        Files.write(file, lines);
+
+        CdxFileIndex index = new CdxFileIndex(file);
+        Instant time = Instant.parse("2006-06-01T00:00:00Z");
+        assertEquals(2006, index.findClosest("http://example.org/", time).offset());
+        assertEquals(2004, index.findOriginal("http://example.org/", time, 0).offset());
+        assertEquals(2010, index.findOriginal("http://example.org/", Instant.parse("2008-01-01T00:00:00Z"), 0)
+                .offset());
+    }
+}
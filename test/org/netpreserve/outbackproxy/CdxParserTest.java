@@ -0,0 +1,144 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.time.Instant;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class CdxParserTest {
+    @Test
+    public void formats() throws IOException {
+        String response = " CDX N b a m s k r M S V g\n" +
+                "org,example)/ 20100101000000 http://example.org/ text/html 200 AAAA - - 123 456 a.warc.gz\r\n" +
+                "\n" +
+                "org,example)/ 20110101000000 http://example.org/ text/html 200 BBBB - 789 b.arc.gz\n" +
+                "org,example)/ 20120101000000 {\"url\": \"http://example.org/\", \"mime\": \"warc/revisit\", " +
+                "\"digest\": \"CCCC\", \"length\": \"10\", \"offset\": \"20\", \"filename\": \"c\\\\d.warc.gz\", " +
+                "\"extra\": {\"nested\": [1, \"}\"]}}\n" +
+                "{\"urlkey\": \"org,example)/\", \"timestamp\": \"2013\", \"url\": \"http://example.org/\", " +
+                "\"offset\": 30, \"filename\": \"c\\\\d.warc.gz\"}";
+        try (CdxParser parser = new CdxParser(new OneByteAtATime(response))) {
+            assertTrue(parser.next());
+            assertEquals(Instant.parse("2010-01-01T00:00:00Z").getEpochSecond(), parser.epochSecond());
+            assertEquals(123, parser.compressedLength());
+            assertEquals(456, parser.offset());
+            assertEquals("a.warc.gz", parser.filename());
+            assertEquals("AAAA", parser.digest());
+            assertEquals("org,example)/", parser.urlkey());
+            assertEquals("http://example.org/", parser.originalUrl());
+
+            assertTrue(parser.next()); // CDX9
+            assertEquals(-1, parser.compressedLength());
+            assertEquals(789, parser.offset());
+            assertEquals("b.arc.gz", parser.filename());
+            assertEquals("BBBB", parser.digest());
+
+            assertTrue(parser.next()); // CDXJ
+            assertEquals(Instant.parse("2012-01-01T00:00:00Z").getEpochSecond(), parser.epochSecond());
+            assertEquals(10, parser.compressedLength());
+            assertEquals(20, parser.offset());
+            assertEquals("c\\d.warc.gz", parser.filename());
+            assertEquals("warc/revisit", parser.mime());
+            assertEquals("CCCC", parser.digest());
+
+            assertTrue(parser.next()); // pywb JSON, short timestamp, numeric offset, no trailing newline
+            assertEquals(Instant.parse("2013-01-01T00:00:00Z").getEpochSecond(), parser.epochSecond());
+            assertEquals(-1, parser.compressedLength());
+            assertEquals(30, parser.offset());
+            assertEquals("c\\d.warc.gz", parser.filename());
+            assertEquals("org,example)/", parser.urlkey());
+            assertNull(parser.digest());
+
+            assertFalse(parser.next());
+        }
+    }
+
+    @Test
+    public void repeatedFilenameIsShared() throws IOException {
+        byte[] bytes = ("a 20100101000000 http://a/ text/html 200 - - - 1 0 same.warc.gz\n" +
+                "a 20110101000000 http://a/ text/html 200 - - - 1 1 same.warc.gz\n").getBytes(UTF_8);
+        CdxParser parser = new CdxParser(bytes, 0, bytes.length);
+        assertTrue(parser.next());
+        String first = parser.filename();
+        assertTrue(parser.next());
+        assertSame(first, parser.filename());
+    }
+
+    @Test
+    public void etags() {
+        Capture a = Capture.parse("a 20100101000000 http://a/ text/html 200 AAAA - - 1 0 a.warc.gz");
+        Capture b = Capture.parse("a 20110101000000 http://a/ text/html 200 sha1:AAAA - - 1 5 b.warc.gz");
+        Capture c = Capture.parse("a 20120101000000 http://a/ text/html 200 - - - 1 0 a.warc.gz");
+        Capture d = Capture.parse("a 20130101000000 http://a/ text/html 200 - - - 1 9 a.warc.gz");
+        assertEquals(a.etag(), b.etag());
+        assertNotEquals(a.etag(), c.etag());
+        assertNotEquals(c.etag(), d.etag());
+        assertTrue(c.etag().matches("\"[0-9a-f]{16}-0\""));
+        assertEquals(a.etag(), new Timeline.Builder().add(a).build().get(0).etag());
+    }
+
+    @Test
+    public void lineLongerThanBuffer() throws IOException {
+        StringBuilder filename = new StringBuilder();
+        while (filename.length() < 20000) {
+            filename.append("long");
+        }
+        String line = "a 20100101000000 http://a/ text/html 200 - - - 1 2 " + filename + "\n";
+        try (CdxParser parser = new CdxParser(new ByteArrayInputStream((line + line).getBytes(UTF_8)))) {
+            assertTrue(parser.next());
+            assertEquals(filename.toString(), parser.filename());
+            assertTrue(parser.next());
+            assertEquals(2, parser.offset());
+            assertFalse(parser.next());
+        }
+    }
+
+    @Test
+    public void timestamps() {
+        assertEquals(Instant.parse("2007-05-31T20:35:00Z").getEpochSecond(), Capture.parseTimestamp("20070531203500"));
+        assertEquals(Instant.parse("2007-05-01T00:00:00Z").getEpochSecond(), Capture.parseTimestamp("200705"));
+        assertEquals(Instant.parse("1996-01-01T00:00:00Z").getEpochSecond(), Capture.parseTimestamp("19960000000000"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingOffset() {
+        Capture.parse("{\"timestamp\": \"20100101000000\", \"filename\": \"a.warc.gz\"}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badTimestamp() {
+        Capture.parse("org,example)/ 2010x101000000 http://example.org/ text/html 200 - - - 1 2 a.warc.gz");
+    }
+
+    @Test
+    public void errorQuotesOnlyTheBadLine() throws IOException {
+        String good = "a 20100101000000 http://a/ text/html 200 - - - 1 2 a.warc.gz\n";
+        String bad = "a 20100101000000 {\"offset\": \"2\", \"url\": \"http://a/}";
+        try (CdxParser parser = new CdxParser(new ByteArrayInputStream((good + bad + "\n").getBytes(UTF_8)))) {
+            assertTrue(parser.next());
+            parser.next();
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals("unterminated string in CDX line: " + bad, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns one byte per read to exercise lines split across reads.
+     */
+    private static class OneByteAtATime extends FilterInputStream {
+        OneByteAtATime(String s) {
+            super(new ByteArrayInputStream(s.getBytes(UTF_8)));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+}
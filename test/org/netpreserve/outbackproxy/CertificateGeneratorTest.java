@@ -8,7 +8,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class CertificateGeneratorTest {
@@ -27,6 +29,23 @@ public class CertificateGeneratorTest {
         new CertificateGenerator(keyFile, certFile).contextForHost("hello.test");
     }
 
+    @Test
+    public void store() throws IOException, GeneralSecurityException {
+        Path root = folder.newFolder().toPath();
+        Path keyFile = root.resolve("key.pem");
+        Path certFile = root.resolve("cert.pem");
+        Path storeFile = root.resolve("certs");
+        Path hostnames = root.resolve("hostnames");
+        Files.write(hostnames, Arrays.asList("a.test", "B.test", "", "a.test"));
+        CertificateGenerator certgen = new CertificateGenerator(keyFile, certFile, storeFile, false);
+        assertEquals(2, certgen.prewarm(hostnames));
+        certgen.contextForHost("c.test");
+        certgen = new CertificateGenerator(keyFile, certFile, storeFile, true);
+        assertEquals(0, certgen.prewarm(hostnames));
+        certgen.contextForHost("c.test");
+        assertEquals(4, Files.readAllLines(storeFile).size());
+    }
+
     @Test
     public void ephemeral() throws IOException, GeneralSecurityException {
         CertificateGenerator certgen = new CertificateGenerator(null, null);
@@ -0,0 +1,71 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static org.junit.Assert.*;
+
+public class CertificateStoreTest {
+    private static final byte[] CA = "ca certificate".getBytes(US_ASCII);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void persists() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("certs");
+        try (CertificateStore store = new CertificateStore(file, CA, false)) {
+            assertNull(store.get("a.test"));
+            store.put("a.test", new byte[]{1, 2, 3});
+            store.put("b.test", new byte[]{4, 5});
+            store.put("a.test", new byte[]{6});
+            assertArrayEquals(new byte[]{6}, store.get("a.test"));
+        }
+        try (CertificateStore store = new CertificateStore(file, CA, true)) {
+            assertEquals(2, store.size());
+            assertArrayEquals(new byte[]{6}, store.get("a.test"));
+            assertArrayEquals(new byte[]{4, 5}, store.get("b.test"));
+            store.put("c.test", new byte[]{7});
+            assertNull(store.get("c.test"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void differentCa() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("certs");
+        new CertificateStore(file, CA, false).close();
+        new CertificateStore(file, "another ca".getBytes(US_ASCII), false).close();
+    }
+
+    @Test
+    public void readerSeesLaterAppends() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("certs");
+        try (CertificateStore writer = new CertificateStore(file, CA, false);
+             CertificateStore reader = new CertificateStore(file, CA, true)) {
+            writer.put("a.test", new byte[]{1});
+            assertArrayEquals(new byte[]{1}, reader.get("a.test"));
+        }
+    }
+
+    @Test
+    public void skipsTornLine() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("certs");
+        try (CertificateStore store = new CertificateStore(file, CA, false)) {
+            store.put("a.test", new byte[]{1});
+        }
+        Files.write(file, "b.test AQ".getBytes(US_ASCII), APPEND);
+        try (CertificateStore store = new CertificateStore(file, CA, false)) {
+            assertNull(store.get("b.test"));
+            store.put("c.test", new byte[]{3});
+            assertArrayEquals(new byte[]{1}, store.get("a.test"));
+            assertArrayEquals(new byte[]{3}, store.get("c.test"));
+        }
+    }
+}
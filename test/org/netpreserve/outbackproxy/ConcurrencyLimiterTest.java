@@ -0,0 +1,82 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+    @Test
+    public void shedsWhenQueueIsFull() throws IOException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 0, 1000, false);
+        ConcurrencyLimiter.Permit permit = limiter.acquire();
+        try {
+            limiter.acquire();
+            fail("expected OverloadedException");
+        } catch (ConcurrencyLimiter.OverloadedException e) {
+            assertEquals(1, e.retryAfterSeconds());
+        }
+        permit.close();
+        limiter.acquire().close();
+        assertEquals(1, limiter.shed());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    public void queuedRequestsWaitForASlot() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, 10000, false);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ConcurrencyLimiter.Permit permit = limiter.acquire();
+            CountDownLatch acquired = new CountDownLatch(1);
+            Future<?> waiter = executor.submit(() -> {
+                try (ConcurrencyLimiter.Permit p = limiter.acquire()) {
+                    acquired.countDown();
+                }
+                return null;
+            });
+            while (limiter.queued() == 0) {
+                Thread.sleep(1);
+            }
+            assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+            permit.close();
+            waiter.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = ConcurrencyLimiter.OverloadedException.class)
+    public void shedsAfterQueueTimeout() throws IOException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 10, 10, false);
+        limiter.acquire();
+        limiter.acquire();
+    }
+
+    @Test
+    public void adaptsToFailures() throws IOException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 0, 0, true);
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire().close(); // not marked succeeded
+        }
+        assertEquals(7, limiter.limitValue());
+        ConcurrencyLimiter.Permit[] permits = new ConcurrencyLimiter.Permit[10];
+        for (int round = 0; round < 50 && limiter.limitValue() < 10; round++) {
+            int n = (int) limiter.limitValue();
+            for (int i = 0; i < n; i++) {
+                permits[i] = limiter.acquire();
+            }
+            for (int i = 0; i < n; i++) {
+                permits[i].succeeded();
+                permits[i].close();
+            }
+        }
+        assertEquals(10, limiter.limitValue());
+    }
+}
@@ -0,0 +1,146 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static org.junit.Assert.*;
+
+public class FileChannelCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(name), content.getBytes(US_ASCII));
+    }
+
+    private static String read(FileChannelCache.Handle handle) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) handle.channel().size());
+        handle.channel().read(buffer, 0);
+        return new String(buffer.array(), US_ASCII);
+    }
+
+    @Test
+    public void reusesOpenFile() throws IOException {
+        Path file = write("a.warc", "hello");
+        try (FileChannelCache cache = new FileChannelCache(4, 60000)) {
+            FileChannel channel;
+            try (FileChannelCache.Handle handle = cache.acquire(file)) {
+                channel = handle.channel();
+            }
+            try (FileChannelCache.Handle handle = cache.acquire(file)) {
+                assertSame(channel, handle.channel());
+                assertTrue(channel.isOpen());
+            }
+            assertEquals(1, cache.hits());
+            assertEquals(1, cache.misses());
+        }
+    }
+
+    @Test
+    public void reopensClosedChannel() throws IOException {
+        Path file = write("a.warc", "hello");
+        try (FileChannelCache cache = new FileChannelCache(4, 60000)) {
+            FileChannel channel;
+            try (FileChannelCache.Handle handle = cache.acquire(file)) {
+                channel = handle.channel();
+                channel.close(); // as an interrupted read would
+            }
+            try (FileChannelCache.Handle handle = cache.acquire(file)) {
+                assertNotSame(channel, handle.channel());
+                assertEquals("hello", read(handle));
+            }
+            assertEquals(2, cache.misses());
+        }
+    }
+
+    @Test
+    public void evictsOnlyUnusedFiles() throws IOException {
+        Path a = write("a.warc", "a");
+        Path b = write("b.warc", "b");
+        Path c = write("c.warc", "c");
+        try (FileChannelCache cache = new FileChannelCache(2, 60000)) {
+            FileChannelCache.Handle ha = cache.acquire(a);
+            FileChannelCache.Handle hb = cache.acquire(b);
+            hb.close();
+            FileChannelCache.Handle hc = cache.acquire(c);
+            assertTrue(ha.channel().isOpen());
+            assertFalse(hb.channel().isOpen());
+            assertEquals(2, cache.size());
+
+            // everything cached is in use so the file is opened just for this caller
+            FileChannelCache.Handle hb2 = cache.acquire(b);
+            assertEquals(2, cache.size());
+            hb2.close();
+            assertFalse(hb2.channel().isOpen());
+            ha.close();
+            hc.close();
+            assertTrue(ha.channel().isOpen());
+        }
+    }
+
+    @Test
+    public void closesIdleFiles() throws IOException {
+        Path file = write("a.warc", "a");
+        try (FileChannelCache cache = new FileChannelCache(4, 0)) {
+            FileChannelCache.Handle handle = cache.acquire(file);
+            cache.closeExpired();
+            assertTrue(handle.channel().isOpen());
+            handle.close();
+            cache.closeExpired();
+            assertFalse(handle.channel().isOpen());
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void noticesReplacedAndDeletedFiles() throws Exception {
+        Path file = write("a.warc", "old");
+        try (FileChannelCache cache = new FileChannelCache(4, 60000)) {
+            FileChannelCache.Handle old = cache.acquire(file);
+            Files.move(write("a.warc.tmp", "new"), file, ATOMIC_MOVE);
+            Thread.sleep(FileChannelCache.REVALIDATE_MILLIS + 100);
+            try (FileChannelCache.Handle handle = cache.acquire(file)) {
+                assertEquals("new", read(handle));
+            }
+            assertEquals("old", read(old));
+            old.close();
+            assertFalse(old.channel().isOpen());
+
+            Files.delete(file);
+            Thread.sleep(FileChannelCache.REVALIDATE_MILLIS + 100);
+            try {
+                cache.acquire(file);
+                fail("expected NoSuchFileException");
+            } catch (NoSuchFileException e) {
+                assertEquals(0, cache.size());
+            }
+        }
+    }
+
+    @Test
+    public void streamsShareChannel() throws IOException {
+        Path file = write("a.warc", "0123456789");
+        try (FileChannelCache cache = new FileChannelCache(4, 60000);
+             FileChannelCache.Handle handle = cache.acquire(file)) {
+            InputStream first = new FileChannelInputStream(handle.channel(), 2, null);
+            InputStream second = new FileChannelInputStream(handle.channel(), 7, null);
+            assertEquals('2', first.read());
+            assertEquals('7', second.read());
+            assertEquals('3', first.read());
+            assertEquals(2, second.skip(5));
+            assertEquals(-1, second.read());
+            assertEquals(0, handle.channel().position());
+        }
+    }
+}
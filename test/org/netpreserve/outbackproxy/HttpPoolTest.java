@@ -0,0 +1,142 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.BlockingHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertEquals;
+
+public class HttpPoolTest {
+    private static final byte[] BIG = new byte[1024 * 1024];
+
+    private Undertow server;
+    private HttpPool pool;
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        Arrays.fill(BIG, (byte) 'x');
+        server = Undertow.builder().addHttpListener(0, "127.0.0.1").setHandler(this::handle).build();
+        server.start();
+        InetSocketAddress address = (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+        baseUrl = "http://127.0.0.1:" + address.getPort();
+        pool = new HttpPool(2, 30000, 1000, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        server.stop();
+    }
+
+    private void handle(HttpServerExchange exchange) throws Exception {
+        switch (exchange.getRequestPath()) {
+            case "/small":
+                exchange.getResponseSender().send("hello " + exchange.getRequestHeaders().getFirst("Range"));
+                break;
+            case "/chunked":
+                new BlockingHandler(blocking -> {
+                    try (OutputStream out = blocking.getOutputStream()) {
+                        out.write("chunked ".getBytes(US_ASCII));
+                        out.flush();
+                        out.write("body".getBytes(US_ASCII));
+                    }
+                }).handleRequest(exchange);
+                break;
+            case "/big":
+                exchange.getResponseSender().send(ByteBuffer.wrap(BIG));
+                break;
+            default:
+                exchange.setStatusCode(404);
+        }
+    }
+
+    @Test
+    public void reusesConnections() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            try (HttpPool.Response response = pool.get(new URL(baseUrl + "/small"), "Range", "bytes=1-2")) {
+                assertEquals(200, response.status());
+                assertEquals("hello bytes=1-2", readAll(response.body()));
+            }
+        }
+        try (HttpPool.Response response = pool.get(new URL(baseUrl + "/chunked"))) {
+            assertEquals("chunked", response.header("Transfer-Encoding"));
+            assertEquals("chunked body", readAll(response.body()));
+        }
+        HttpPool.HostPool hostPool = pool.hostPools().iterator().next();
+        assertEquals(1, hostPool.created());
+        assertEquals(3, hostPool.reused());
+        assertEquals(1, hostPool.idle());
+        assertEquals(0, hostPool.leased());
+    }
+
+    @Test
+    public void partialReads() throws IOException {
+        try (HttpPool.Response response = pool.get(new URL(baseUrl + "/small"))) {
+            assertEquals('h', response.body().read());
+        }
+        try (HttpPool.Response response = pool.get(new URL(baseUrl + "/big"))) {
+            assertEquals('x', response.body().read());
+        }
+        HttpPool.HostPool hostPool = pool.hostPools().iterator().next();
+        assertEquals(1, hostPool.discarded());
+        assertEquals(0, hostPool.leased());
+        try (HttpPool.Response response = pool.get(new URL(baseUrl + "/missing"))) {
+            assertEquals(404, response.status());
+        }
+        assertEquals(2, hostPool.created());
+    }
+
+    @Test
+    public void countsRequestsWaitingForAConnection() throws Exception {
+        URL url = new URL(baseUrl + "/small");
+        HttpPool.Response first = pool.get(url);
+        HttpPool.Response second = pool.get(url);
+        HttpPool.HostPool hostPool = pool.hostPools().iterator().next();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> third = executor.submit(() -> {
+                try (HttpPool.Response response = pool.get(url)) {
+                    return response.status();
+                }
+            });
+            while (hostPool.waiting() == 0) {
+                Thread.sleep(1);
+            }
+            assertEquals(2, hostPool.leased());
+            first.close();
+            assertEquals(Integer.valueOf(200), third.get(5, TimeUnit.SECONDS));
+            assertEquals(0, hostPool.waiting());
+        } finally {
+            second.close();
+            executor.shutdown();
+        }
+        assertEquals(0, hostPool.leased());
+    }
+
+    private static String readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), US_ASCII);
+    }
+}
@@ -0,0 +1,94 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LruCacheTest {
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        LruCache<String, String> cache = new LruCache<>(2);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("a", k -> k + loads.incrementAndGet());
+        cache.get("b", k -> k + loads.incrementAndGet());
+        cache.get("a", k -> k + loads.incrementAndGet());
+        cache.get("c", k -> k + loads.incrementAndGet());
+        assertEquals("a1", cache.get("a", k -> k + loads.incrementAndGet()));
+        assertEquals("b4", cache.get("b", k -> k + loads.incrementAndGet()));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.hits());
+        assertEquals(4, cache.misses());
+    }
+
+    @Test
+    public void evictsByWeight() {
+        LruCache<String, String> cache = new LruCache<>(10, String::length, 0);
+        cache.get("a", k -> "aaaa");
+        cache.get("b", k -> "bbbb");
+        cache.get("c", k -> "cccc");
+        assertEquals(2, cache.size());
+        assertEquals(8, cache.weight());
+        assertEquals("new", cache.get("a", k -> "new"));
+    }
+
+    @Test
+    public void doesNotKeepValuesHeavierThanTheBound() {
+        LruCache<String, String> cache = new LruCache<>(10, String::length, 0);
+        cache.get("a", k -> "aaaa");
+        cache.get("b", k -> "bbbb");
+        assertEquals("hugehugehuge", cache.get("huge", k -> "hugehugehuge"));
+        assertEquals(2, cache.size());
+        assertEquals(8, cache.weight());
+        assertEquals("aaaa", cache.get("a", k -> "reloaded"));
+        assertEquals("again", cache.get("huge", k -> "again"));
+    }
+
+    @Test
+    public void concurrentLoadsRunOnce() throws Exception {
+        LruCache<String, Integer> cache = new LruCache<>(10);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<Integer> first = executor.submit(() -> cache.get("host", k -> {
+                loading.countDown();
+                release.await();
+                return loads.incrementAndGet();
+            }));
+            loading.await();
+            Future<Integer> second = executor.submit(() -> cache.get("host", k -> loads.incrementAndGet()));
+            while (cache.hits() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            assertEquals(1, (int) first.get());
+            assertEquals(1, (int) second.get());
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failuresAreNotCached() throws IOException {
+        LruCache<String, String> cache = new LruCache<>(10);
+        try {
+            cache.get("a", k -> {
+                throw new IOException("boom");
+            });
+            fail("expected exception");
+        } catch (IOException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        assertEquals("ok", cache.get("a", k -> "ok"));
+    }
+}
@@ -0,0 +1,45 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long value : new long[]{0, 1, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = Metrics.Histogram.bucket(value);
+            assertTrue(value + " <= upper bound", value <= Metrics.Histogram.upperBound(bucket));
+            assertTrue(value + " > previous bound", bucket == 0 || value > Metrics.Histogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void quantiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram("test_seconds", "test");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000000L); // 1ms to 1s
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500e6, histogram.quantile(0.5), 500e6 * 0.125);
+        assertEquals(990e6, histogram.quantile(0.99), 990e6 * 0.125);
+        assertTrue(histogram.quantile(1.0) >= 1000000000L);
+    }
+
+    @Test
+    public void scrape() {
+        Metrics metrics = new Metrics();
+        metrics.indexLookup.record(2000000);
+        metrics.notFound.increment();
+        metrics.labelled("upstream_errors_total", "counter", "errors", "upstream",
+                Arrays.asList("http://a:80", "http://\"b\":80"), host -> host, String::length);
+        String text = metrics.scrape();
+        assertTrue(text, text.contains("# TYPE outbackproxy_index_lookup_seconds summary\n"));
+        assertTrue(text, text.contains("outbackproxy_index_lookup_seconds_count 1\n"));
+        assertTrue(text, text.contains("outbackproxy_not_found_total 1\n"));
+        assertTrue(text, text.contains("upstream_errors_total{upstream=\"http://a:80\"} 11\n"));
+        assertTrue(text, text.contains("upstream_errors_total{upstream=\"http://\\\"b\\\":80\"} 13\n"));
+    }
+}
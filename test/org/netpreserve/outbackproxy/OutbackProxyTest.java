@@ -0,0 +1,132 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.*;
+
+/**
+ * Replays through a running proxy, with raw sockets so exactly what is sent can be checked.
+ */
+public class OutbackProxyTest {
+    private static final String URL = TestArchive.URL;
+    private static final String BODY = TestArchive.BODY;
+    private static final String LAST_MODIFIED = "Mon, 01 Jun 2009 00:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    TestArchive archive;
+    int port;
+
+    @Before
+    public void setUp() throws Exception {
+        archive = new TestArchive(folder.getRoot().toPath());
+        archive.addResponse("Last-Modified: " + LAST_MODIFIED + "\r\n");
+        archive.startProxy(upstreamExecutor());
+        port = archive.port();
+    }
+
+    /**
+     * Executor to run the proxy in async mode or null for blocking mode.
+     */
+    ExecutorService upstreamExecutor() {
+        return null;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        archive.close();
+    }
+
+    @Test
+    public void ifModifiedSince() throws IOException {
+        // not modified since the capture
+        assertEquals(304, request("GET", "If-Modified-Since: Sat, 02 Jan 2010 00:00:00 GMT").status);
+        // captured later, but the archived Last-Modified is older
+        Response response = request("GET", "If-Modified-Since: Tue, 01 Dec 2009 00:00:00 GMT");
+        assertEquals(304, response.status);
+        assertNotNull(response.header("ETag"));
+        assertEquals("", response.body);
+        // modified since
+        response = request("GET", "If-Modified-Since: Thu, 01 Jan 2009 00:00:00 GMT");
+        assertEquals(200, response.status);
+        assertEquals(BODY, response.body);
+    }
+
+    @Test
+    public void ifNoneMatchTakesPrecedence() throws IOException {
+        String etag = request("GET").header("ETag");
+        assertNotNull(etag);
+        Response response = request("GET", "If-None-Match: \"other\"",
+                "If-Modified-Since: Sat, 02 Jan 2010 00:00:00 GMT");
+        assertEquals(200, response.status);
+        assertEquals(BODY, response.body);
+        response = request("GET", "If-None-Match: " + etag, "If-Modified-Since: Thu, 01 Jan 2009 00:00:00 GMT");
+        assertEquals(304, response.status);
+        assertEquals(etag, response.header("ETag"));
+    }
+
+    @Test
+    public void conditionsOnlyApplyToGetAndHead() throws IOException {
+        assertEquals(304, request("HEAD", "If-None-Match: *").status);
+        Response response = request("POST", "If-None-Match: *", "Content-Length: 0");
+        assertEquals(200, response.status);
+        assertEquals(BODY, response.body);
+    }
+
+    @Test
+    public void headSendsHeadersOnly() throws IOException {
+        Response response = request("HEAD");
+        assertEquals(200, response.status);
+        assertEquals(String.valueOf(BODY.length()), response.header("Content-Length"));
+        assertNotNull(response.header("ETag"));
+        assertEquals("", response.body);
+    }
+
+    Response request(String method, String... headers) throws IOException {
+        return request(port, method, URL, headers);
+    }
+
+    static Response request(int port, String method, String url, String... headers) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(method).append(" ").append(url).append(" HTTP/1.1\r\n");
+            sb.append("Host: example.org\r\nConnection: close\r\n");
+            for (String header : headers) {
+                sb.append(header).append("\r\n");
+            }
+            sb.append("\r\n");
+            OutputStream out = socket.getOutputStream();
+            out.write(sb.toString().getBytes(ISO_8859_1));
+            out.flush();
+            return new Response(new String(TestArchive.readAll(socket.getInputStream()), ISO_8859_1));
+        }
+    }
+
+    static class Response {
+        final int status;
+        final String head;
+        final String body;
+
+        Response(String text) {
+            int end = text.indexOf("\r\n\r\n");
+            head = text.substring(0, end);
+            body = text.substring(end + 4);
+            status = Integer.parseInt(head.substring(9, 12));
+        }
+
+        String header(String name) {
+            return TestArchive.header(head, name);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.*;
+
+public class RecordDecoderTest {
+    @Test
+    public void decodesOneGzipMember() throws IOException {
+        byte[] first = new byte[100000];
+        new Random(1).nextBytes(first);
+        byte[] firstMember = gzip(first);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(firstMember);
+        file.write(gzip("next record".getBytes(US_ASCII)));
+
+        RecordDecoder decoder = new RecordDecoder(4);
+        try (InputStream stream = decoder.decode(new ByteArrayInputStream(file.toByteArray()), -1)) {
+            assertTrue(RecordDecoder.isCompressed(stream));
+            assertArrayEquals(first, readAll(stream));
+        }
+        assertEquals(1, decoder.pooledInflaters());
+
+        ByteArrayInputStream raw = new ByteArrayInputStream(file.toByteArray());
+        try (InputStream stream = decoder.decode(raw, firstMember.length)) {
+            assertArrayEquals(first, readAll(stream));
+        }
+        assertEquals(1, decoder.pooledInflaters());
+    }
+
+    @Test
+    public void boundsUncompressedRecords() throws IOException {
+        RecordDecoder decoder = new RecordDecoder(4);
+        InputStream stream = decoder.decode(new ByteArrayInputStream("WARC/1.0 record".getBytes(US_ASCII)), 8);
+        assertFalse(RecordDecoder.isCompressed(stream));
+        assertEquals("WARC/1.0", new String(readAll(stream), US_ASCII));
+    }
+
+    @Test(expected = ZipException.class)
+    public void detectsCorruption() throws IOException {
+        byte[] member = gzip("hello world".getBytes(US_ASCII));
+        member[member.length - 8] ^= 1; // CRC
+        readAll(new RecordDecoder(4).decode(new ByteArrayInputStream(member), member.length));
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,138 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReplicasTest {
+    private final ExecutorService executor = Replicas.newExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static class Result implements Closeable {
+        final String base;
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        Result(String base) {
+            this.base = base;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    private Replicas replicas(double hedgePercentile, int breakerFailures) {
+        return new Replicas(Arrays.asList("a", "b"), executor, hedgePercentile, 10, breakerFailures, 60000);
+    }
+
+    @Test
+    public void parse() {
+        assertEquals(Arrays.asList("http://a/", "/b/"), Replicas.parse(" http://a/, /b/ "));
+        assertEquals(Arrays.asList(""), Replicas.parse(""));
+    }
+
+    @Test
+    public void failsOverAndOpensBreaker() throws IOException {
+        Replicas replicas = replicas(0, 1);
+        AtomicInteger readsOfA = new AtomicInteger();
+        Replicas.Read<Result> read = base -> {
+            if (base.equals("a")) {
+                readsOfA.incrementAndGet();
+                throw new IOException("a is down");
+            }
+            return new Result(base);
+        };
+        for (int i = 0; i < 5; i++) {
+            assertEquals("b", replicas.read(read).base);
+        }
+        assertEquals(1, readsOfA.get());
+        assertTrue(replicas.replicas().get(0).breakerOpen());
+        assertEquals(1, replicas.replicas().get(0).failures());
+    }
+
+    @Test
+    public void recordErrorsDontCountAgainstReplicas() throws IOException {
+        Replicas replicas = replicas(0, 1);
+        AtomicInteger reads = new AtomicInteger();
+        try {
+            replicas.read(base -> {
+                reads.incrementAndGet();
+                throw new ResourceStore.MalformedRecordException("bad record", null);
+            });
+            fail("expected MalformedRecordException");
+        } catch (ResourceStore.MalformedRecordException e) {
+            assertEquals("not retried on the other replica", 1, reads.get());
+        }
+        Replicas.Read<Result> read = base -> {
+            if (base.equals("a")) {
+                throw new FileNotFoundException("not on a");
+            }
+            return new Result(base);
+        };
+        assertEquals("b", replicas.read(read).base);
+        for (Replicas.Replica replica : replicas.replicas()) {
+            assertFalse(replica.breakerOpen());
+            assertEquals(0, replica.failures());
+        }
+    }
+
+    @Test
+    public void throwsWhenEveryReplicaFails() {
+        Replicas replicas = replicas(0, 5);
+        try {
+            replicas.read(base -> {
+                throw new IOException(base + " is down");
+            });
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals("a is down", e.getMessage());
+            assertEquals("b is down", e.getSuppressed()[0].getMessage());
+        }
+    }
+
+    @Test
+    public void hedgesSlowReads() throws Exception {
+        Replicas replicas = replicas(50, 5);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Result> slow = new java.util.concurrent.CopyOnWriteArrayList<>();
+        Replicas.Read<Result> read = base -> {
+            if (base.equals("a")) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                Result result = new Result(base);
+                slow.add(result);
+                return result;
+            }
+            return new Result(base);
+        };
+        assertEquals("b", replicas.read(read).base);
+        assertEquals(1, replicas.hedges());
+        release.countDown();
+        // the losing read's result is closed once it arrives
+        for (int i = 0; i < 100 && slow.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(slow.get(0).closed.await(5, TimeUnit.SECONDS));
+        // b answered faster so it's now preferred
+        assertEquals("b", replicas.read(base -> new Result(base)).base);
+    }
+}
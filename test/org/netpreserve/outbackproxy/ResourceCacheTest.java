@@ -0,0 +1,79 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.util.HeaderMap;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class ResourceCacheTest {
+    @Test
+    public void admitsPopularRecords() {
+        ResourceCache cache = new ResourceCache(300, 200);
+        assertNull(cache.get("a"));
+        cache.put("a", entry(100));
+        assertNull(cache.get("b"));
+        cache.put("b", entry(100));
+        assertNull(cache.get("c"));
+        cache.put("c", entry(100));
+        assertEquals(300, cache.bytes());
+
+        // a one-off request doesn't displace anything
+        assertNull(cache.get("d"));
+        assertFalse(cache.admits("d", 100));
+        cache.put("d", entry(100));
+        assertEquals(1, cache.rejections());
+        assertEquals(3, cache.size());
+
+        // once it's more popular than the least recently used entry it does
+        cache.get("d");
+        cache.get("d");
+        assertNotNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        cache.put("d", entry(100));
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("d"));
+        assertEquals(1, cache.evictions());
+        assertEquals(300, cache.bytes());
+
+        assertFalse("too big", cache.admits("e", 201));
+    }
+
+    @Test
+    public void rejectedReplacementKeepsPreviousEntry() {
+        ResourceCache cache = new ResourceCache(300, 250);
+        cache.put("a", entry(100));
+        cache.put("b", entry(100));
+        cache.get("b");
+        cache.put("a", entry(250)); // would have to evict the more popular b
+        assertEquals(1, cache.rejections());
+        assertEquals(100, cache.get("a").size());
+        assertEquals(200, cache.bytes());
+
+        cache.put("a", entry(150)); // fits once the old a makes way
+        assertEquals(150, cache.get("a").size());
+        assertEquals(250, cache.bytes());
+        assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    public void servesRanges() throws IOException {
+        ResourceCache cache = new ResourceCache(1000, 1000);
+        cache.put("a", new ResourceCache.Entry(new Date(0), new HeaderMap(),
+                ByteBuffer.wrap("hello world".getBytes())));
+        Resource resource = cache.get("a").toResource();
+        resource.selectRange(6, 5);
+        assertEquals(5, resource.payloadLength());
+        byte[] b = new byte[10];
+        assertEquals(5, resource.payload().read(b));
+        assertEquals("world", new String(b, 0, 5));
+        assertEquals(11, cache.get("a").toResource().payloadBuffer().remaining());
+    }
+
+    private static ResourceCache.Entry entry(int size) {
+        return new ResourceCache.Entry(new Date(0), new HeaderMap(), ByteBuffer.allocateDirect(size));
+    }
+}
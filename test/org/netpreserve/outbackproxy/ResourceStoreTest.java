@@ -0,0 +1,199 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpServerExchange;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static io.undertow.util.Headers.CONTENT_RANGE;
+import static io.undertow.util.Headers.RANGE;
+import static io.undertow.util.Headers.RETRY_AFTER;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.*;
+
+public class ResourceStoreTest {
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Undertow server;
+    private volatile int status = 206;
+    private volatile String retryAfter;
+    private final CountDownLatch requested = new CountDownLatch(1);
+    private final CountDownLatch stall = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        stall.countDown();
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void missingAndMalformedRecordsDontLowerTheLimit() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Files.write(dir.resolve("bad.warc"), "not a record at all\r\n\r\n".getBytes(US_ASCII));
+        for (String filename : new String[]{"missing.warc", "bad.warc"}) {
+            UpstreamLimits limits = new UpstreamLimits(10, 0, 0, true);
+            try (TestArchive archive = new TestArchive(dir)) {
+                archive.store(limits).open(filename, 0, -1).close();
+                fail("expected " + filename + " to fail");
+            } catch (IOException e) {
+                assertEquals(filename, 10, limits.get("local").limitValue());
+            }
+        }
+    }
+
+    @Test
+    public void upstreamStatuses() throws IOException {
+        try (TestArchive archive = new TestArchive(folder.getRoot().toPath())) {
+            ResourceStore store = archive.store(startServer(), new UpstreamLimits(Integer.MAX_VALUE, 0, 0, false));
+            for (int code : new int[]{404, 410}) {
+                assertFailure(store, code, null, FileNotFoundException.class);
+            }
+            for (int code : new int[]{400, 408, 500, 503}) {
+                assertFailure(store, code, null, IOException.class);
+            }
+            assertEquals(1, assertFailure(store, 429, null, ConcurrencyLimiter.OverloadedException.class)
+                    .retryAfterSeconds());
+            assertEquals(30, assertFailure(store, 429, "30", ConcurrencyLimiter.OverloadedException.class)
+                    .retryAfterSeconds());
+            assertEquals(5, assertFailure(store, 503, "5", ConcurrencyLimiter.OverloadedException.class)
+                    .retryAfterSeconds());
+        }
+    }
+
+    @Test
+    public void slowUpstreamGets503() throws Exception {
+        try (TestArchive archive = new TestArchive(folder.getRoot().toPath())) {
+            // too large to share, so the second replay can't just wait on the first one's fetch
+            StringBuilder body = new StringBuilder();
+            while (body.length() < 5 * 1024 * 1024) {
+                body.append("slow ");
+            }
+            long offset = archive.addRecord("response", "2010-01-01T00:00:00Z", "", "", body.toString());
+            archive.addIndexLine("20100101000000", "text/plain", "sha1:AAAA", offset);
+            ResourceStore store = archive.store(startServer(), new UpstreamLimits(Integer.MAX_VALUE, 0, 0, false));
+            archive.startProxy(archive.index(), store, new CertificateGenerator(null, null), null, 1);
+
+            // the first replay holds the store's only upstream connection while its payload trickles in
+            try (Socket first = new Socket("127.0.0.1", archive.port())) {
+                OutputStream out = first.getOutputStream();
+                out.write(("GET " + TestArchive.URL + " HTTP/1.1\r\nHost: example.org\r\n\r\n").getBytes(US_ASCII));
+                out.flush();
+                assertTrue(requested.await(10, TimeUnit.SECONDS));
+                OutbackProxyTest.Response response = OutbackProxyTest.request(archive.port(), "GET", TestArchive.URL);
+                assertEquals(503, response.status);
+                assertEquals("1", response.header("Retry-After"));
+                assertEquals(0, archive.metrics.serverErrors.sum());
+                stall.countDown(); // let the first replay finish rather than hold up stopping the proxy
+            }
+        }
+    }
+
+    @Test
+    public void interruptedBlockCacheReadIsNotMalformed() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        char[] body = new char[10000];
+        Arrays.fill(body, 'x');
+        try (TestArchive archive = new TestArchive(dir)) {
+            archive.addRecord("response", "2010-01-01T00:00:00Z", "", "", new String(body));
+        }
+        String base = startServer();
+        try (HttpPool pool = new HttpPool(1, 0, 1000, 5000);
+             FileChannelCache files = new FileChannelCache(0, 0);
+             BlockCache blocks = new BlockCache(folder.newFolder().toPath(), 1 << 20, 64 * 1024, 0, pool)) {
+            ResourceStore store = new ResourceStore(Replicas.single(base), pool, null, files, blocks,
+                    new UpstreamLimits(Integer.MAX_VALUE, 0, 0, false), new Metrics());
+            Thread.currentThread().interrupt(); // the block is still trickling in so the read has to wait for it
+            try {
+                store.open("a.warc", 0, -1).close();
+                fail("expected the interrupt to stop the read");
+            } catch (IOException e) {
+                assertEquals(InterruptedIOException.class, e.getClass());
+            } finally {
+                Thread.interrupted();
+                stall.countDown();
+            }
+        }
+    }
+
+    private <T extends IOException> T assertFailure(ResourceStore store, int code, String retryAfter, Class<T> type) {
+        status = code;
+        this.retryAfter = retryAfter;
+        try {
+            store.open("a.warc", 0, -1).close();
+            fail("expected " + code + " to fail");
+        } catch (IOException e) {
+            assertEquals(code + " " + retryAfter, type, e.getClass());
+            return type.cast(e);
+        }
+        return null;
+    }
+
+    /**
+     * Serves a.warc from the test folder, returning the first 1KB of a range at once and then trickling out the rest
+     * until the test ends.
+     *
+     * @return base URL of the server
+     */
+    private String startServer() throws IOException {
+        server = Undertow.builder().addHttpListener(0, "127.0.0.1").setHandler(this::handle).build();
+        server.start();
+        InetSocketAddress address = (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+        return "http://127.0.0.1:" + address.getPort() + "/";
+    }
+
+    private void handle(HttpServerExchange exchange) throws Exception {
+        if (exchange.isInIoThread()) {
+            exchange.dispatch(this::handle);
+            return;
+        }
+        if (status != 206) {
+            exchange.setStatusCode(status);
+            if (retryAfter != null) {
+                exchange.getResponseHeaders().put(RETRY_AFTER, retryAfter);
+            }
+            exchange.endExchange();
+            return;
+        }
+        byte[] warc = Files.readAllBytes(folder.getRoot().toPath().resolve("a.warc"));
+        Matcher m = RANGE_PATTERN.matcher(exchange.getRequestHeaders().getFirst(RANGE));
+        assertTrue(m.matches());
+        int start = Integer.parseInt(m.group(1));
+        int end = m.group(2).isEmpty() ? warc.length - 1 : Integer.parseInt(m.group(2));
+        exchange.setStatusCode(206);
+        exchange.getResponseHeaders().put(CONTENT_RANGE, "bytes " + start + "-" + end + "/" + warc.length);
+        exchange.setResponseContentLength(end - start + 1);
+        exchange.startBlocking();
+        OutputStream out = exchange.getOutputStream();
+        int firstEnd = Math.min(end + 1, start + 1024);
+        out.write(warc, start, firstEnd - start);
+        out.flush();
+        requested.countDown();
+        for (int i = firstEnd; i <= end; i += 100) {
+            stall.await(100, TimeUnit.MILLISECONDS);
+            out.write(warc, i, Math.min(100, end + 1 - i));
+            out.flush();
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,89 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.undertow.util.Headers.CONTENT_TYPE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.*;
+
+public class RevisitResolverTest {
+    private static final String BODY = TestArchive.BODY;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestArchive archive;
+
+    @Before
+    public void setUp() {
+        archive = new TestArchive(folder.getRoot().toPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        archive.close();
+    }
+
+    @Test
+    public void resolvesRevisitsThroughCache() throws IOException {
+        String refersTo = "WARC-Refers-To-Target-URI: http://example.org/\r\n" +
+                "WARC-Refers-To-Date: 2010-01-01T00:00:00Z\r\n";
+        long original = archive.addRecord("response", "2010-01-01T00:00:00Z", "", "Content-Type: text/plain\r\n",
+                BODY);
+        long first = archive.addRecord("revisit", "2011-01-01T00:00:00Z", refersTo, "Content-Type: text/html\r\n", "");
+        long second = archive.addRecord("revisit", "2012-01-01T00:00:00Z", refersTo, "Content-Type: text/html\r\n",
+                "");
+        long orphan = archive.addRecord("revisit", "2013-01-01T00:00:00Z", "", "Content-Type: text/html\r\n", "");
+        archive.addIndexLine("20100101000000", "text/plain", "sha1:AAAA", original);
+        archive.addIndexLine("20110101000000", "warc/revisit", "sha1:AAAA", first);
+        archive.addIndexLine("20120101000000", "warc/revisit", "sha1:AAAA", second);
+        archive.addIndexLine("20130101000000", "warc/revisit", "sha1:BBBB", orphan);
+
+        CdxFileIndex cdx = archive.index();
+        AtomicInteger lookups = new AtomicInteger();
+        CaptureIndex index = new CaptureIndex() {
+            @Override
+            public Capture findClosest(String url, Instant time) {
+                return cdx.findClosest(url, time);
+            }
+
+            @Override
+            public Capture findOriginal(String url, Instant time, long digest) {
+                lookups.incrementAndGet();
+                return cdx.findOriginal(url, time, digest);
+            }
+        };
+        ResourceStore store = archive.store();
+        RevisitResolver resolver = new RevisitResolver(index, store, 100);
+
+        for (String year : new String[]{"2011", "2012"}) {
+            Capture capture = index.findClosest("http://example.org/", Instant.parse(year + "-01-01T00:00:00Z"));
+            assertTrue(capture.revisit());
+            try (Resource resource = resolver.open(capture)) {
+                assertEquals(BODY.length(), resource.payloadLength());
+                assertEquals(BODY, new String(TestArchive.readAll(resource.payload()), US_ASCII));
+                assertEquals("text/html", resource.headers().getFirst(CONTENT_TYPE));
+                assertEquals(Instant.parse(year + "-01-01T00:00:00Z"), resource.instant());
+            }
+        }
+        assertEquals(1, lookups.get());
+        assertEquals(2, resolver.resolved());
+        assertEquals(1, resolver.originals().hits());
+
+        Capture capture = index.findClosest("http://example.org/", Instant.parse("2013-01-01T00:00:00Z"));
+        try {
+            resolver.open(capture).close();
+            fail("expected OriginalNotFoundException");
+        } catch (RevisitResolver.OriginalNotFoundException e) {
+            assertEquals(1, resolver.unresolved());
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.net.ssl.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.*;
+
+public class SSLConnectHandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestArchive archive;
+
+    @Before
+    public void setUp() throws Exception {
+        archive = new TestArchive(folder.getRoot().toPath());
+        archive.addResponse("");
+        archive.startProxy();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        archive.close();
+    }
+
+    @Test
+    public void http2NegotiatedWhenOffered() throws Exception {
+        try (SSLSocket socket = tunnel(clientContext(), "h2", "http/1.1")) {
+            assertEquals("h2", socket.getApplicationProtocol());
+            OutputStream out = socket.getOutputStream();
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ISO_8859_1));
+            out.write(new byte[]{0, 0, 0, 4, 0, 0, 0, 0, 0});
+            out.flush();
+            byte[] frameHeader = new byte[9];
+            new DataInputStream(socket.getInputStream()).readFully(frameHeader);
+            assertEquals("server's first frame is SETTINGS", 4, frameHeader[3]);
+        }
+    }
+
+    @Test
+    public void http11WithoutAlpn() throws Exception {
+        try (SSLSocket socket = tunnel(clientContext())) {
+            assertEquals("", socket.getApplicationProtocol());
+            get(socket);
+        }
+    }
+
+    @Test
+    public void reconnectingClientResumesSession() throws Exception {
+        SSLContext context = clientContext();
+        for (int i = 0; i < 2; i++) {
+            try (SSLSocket socket = tunnel(context)) {
+                // TLS 1.3 sends the session ticket after the handshake so read a response before reconnecting
+                get(socket);
+            }
+        }
+        assertEquals(1, archive.metrics.tlsFullHandshakes.sum());
+        assertEquals(1, archive.metrics.tlsResumedHandshakes.sum());
+    }
+
+    /**
+     * Requests the archived page over HTTP/1.1 and checks it's served.
+     */
+    private static void get(SSLSocket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write("GET / HTTP/1.1\r\nHost: example.org\r\nConnection: close\r\n\r\n".getBytes(ISO_8859_1));
+        out.flush();
+        String response = new String(TestArchive.readAll(socket.getInputStream()), ISO_8859_1);
+        assertTrue(response, response.startsWith("HTTP/1.1 200"));
+        assertTrue(response, response.endsWith(TestArchive.BODY));
+    }
+
+    /**
+     * Opens a CONNECT tunnel to example.org through the proxy and completes a TLS handshake over it.
+     *
+     * @param protocols ALPN protocols to offer, none to leave ALPN out of the handshake
+     */
+    private SSLSocket tunnel(SSLContext context, String... protocols) throws IOException {
+        Socket socket = new Socket("127.0.0.1", archive.port());
+        OutputStream out = socket.getOutputStream();
+        out.write("CONNECT example.org:443 HTTP/1.1\r\nHost: example.org:443\r\n\r\n".getBytes(ISO_8859_1));
+        out.flush();
+        String head = readHead(socket.getInputStream());
+        assertTrue(head, head.startsWith("HTTP/1.1 200"));
+        SSLSocket ssl = (SSLSocket) context.getSocketFactory().createSocket(socket, "example.org", 443, true);
+        if (protocols.length > 0) {
+            SSLParameters params = ssl.getSSLParameters();
+            params.setApplicationProtocols(protocols);
+            ssl.setSSLParameters(params);
+        }
+        ssl.startHandshake();
+        return ssl;
+    }
+
+    /**
+     * Reads the CONNECT response up to the blank line without consuming any of the tunnelled bytes.
+     */
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("proxy closed the connection: " + head.toString("ISO-8859-1"));
+            }
+            head.write(b);
+        }
+        return head.toString("ISO-8859-1");
+    }
+
+    /**
+     * A client context that trusts any certificate, as the proxy's CA is generated afresh for each test.
+     */
+    private static SSLContext clientContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+}
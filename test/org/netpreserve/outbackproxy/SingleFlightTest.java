@@ -0,0 +1,86 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+    @Test
+    public void concurrentCallsShareOneResult() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            AtomicBoolean sawWaiters = new AtomicBoolean();
+            Future<Integer> first = executor.submit(() -> flight.run("key", k -> {
+                loading.countDown();
+                release.await();
+                sawWaiters.set(flight.hasWaiters("key"));
+                return loads.incrementAndGet();
+            }));
+            loading.await();
+            Future<Integer> second = executor.submit(() -> flight.run("key", k -> loads.incrementAndGet()));
+            Future<Integer> third = executor.submit(() -> flight.run("key", k -> loads.incrementAndGet()));
+            while (flight.shared() < 2) {
+                Thread.sleep(1);
+            }
+            assertTrue(flight.hasWaiters("key"));
+            release.countDown();
+            assertEquals(1, (int) first.get());
+            assertTrue("loader sees the waiting callers", sawWaiters.get());
+            assertEquals(1, (int) second.get());
+            assertEquals(1, (int) third.get());
+            assertEquals(1, loads.get());
+            assertEquals(1, flight.executed());
+
+            // nothing is kept once the call is over
+            assertFalse(flight.hasWaiters("key"));
+            assertEquals(2, (int) flight.run("key", k -> loads.incrementAndGet()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failuresAreShared() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = executor.submit(() -> flight.run("key", k -> {
+                loading.countDown();
+                release.await();
+                throw new IOException("boom");
+            }));
+            loading.await();
+            Future<String> second = executor.submit(() -> flight.run("key", k -> "unused"));
+            while (flight.shared() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<String> future : Arrays.asList(first, second)) {
+                try {
+                    future.get();
+                    fail("expected exception");
+                } catch (ExecutionException e) {
+                    assertEquals("boom", e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.netpreserve.outbackproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Writes captures of {@link #URL} to a.warc and index.cdx in a directory and replays them through stores and proxies
+ * that are shut down by {@link #close()}.
+ */
+class TestArchive implements Closeable {
+    static final String URL = "http://example.org/";
+    static final String BODY = "hello world";
+
+    final Metrics metrics = new Metrics();
+    private final Path dir;
+    private final ByteArrayOutputStream warc = new ByteArrayOutputStream();
+    private final List<String> cdx = new ArrayList<>();
+    private final List<Closeable> closeables = new ArrayList<>();
+    private final List<OutbackProxy> proxies = new ArrayList<>();
+    private boolean compressed;
+    private int port;
+    private int adminPort;
+
+    TestArchive(Path dir) {
+        this.dir = dir;
+    }
+
+    Path dir() {
+        return dir;
+    }
+
+    /**
+     * Writes records added from now on as separate gzip members, which can't be sent with sendfile.
+     */
+    void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Adds a text/plain response holding {@link #BODY} captured at 2010-01-01.
+     *
+     * @param httpHeaders extra archived response header lines, each ending in CRLF
+     */
+    long addResponse(String httpHeaders) throws IOException {
+        long offset = addRecord("response", "2010-01-01T00:00:00Z", "", "Content-Type: text/plain\r\n" + httpHeaders,
+                BODY);
+        addIndexLine("20100101000000", "text/plain", "sha1:AAAA", offset);
+        return offset;
+    }
+
+    /**
+     * Appends a WARC record holding a 200 response and returns its offset. It isn't indexed.
+     *
+     * @param warcHeaders extra WARC header lines, each ending in CRLF
+     * @param httpHeaders archived response header lines, each ending in CRLF
+     */
+    long addRecord(String type, String date, String warcHeaders, String httpHeaders, String body)
+            throws IOException {
+        long offset = warc.size();
+        String http = "HTTP/1.1 200 OK\r\n" + httpHeaders +
+                (body.isEmpty() ? "" : "Content-Length: " + body.length() + "\r\n") + "\r\n" + body;
+        String header = "WARC/1.0\r\n" +
+                "WARC-Type: " + type + "\r\n" +
+                "WARC-Target-URI: " + URL + "\r\n" +
+                "WARC-Date: " + date + "\r\n" +
+                "WARC-Record-ID: <urn:uuid:" + UUID.randomUUID() + ">\r\n" +
+                "WARC-Payload-Digest: sha1:AAAA\r\n" +
+                warcHeaders +
+                "Content-Type: application/http; msgtype=response\r\n" +
+                "Content-Length: " + http.length() + "\r\n\r\n";
+        byte[] record = (header + http + "\r\n\r\n").getBytes(US_ASCII);
+        if (compressed) {
+            try (GZIPOutputStream gzip = new GZIPOutputStream(warc)) {
+                gzip.write(record);
+            }
+        } else {
+            warc.write(record);
+        }
+        Files.write(dir.resolve("a.warc"), warc.toByteArray());
+        return offset;
+    }
+
+    void addIndexLine(String timestamp, String mime, String digest, long offset) throws IOException {
+        cdx.add("org,example)/ " + timestamp + " " + URL + " " + mime + " 200 " + digest + " - - - " + offset +
+                " a.warc");
+        Files.write(dir.resolve("index.cdx"), cdx);
+    }
+
+    CdxFileIndex index() throws IOException {
+        return new CdxFileIndex(dir.resolve("index.cdx"));
+    }
+
+    /**
+     * A store reading the directory without any limit or cache.
+     */
+    ResourceStore store() {
+        return store(new UpstreamLimits(Integer.MAX_VALUE, 0, 0, false));
+    }
+
+    ResourceStore store(UpstreamLimits limits) {
+        return store(dir + "/", limits);
+    }
+
+    /**
+     * @param base WARC server URL or directory the filename a.warc is resolved against
+     */
+    ResourceStore store(String base, UpstreamLimits limits) {
+        HttpPool httpPool = new HttpPool(1, 0, 1000, 1000);
+        FileChannelCache files = new FileChannelCache(0, 0);
+        closeables.add(httpPool);
+        closeables.add(files);
+        return new ResourceStore(Replicas.single(base), httpPool, null, files, null, limits, metrics);
+    }
+
+    /**
+     * Starts a blocking mode proxy over the index and a store without limits.
+     */
+    OutbackProxy startProxy() throws Exception {
+        return startProxy((ExecutorService) null);
+    }
+
+    /**
+     * Starts a proxy over the index and a store without limits.
+     *
+     * @param upstreamExecutor executor for async mode or null for blocking mode
+     */
+    OutbackProxy startProxy(ExecutorService upstreamExecutor) throws Exception {
+        CaptureIndex index = index();
+        return startProxy(index, store(), new CertificateGenerator(null, null), upstreamExecutor, 1);
+    }
+
+    /**
+     * Starts a proxy on {@link #port()} with its admin listener on {@link #adminPort()}.
+     *
+     * @see OutbackProxy#OutbackProxy
+     */
+    OutbackProxy startProxy(CaptureIndex index, ResourceStore store, CertificateGenerator certificates,
+                            ExecutorService upstreamExecutor, int batchConcurrency) throws Exception {
+        port = freePort();
+        adminPort = freePort();
+        OutbackProxy proxy = new OutbackProxy("127.0.0.1", port, index, store, new RevisitResolver(index, store, 100),
+                certificates, 100, 86400, upstreamExecutor, null, metrics, "127.0.0.1", adminPort, batchConcurrency);
+        proxies.add(proxy);
+        proxy.run();
+        return proxy;
+    }
+
+    /**
+     * Port of the last proxy started.
+     */
+    int port() {
+        return port;
+    }
+
+    int adminPort() {
+        return adminPort;
+    }
+
+    @Override
+    public void close() throws IOException {
+        proxies.forEach(OutbackProxy::stop);
+        for (Closeable closeable : closeables) {
+            closeable.close();
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Returns the value of the named header in a block of header lines or null if it's missing.
+     */
+    static String header(String head, String name) {
+        Matcher m = Pattern.compile("(?im)^" + name + ": (.*)$").matcher(head);
+        return m.find() ? m.group(1).trim() : null;
+    }
+
+    static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
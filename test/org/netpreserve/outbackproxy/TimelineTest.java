@@ -0,0 +1,44 @@
+package org.netpreserve.outbackproxy;
+
+import org.junit.Test;
+
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TimelineTest {
+    @Test
+    public void closest() {
+        Timeline timeline = new Timeline.Builder()
+                .add(Capture.parse("org,example)/ 20100101000000 http://example.org/ text/html 200 - - - 10 300 b.warc.gz"))
+                .add(Capture.parse("org,example)/ 20070531203500 http://example.org/ text/html 200 - - - 10 100 a.warc.gz"))
+                .add(Capture.parse("org,example)/ 20120101000000 http://example.org/ text/html 200 - - - 10 500 a.warc.gz"))
+                .build();
+        assertEquals(3, timeline.size());
+        assertEquals(100, timeline.closest(Instant.ofEpochSecond(1)).offset());
+        assertEquals("a.warc.gz", timeline.closest(Instant.parse("2008-01-01T00:00:00Z")).filename());
+        assertEquals(300, timeline.closest(Instant.parse("2010-01-01T00:00:00Z")).offset());
+        assertEquals(300, timeline.closest(Instant.parse("2011-01-01T00:00:00Z")).offset());
+        assertEquals(500, timeline.closest(Instant.parse("2030-01-01T00:00:00Z")).offset());
+    }
+
+    @Test
+    public void closestOriginal() {
+        Timeline timeline = new Timeline.Builder()
+                .add(Capture.parse("org,example)/ 20070101000000 http://example.org/ text/html 200 AAAA - - 10 100 a.warc.gz"))
+                .add(Capture.parse("org,example)/ 20080101000000 http://example.org/ text/html 200 BBBB - - 10 200 a.warc.gz"))
+                .add(Capture.parse("org,example)/ 20090101000000 http://example.org/ warc/revisit - AAAA - - 10 300 a.warc.gz"))
+                .build();
+        Instant time = Instant.parse("2009-01-01T00:00:00Z");
+        assertEquals(300, timeline.closest(time).offset());
+        assertEquals(100, timeline.closestOriginal(time, Capture.digestFingerprint("sha1:AAAA")).offset());
+        assertEquals(200, timeline.closestOriginal(time, 0).offset());
+        assertNull(timeline.closestOriginal(time, Capture.digestFingerprint("CCCC")));
+    }
+
+    @Test
+    public void empty() {
+        assertNull(new Timeline.Builder().build().closest(Instant.now()));
+    }
+}
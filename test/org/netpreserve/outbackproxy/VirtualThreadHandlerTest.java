@@ -0,0 +1,107 @@
+package org.netpreserve.outbackproxy;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpServerExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class VirtualThreadHandlerTest {
+    private static final byte[] BIG = new byte[4 * 1024 * 1024];
+
+    private ExecutorService executor;
+    private Undertow server;
+    private String baseUrl;
+
+    @Before
+    public void setUp() {
+        Arrays.fill(BIG, (byte) 'x');
+        // a platform thread pool exercises the same streams when virtual threads aren't available
+        executor = isVirtualThreadSupported() ? VirtualThreadHandler.newVirtualThreadExecutor()
+                : Executors.newCachedThreadPool();
+        server = Undertow.builder().addHttpListener(0, "127.0.0.1")
+                .setHandler(new VirtualThreadHandler(this::handle, executor)).build();
+        server.start();
+        InetSocketAddress address = (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+        baseUrl = "http://127.0.0.1:" + address.getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    private static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("isVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private void handle(HttpServerExchange exchange) throws Exception {
+        switch (exchange.getRequestPath()) {
+            case "/small":
+                exchange.getResponseSender().send("hello");
+                break;
+            case "/big":
+                try (OutputStream out = exchange.getOutputStream()) {
+                    for (int i = 0; i < BIG.length; i += 1000) {
+                        out.write(BIG, i, Math.min(1000, BIG.length - i));
+                    }
+                }
+                break;
+            default:
+                exchange.setStatusCode(404);
+        }
+    }
+
+    @Test
+    public void small() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/small").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("5", connection.getHeaderField("Content-Length"));
+        assertArrayEquals("hello".getBytes(US_ASCII), readAll(connection.getInputStream()));
+    }
+
+    @Test
+    public void big() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/big").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertArrayEquals(BIG, readAll(connection.getInputStream()));
+    }
+
+    @Test
+    public void noBody() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/missing").openConnection();
+        assertEquals(404, connection.getResponseCode());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}